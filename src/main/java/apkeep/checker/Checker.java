@@ -39,6 +39,7 @@
 package apkeep.checker;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -49,7 +50,8 @@ import apkeep.core.Network;
 import apkeep.elements.ACLElement;
 import apkeep.elements.Element;
 import apkeep.elements.ForwardElement;
-import common.BDDACLWrapper;
+import apkeep.elements.NATElement;
+import apkeep.rules.ForwardingRule;
 import common.PositionTuple;
 
 public class Checker {
@@ -67,15 +69,15 @@ public class Checker {
 	}
 	
 	public ForwardingGraph constructFowardingGraph(PositionTuple pt1) {
-		Map<PositionTuple, Set<Integer>> port_aps = new HashMap<>();
+		Map<PositionTuple, BitSet> port_aps = new HashMap<>();
 		Map<String, Set<PositionTuple>> node_ports = new HashMap<>();
 		
 		Element e = getElement(pt1.getDeviceName());
-		Set<Integer> aps = e.getPortAPs(pt1.getPortName());
+		BitSet aps = e.getPortAPs(pt1.getPortName());
 		
 		if (aps == null) return null;
 			
-		for (int ap : aps) {
+		for (int ap = aps.nextSetBit(0); ap >= 0; ap = aps.nextSetBit(ap+1)) {
 			Set<PositionTuple> pts = null;
 			try {
 				pts = net.getHoldPorts(ap);
@@ -83,8 +85,8 @@ public class Checker {
 				e1.printStackTrace();
 			}
 			for (PositionTuple pt: pts) {
-				port_aps.putIfAbsent(pt, new HashSet<>());
-				port_aps.get(pt).add(ap);
+				port_aps.putIfAbsent(pt, new BitSet());
+				port_aps.get(pt).set(ap);
 				
 				node_ports.putIfAbsent(pt.getDeviceName(), new HashSet<>());
 				node_ports.get(pt.getDeviceName()).add(pt);
@@ -98,7 +100,7 @@ public class Checker {
 		loops.clear();
 		
 		for(PositionTuple pt : g.port_aps.keySet()) {
-			Set<Integer> aps = new HashSet<Integer>(g.port_aps.get(pt));
+			BitSet aps = (BitSet) g.port_aps.get(pt).clone();
 			ArrayList<PositionTuple> history = new ArrayList<PositionTuple>();
 			traverseFowardingGraph(pt, aps, history, g);
 		}
@@ -106,7 +108,7 @@ public class Checker {
 		return loops.size();
 	}
 	
-	private void traverseFowardingGraph(PositionTuple cur_hop, Set<Integer> fwd_aps, 
+	private void traverseFowardingGraph(PositionTuple cur_hop, BitSet fwd_aps, 
 			ArrayList<PositionTuple> history,
 			ForwardingGraph g) {
 		if(fwd_aps.isEmpty()) return;
@@ -125,8 +127,8 @@ public class Checker {
 			if(!g.node_ports.containsKey(next_node)) continue;
 			for(PositionTuple next_hop : g.node_ports.get(next_node)) {
 				if(next_hop.equals(connected_pt)) continue;
-				Set<Integer> aps = new HashSet<>(g.port_aps.get(next_hop));
-				aps.retainAll(fwd_aps);
+				BitSet aps = (BitSet) g.port_aps.get(next_hop).clone();
+				aps.and(fwd_aps);
 				ArrayList<PositionTuple> new_history = new ArrayList<>(history);
 				new_history.add(connected_pt);
 				traverseFowardingGraph(next_hop, aps, new_history, g);
@@ -134,15 +136,18 @@ public class Checker {
 		}
 	}
 
-	public void checkProperty(String element_name, Set<Integer> moved_aps) {
+	public void checkProperty(String element_name, BitSet moved_aps) {
 		loops.clear();
 		
 		Element e = net.getElement(element_name);
-		for(String port : e.getPorts()) {
-			if (port.equals("default") || e.getPortAPs(port).isEmpty()) continue;
+		for(int port_id=0; port_id<e.getPortNumber(); port_id++) {
+			String port = e.getPortName(port_id);
+			if (port.equals("default")) continue;
+			BitSet port_aps = e.getPortAPs(port_id);
+			if (port_aps.isEmpty()) continue;
 			
-			Set<Integer> aps = new HashSet<>(moved_aps);
-			aps.retainAll(e.getPortAPs(port));
+			BitSet aps = (BitSet) moved_aps.clone();
+			aps.and(port_aps);
 			
 			if(aps.isEmpty()) continue;
 			Set<String> ports = getPhysicalPorts(e,port);
@@ -154,7 +159,7 @@ public class Checker {
 		}
 	}
 	
-	public void checkPropertyDivision(String element_name, Set<Integer> moved_aps) {
+	public void checkPropertyDivision(String element_name, BitSet moved_aps) {
 		loops.clear();
 		
 		boolean isACL = false;
@@ -166,19 +171,22 @@ public class Checker {
 		element_name = net.getForwardElement(element_name);
 		Element e = net.getElement(element_name);
 		
-		for(String port : e.getPorts()) {
-			if (port.equals("default") || e.getPortAPs(port).isEmpty()) continue;
+		for(int port_id=0; port_id<e.getPortNumber(); port_id++) {
+			String port = e.getPortName(port_id);
+			if (port.equals("default")) continue;
+			BitSet port_aps = e.getPortAPs(port_id);
+			if (port_aps.isEmpty()) continue;
 			
-			Set<Integer> fwd_aps = new HashSet<>();
-			Set<Integer> acl_aps = new HashSet<>();
+			BitSet fwd_aps;
+			BitSet acl_aps;
 			if(isACL) {
-				fwd_aps.addAll(e.getPortAPs(port));
-				acl_aps.addAll(moved_aps);
+				fwd_aps = (BitSet) port_aps.clone();
+				acl_aps = (BitSet) moved_aps.clone();
 			}
 			else {
-				fwd_aps.addAll(moved_aps);
-				fwd_aps.retainAll(e.getPortAPs(port));
-				acl_aps.add(BDDACLWrapper.BDDTrue);
+				fwd_aps = (BitSet) moved_aps.clone();
+				fwd_aps.and(port_aps);
+				acl_aps = net.getACLAPs();
 			}
 			
 			if(fwd_aps.isEmpty() || acl_aps.isEmpty()) continue;
@@ -191,7 +199,7 @@ public class Checker {
 		}
 	}
 
-	private void traversePPM(PositionTuple cur_hop, Set<Integer> fwd_aps, 
+	private void traversePPM(PositionTuple cur_hop, BitSet fwd_aps, 
 			List<PositionTuple> history) {
 		
 		if(fwd_aps.isEmpty()) return;
@@ -208,9 +216,11 @@ public class Checker {
 		for(PositionTuple connected_pt : net.getConnectedPorts(cur_hop)) {
 			String next_node = connected_pt.getDeviceName();
 			Element e = getElement(next_node);
-			for(String port : e.getPorts()) {
+			for(int port_id=0; port_id<e.getPortNumber(); port_id++) {
+				String port = e.getPortName(port_id);
 				if(port.equals(connected_pt.getPortName())) continue;
-				Set<Integer> aps = e.forwardAPs(port, fwd_aps);
+				BitSet aps = e.forwardAPs(port_id, fwd_aps);
+				if(aps.isEmpty()) continue;
 				Set<String> ports = getPhysicalPorts(e,port);
 				for(String next_port : ports) {
 					if(next_port.equals(connected_pt.getPortName())) continue;
@@ -224,7 +234,7 @@ public class Checker {
 	}
 	
 	private void traversePPMDivision(PositionTuple cur_hop, 
-			Set<Integer> fwd_aps, Set<Integer> acl_aps,
+			BitSet fwd_aps, BitSet acl_aps,
 			List<PositionTuple> history) {
 		if(fwd_aps.isEmpty() || acl_aps.isEmpty()) return;
 		if(cur_hop.getPortName().equals("deny")) return;
@@ -242,16 +252,18 @@ public class Checker {
 		for(PositionTuple connected_pt : net.getConnectedPorts(cur_hop)) {
 			String next_node = connected_pt.getDeviceName();
 			Element e = getElement(next_node);
-			Set<Integer> filtered_fwd_aps = new HashSet<>(fwd_aps);
-			Set<Integer> filtered_acl_aps = new HashSet<>(acl_aps);
-			for(String port : e.getPorts()) {
+			BitSet filtered_fwd_aps = fwd_aps;
+			BitSet filtered_acl_aps = acl_aps;
+			for(int port_id=0; port_id<e.getPortNumber(); port_id++) {
+				String port = e.getPortName(port_id);
 				if(port.equals(connected_pt.getPortName())) continue;
 				if(e instanceof ACLElement) {
-					filtered_acl_aps = e.forwardAPs(port, acl_aps);
+					filtered_acl_aps = e.forwardAPs(port_id, acl_aps);
 				}
 				else {
-					filtered_fwd_aps = e.forwardAPs(port, fwd_aps);
+					filtered_fwd_aps = e.forwardAPs(port_id, fwd_aps);
 				}
+				if(filtered_fwd_aps.isEmpty() || filtered_acl_aps.isEmpty()) continue;
 				Set<String> ports = getPhysicalPorts(e,port);
 				for(String next_port : ports) {
 					if(next_port.equals(connected_pt.getPortName())) continue;
@@ -265,21 +277,120 @@ public class Checker {
 	}
 
 	private boolean checkLoop(List<PositionTuple> history, PositionTuple cur_hop,
-			Set<Integer> fwd_aps, Set<Integer> acl_aps) {
+			BitSet fwd_aps, BitSet acl_aps) {
 		if(history.contains(cur_hop)) {
 			if(acl_aps != null) {
-				if(!Element.hasOverlap(fwd_aps, acl_aps)) {
+				if(!net.hasOverlap(fwd_aps, acl_aps)) {
 					return true;
 				}
 			}
 			history.add(cur_hop);
-			Loop loop = new Loop(fwd_aps, history, cur_hop);
+			Loop loop = new Loop(net.bdd_engine, net.getAPBDDs(fwd_aps), history, cur_hop);
+			if(!loops.contains(loop)) loop.setRules(getLoopRules(loop, fwd_aps));
 			loops.add(loop);
 			return true;
 		}
 		return false;
 	}
 	
+	/*
+	 * the original rules forwarding the loop out of each device whose rules are compressed, 
+	 * since the rules kept are not the ones configured
+	 */
+	private List<String> getLoopRules(Loop loop, BitSet fwd_aps) {
+		List<String> rules = new ArrayList<>();
+		// the loop goes out of a device and into the next one by turns
+		for(int i=0; i<loop.path.size()-1; i+=2) {
+			PositionTuple pt = loop.path.get(i);
+			Element e = getElement(pt.getDeviceName());
+			if(!(e instanceof ForwardElement) || !((ForwardElement) e).isCompressed()) continue;
+			for(ForwardingRule rule : ((ForwardElement) e).getForwardingRules(pt.getPortName(), fwd_aps)) {
+				rules.add(pt.getDeviceName() + " " + rule);
+			}
+		}
+		return rules;
+	}
+	
+	/**
+	 * trace a concrete header from the device hop by hop, 
+	 * following the port that holds the AP of the header in each element
+	 * @param fields - src ip, dst ip, protocol, src port and dst port
+	 * @return the paths taken by the header, each ending with its fate, 
+	 * with the original forwarding rule matched at each device
+	 */
+	public List<String> tracePacket(String device, long[] fields) {
+		List<String> paths = new ArrayList<>();
+		Element e = net.getElement(device);
+		if(e == null) return paths;
+		tracePacket(device, e, null, fields.clone(), new ArrayList<PositionTuple>(), new ArrayList<String>(), paths);
+		return paths;
+	}
+	
+	private void tracePacket(String node, Element e, String in_port, long[] fields,
+			List<PositionTuple> history, List<String> hops, List<String> paths) {
+		int[] header = net.bdd_engine.encodeHeader(fields[0], fields[1], (int) fields[2], (int) fields[3], (int) fields[4]);
+		int ap_slot = e instanceof ACLElement ? net.getACLAP(header) : net.getFwdAP(header);
+		int port_id = e.getAPPort(ap_slot);
+		String port = e.getPortName(port_id);
+		
+		if(e instanceof ACLElement) {
+			if(port.equals("deny")) {
+				paths.add(printPath(hops, new PositionTuple(node, port), "denied"));
+				return;
+			}
+		}
+		// the default port of a NAT forwards the packets not rewritten
+		else if(e instanceof ForwardElement && port.equals("default")) {
+			paths.add(printPath(hops, new PositionTuple(node, port), "dropped, no matching rule"));
+			return;
+		}
+		String rule = "";
+		if(e instanceof ForwardElement) {
+			rule = " [" + ((ForwardElement) e).getMatchedRule(fields[1]) + "]";
+		}
+		if(e instanceof NATElement) {
+			fields = fields.clone();
+			fields[1] = ((NATElement) e).rewriteDstIP(port_id, fields[1]);
+		}
+		
+		for(String next_port : getPhysicalPorts(e, port)) {
+			if(next_port.equals(in_port)) continue;
+			PositionTuple cur_hop = new PositionTuple(node, next_port);
+			if(history.contains(cur_hop)) {
+				paths.add(printPath(hops, cur_hop, "loop"));
+				continue;
+			}
+			List<PositionTuple> new_history = new ArrayList<>(history);
+			new_history.add(cur_hop);
+			List<String> new_hops = new ArrayList<>(hops);
+			new_hops.add(cur_hop + rule);
+			
+			Set<PositionTuple> connected_pts = net.getConnectedPorts(cur_hop);
+			if(connected_pts == null) {
+				paths.add(printPath(new_hops, null, "delivered"));
+				continue;
+			}
+			for(PositionTuple connected_pt : connected_pts) {
+				List<PositionTuple> next_history = new ArrayList<>(new_history);
+				next_history.add(connected_pt);
+				List<String> next_hops = new ArrayList<>(new_hops);
+				next_hops.add(connected_pt.toString());
+				String next_node = connected_pt.getDeviceName();
+				tracePacket(next_node, getElement(next_node), connected_pt.getPortName(), 
+						fields, next_history, next_hops, paths);
+			}
+		}
+	}
+	
+	private String printPath(List<String> hops, PositionTuple last_hop, String fate) {
+		StringBuilder path = new StringBuilder();
+		for(String hop : hops) {
+			path.append(hop).append(" ");
+		}
+		if(last_hop != null) path.append(last_hop).append(" ");
+		return path.append(": ").append(fate).toString();
+	}
+	
 	private Element getElement(String node_name) {
 		if(net.isACLNode(node_name)) return net.getACLElement(node_name);
 		return net.getElement(node_name);
@@ -38,6 +38,7 @@
  */
 package apkeep.checker;
 
+import java.util.BitSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -45,10 +46,10 @@ import common.PositionTuple;
 
 public class ForwardingGraph {
 
-	Map<PositionTuple, Set<Integer>> port_aps;
+	Map<PositionTuple, BitSet> port_aps;
 	Map<String, Set<PositionTuple>> node_ports;
 
-	public ForwardingGraph(Map<PositionTuple, Set<Integer>> port_aps, 
+	public ForwardingGraph(Map<PositionTuple, BitSet> port_aps, 
 			Map<String, Set<PositionTuple>> node_ports) {
 		
 		this.port_aps = port_aps;
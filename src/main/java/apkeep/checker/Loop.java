@@ -38,21 +38,29 @@
  */
 package apkeep.checker;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
 import apkeep.core.APKeeper;
+import common.BDDACLWrapper;
 import common.PositionTuple;
 
 public class Loop {
+	BDDACLWrapper bdd_engine;
 	Set<Integer> apset;
 	List<PositionTuple> path;
+	List<Loop> same_loops; // the same loop found by other engines
+	List<String> rules; // the original rules forwarding the loop, when they are compressed
 	
-	public Loop(Set<Integer> rewrited_aps, List<PositionTuple> history, PositionTuple cur_hop)
+	public Loop(BDDACLWrapper bdd_engine, Set<Integer> rewrited_aps, List<PositionTuple> history, PositionTuple cur_hop)
 	{
+		this.bdd_engine = bdd_engine;
 		apset = rewrited_aps;
 		path = history;
+		same_loops = new ArrayList<>();
+		rules = new ArrayList<>();
 		while(path.size() > 0) {
 			if(!path.get(0).equals(cur_hop)) {
 				path.remove(0);
@@ -63,26 +71,30 @@ public class Loop {
 	
 	public String toString()
 	{
-		HashSet<String> prefixes = APKeeper.getAPPrefixes(apset);
+		HashSet<String> prefixes = APKeeper.getAPPrefixes(bdd_engine, apset);
+		for (Loop loop : same_loops) {
+			prefixes.addAll(APKeeper.getAPPrefixes(loop.bdd_engine, loop.apset));
+		}
 		String loop = "loop found for " + prefixes + ":\n";
 		for (int i=0; i<path.size(); i++) {
 			loop += path.get(i) + " ";
 		}
+		for (String rule : rules) {
+			loop += "\n" + rule;
+		}
 		return "++++++++++++++++++++++++++++++\n" 
 				+ loop 
 				+ "\n++++++++++++++++++++++++++++++"; 
 	}
 	
-	@Override
-	public int hashCode(){
-		return 0;
+	public void setRules(List<String> rules) {
+		this.rules = rules;
 	}
 	
-	@Override
-	public boolean equals (Object o) 
-	{
-		Loop loop = (Loop) o;
-		//if (!apset.equals(loop.apset)) return false;
+	/**
+	 * @return whether the loops go through the same ports, from whichever port they start
+	 */
+	public boolean hasSamePath(Loop loop) {
 		if (path.size() != loop.path.size()) return false;
 		int i;
 		PositionTuple start = loop.path.get(0);
@@ -96,6 +108,30 @@ public class Loop {
 				return false;
 			}
 		}
+		return true;
+	}
+	
+	/**
+	 * add the headers of the same loop, which may be found by another engine, e.g., of another shard
+	 */
+	public void merge(Loop loop) {
+		if (bdd_engine == loop.bdd_engine) apset.addAll(loop.apset);
+		else same_loops.add(loop);
+	}
+	
+	@Override
+	public int hashCode(){
+		return 0;
+	}
+	
+	@Override
+	public boolean equals (Object o) 
+	{
+		Loop loop = (Loop) o;
+		// the APs of loops found by different engines are not comparable
+		if (bdd_engine != loop.bdd_engine) return false;
+		//if (!apset.equals(loop.apset)) return false;
+		if (!hasSamePath(loop)) return false;
 		// the loop already exists, update the AP set for this loop
 		apset.addAll(loop.apset);
 		return true;
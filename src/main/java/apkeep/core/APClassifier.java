@@ -0,0 +1,266 @@
+/**
+ * APKeep
+ * 
+ * Copyright (c) 2020 ANTS Lab, Xi'an Jiaotong University. All rights reserved.
+ * Developed by: PENG ZHANG and XU LIU.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * with the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimers.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimers in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the Xi'an Jiaotong University nor the names of the
+ * developers may be used to endorse or promote products derived from this
+ * Software without specific prior written permission.
+ * 
+ * 4. Any report or paper describing results derived from using any part of this
+ * Software must cite the following publication of the developers: Peng Zhang,
+ * Xu Liu, Hongkun Yang, Ning Kang, Zhengchang Gu, and Hao Li, APKeep: Realtime 
+ * Verification for Real Networks, In 17th USENIX Symposium on Networked Systems
+ * Design and Implementation (NSDI 20), pp. 241-255. 2020.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH
+ * THE SOFTWARE.
+ */
+package apkeep.core;
+
+import java.util.Arrays;
+
+import apkeep.utils.IntIntHashMap;
+import common.BDDACLWrapper;
+import jdd.bdd.BDD;
+
+/**
+ * Maps a concrete packet header to the slot of the AP containing it.
+ * 
+ * The classifier is a decision diagram over the BDD variables whose 
+ * leaves are AP slots, kept in sync with the splits and merges of APs. 
+ * A lookup follows one path of the diagram, reading at most one bit 
+ * per header bit, without touching the BDD table.
+ */
+public class APClassifier {
+	private final static int VAR_TERMINAL = Integer.MAX_VALUE;
+	private final static int EMPTY = -1;
+	private final static int MISS = Integer.MIN_VALUE;
+	
+	private BDD bdd; // only read when the APs change
+	
+	/*
+	 * the nodes of the diagram, leaves are encoded as -(slot+1)
+	 */
+	private int[] node_var;
+	private int[] node_low;
+	private int[] node_high;
+	private int node_number;
+	private int[] unique;
+	private int root;
+	private int compact_threshold;
+	
+	/*
+	 * the carve results of the current move, entries of earlier moves count as empty
+	 */
+	private long[] cache_key;
+	private int[] cache_result;
+	private int[] cache_move;
+	private int cache_number;
+	private int move;
+	
+	public APClassifier(BDD thebdd, int slot) {
+		bdd = thebdd;
+		initTable(1024);
+		root = leaf(slot);
+		initCache(1 << 12);
+		move = 0;
+	}
+	
+	private void initTable(int capacity) {
+		node_var = new int[capacity];
+		node_low = new int[capacity];
+		node_high = new int[capacity];
+		node_number = 0;
+		unique = new int[capacity * 2];
+		Arrays.fill(unique, EMPTY);
+		compact_threshold = capacity;
+	}
+	
+	private static int leaf(int slot) {
+		return -slot - 1;
+	}
+	
+	/**
+	 * @param header - the value of each BDD variable, see BDDACLWrapper.encodeHeader
+	 * @return the slot of the AP containing the header
+	 */
+	public int classify(int[] header) {
+		int node = root;
+		while (node >= 0) {
+			node = header[node_var[node]] == 0 ? node_low[node] : node_high[node];
+		}
+		return -node - 1;
+	}
+	
+	/**
+	 * the packets of region, all held by the AP in from_slot, move to the AP in to_slot
+	 */
+	public void moveRegion(int region, int from_slot, int to_slot) {
+		move ++;
+		cache_number = 0;
+		root = carve(root, region, leaf(from_slot), leaf(to_slot));
+		if (node_number > compact_threshold) {
+			compact();
+		}
+	}
+	
+	public int size() {
+		return node_number;
+	}
+	
+	private int carve(int node, int region, int from, int to) {
+		if (region == BDDACLWrapper.BDDFalse) return node;
+		if (node < 0) {
+			if (node != from) return node;
+			if (region == BDDACLWrapper.BDDTrue) return to;
+		}
+		
+		long key = ((long) node << 32) | (region & 0xffffffffL);
+		int cached = getCache(key);
+		if (cached != MISS) return cached;
+		
+		int node_v = node < 0 ? VAR_TERMINAL : node_var[node];
+		int region_v = region == BDDACLWrapper.BDDTrue ? VAR_TERMINAL : bdd.getVar(region);
+		int v = Math.min(node_v, region_v);
+		
+		int n_low = node_v == v ? node_low[node] : node;
+		int n_high = node_v == v ? node_high[node] : node;
+		int r_low = region_v == v ? bdd.getLow(region) : region;
+		int r_high = region_v == v ? bdd.getHigh(region) : region;
+		
+		int low = carve(n_low, r_low, from, to);
+		int high = carve(n_high, r_high, from, to);
+		int res = mk(v, low, high);
+		putCache(key, res);
+		return res;
+	}
+	
+	private void initCache(int capacity) {
+		cache_key = new long[capacity];
+		cache_result = new int[capacity];
+		cache_move = new int[capacity];
+		cache_number = 0;
+	}
+	
+	private int cacheIndex(long key) {
+		return (int) ((key ^ (key >>> 29)) * 0x9E3779B1L) & (cache_key.length - 1);
+	}
+	
+	private int getCache(long key) {
+		int index = cacheIndex(key);
+		while (cache_move[index] == move) {
+			if (cache_key[index] == key) return cache_result[index];
+			index = (index + 1) & (cache_key.length - 1);
+		}
+		return MISS;
+	}
+	
+	private void putCache(long key, int result) {
+		if (cache_number * 2 >= cache_key.length) {
+			long[] old_key = cache_key;
+			int[] old_result = cache_result;
+			int[] old_move = cache_move;
+			initCache(old_key.length * 2);
+			for (int i=0; i<old_key.length; i++) {
+				if (old_move[i] == move) putCache(old_key[i], old_result[i]);
+			}
+		}
+		int index = cacheIndex(key);
+		while (cache_move[index] == move) {
+			index = (index + 1) & (cache_key.length - 1);
+		}
+		cache_key[index] = key;
+		cache_result[index] = result;
+		cache_move[index] = move;
+		cache_number ++;
+	}
+	
+	private int hash(int var, int low, int high) {
+		int h = var * 12582917 + low * 4256249 + high * 741457;
+		h ^= h >>> 15;
+		return h & (unique.length - 1);
+	}
+	
+	private int mk(int var, int low, int high) {
+		if (low == high) return low;
+		int index = hash(var, low, high);
+		while (unique[index] != EMPTY) {
+			int node = unique[index];
+			if (node_var[node] == var && node_low[node] == low && node_high[node] == high) {
+				return node;
+			}
+			index = (index + 1) & (unique.length - 1);
+		}
+		if (node_number == node_var.length) {
+			grow();
+			return mk(var, low, high);
+		}
+		int node = node_number++;
+		node_var[node] = var;
+		node_low[node] = low;
+		node_high[node] = high;
+		unique[index] = node;
+		return node;
+	}
+	
+	private void grow() {
+		int capacity = node_var.length * 2;
+		node_var = Arrays.copyOf(node_var, capacity);
+		node_low = Arrays.copyOf(node_low, capacity);
+		node_high = Arrays.copyOf(node_high, capacity);
+		unique = new int[capacity * 2];
+		Arrays.fill(unique, EMPTY);
+		for (int node=0; node<node_number; node++) {
+			int index = hash(node_var[node], node_low[node], node_high[node]);
+			while (unique[index] != EMPTY) {
+				index = (index + 1) & (unique.length - 1);
+			}
+			unique[index] = node;
+		}
+	}
+	
+	/*
+	 * drop the nodes no longer reachable from the root
+	 */
+	private void compact() {
+		int[] old_var = node_var;
+		int[] old_low = node_low;
+		int[] old_high = node_high;
+		int capacity = node_var.length;
+		initTable(capacity);
+		root = copy(root, old_var, old_low, old_high, new IntIntHashMap());
+		compact_threshold = Math.max(capacity, node_number * 2);
+	}
+	
+	private int copy(int node, int[] old_var, int[] old_low, int[] old_high, IntIntHashMap copied) {
+		if (node < 0) return node;
+		int res = copied.get(node);
+		if (res >= 0) return res;
+		int low = copy(old_low[node], old_var, old_low, old_high, copied);
+		int high = copy(old_high[node], old_var, old_low, old_high, copied);
+		res = mk(old_var[node], low, high);
+		copied.put(node, res);
+		return res;
+	}
+}
@@ -38,7 +38,12 @@
  */
 package apkeep.core;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -50,6 +55,11 @@ import apkeep.elements.NATElement;
 import apkeep.exception.APNotFoundException;
 import apkeep.exception.APSetNotFoundException;
 import apkeep.exception.MergeSelfException;
+import apkeep.utils.APPrefixIndex;
+import apkeep.utils.CheckpointReader;
+import apkeep.utils.CheckpointWriter;
+import apkeep.utils.IntHashSet;
+import apkeep.utils.IntIntHashMap;
 import apkeep.utils.Logger;
 import apkeep.utils.Parameters;
 import common.ACLRule;
@@ -60,93 +70,359 @@ import jdd.bdd.BDD;
 
 /**
  * Computes Atomic Predicates using BDDs.
+ * 
+ * Each AP is identified by a dense slot number besides its BDD node, 
+ * so that the PPM can be kept in bitsets and primitive int sets.
+ * A slot is recycled once its AP is merged into another one; 
+ * when an AP splits, the first part takes over the slot of the origin.
  */
 public class APKeeper {
-	private final static boolean MergeAP = Parameters.MergeAP;
+	private final boolean MergeAP;
+	
+	private BDDACLWrapper bddengine;
+	private Parameters parameters;
+	private Logger logger;
+	
+	/*
+	 * the dense AP id layer
+	 */
+	private BitSet AP; // the slots in use
+	private int ap_number;
+	private int[] slot_bdd;
+	private IntIntHashMap bdd_slot;
+	private int slot_number;
+	private int[] free_slots;
+	private int free_number;
+	private APPrefixIndex ap_index; // narrows down the APs intersecting a predicate
+	private APPrefixIndex ap_index6; // the same for the v6 packets of the APs, when there are v6 packets
+	private APClassifier classifier; // maps a concrete header to its AP
 	
-	public static BDDACLWrapper bddengine;
-	private Set<Integer> AP;
+	private ArrayList<Element> elements; // indexed by element id
+	ArrayList<NATElement> nat_elements;
+	ArrayList<ACLElement> acl_elements;
 	
-	private Map<String, Element> elements;
-	int element_number = 0;
-	HashMap<String, Integer> element_ids;
-	HashMap<Integer, String> id_element;
-	HashSet<String> nat_names;
+	ArrayList<PortVector> ap_ports; // indexed by AP slot, the APs of a vector are kept in the vector
+	PortVectorTable port_vectors;
+	HashSet<PortVector> ports_to_merge;
 	
-	HashMap<Integer, ArrayList<String>> ap_ports;
-	HashMap<ArrayList<String>, HashSet<Integer>> ports_aps;	
-	HashSet<ArrayList<String>> ports_to_merge;
+	private int slice_bdd; // the headers the rules are restricted to
 	
 	private int mergeable_aps = 0;
+	private MergeController merge_controller;
 	HashMap<String,Integer> cachePrefixBDD;
 	
-	public APKeeper(BDDACLWrapper bdd_engine) {
+	public APKeeper(BDDACLWrapper bdd_engine, Parameters parameters, Logger logger) {
 		bddengine = bdd_engine;
-		AP = new HashSet<Integer>();
+		this.parameters = parameters;
+		this.logger = logger;
+		MergeAP = parameters.MergeAP;
+		
+		AP = new BitSet();
+		ap_number = 0;
+		slot_bdd = new int[64];
+		bdd_slot = new IntIntHashMap();
+		slot_number = 0;
+		free_slots = new int[64];
+		free_number = 0;
+		ap_index = new APPrefixIndex();
 		
-		element_ids = new HashMap<String, Integer>();
-		id_element = new HashMap<>();
-		elements = new HashMap<String, Element>();
-		nat_names = new HashSet<String>();
+		elements = new ArrayList<Element>();
+		nat_elements = new ArrayList<NATElement>();
+		acl_elements = new ArrayList<ACLElement>();
 		
-		ap_ports = new HashMap<Integer, ArrayList<String>>();
-		ports_aps = new HashMap<ArrayList<String>, HashSet<Integer>>();	
-		ports_to_merge = new HashSet<ArrayList<String>>();
+		ap_ports = new ArrayList<PortVector>();
+		port_vectors = new PortVectorTable();
+		ports_to_merge = new HashSet<PortVector>();
+		merge_controller = new MergeController();
 		
 		cachePrefixBDD = new HashMap<>();
+		slice_bdd = BDDACLWrapper.BDDTrue;
+		if (parameters.IPV6) {
+			ap_index6 = new APPrefixIndex(BDDACLWrapper.ip6CoverBits);
+			// the v4 rules are restricted to the v4 packets
+			slice_bdd = bddengine.diff(BDDACLWrapper.BDDTrue, bddengine.getIPv6Packets());
+		}
+	}
+	
+	public Parameters getParameters() {
+		return parameters;
+	}
+	
+	public BDDACLWrapper getBDDEngine() {
+		return bddengine;
+	}
+	
+	public Logger getLogger() {
+		return logger;
 	}
 	
-	public void addElement(String ename, Element e) {
-		elements.put(ename, e);
-		element_ids.put(ename, element_number);
-		id_element.put(element_number, ename);
-		element_number ++;
+	/**
+	 * @return the id of the element
+	 */
+	public int addElement(String ename, Element e) {
+		elements.add(e);
+		if (e instanceof NATElement) {
+			nat_elements.add((NATElement) e);
+		}
+		else if (e instanceof ACLElement) {
+			acl_elements.add((ACLElement) e);
+		}
+		return elements.size() - 1;
 	}
 	
 	public void initialize() {
-		int element_number = elements.keySet().size();
-		ArrayList<String> ports = new ArrayList<String>(element_number);
-		HashSet<Integer> aps = new HashSet<Integer>();
+		// all packets are held by port 0 of each element, i.e., default or deny
+		PortVector ports = port_vectors.getDefault();
 		
-		for (int i=0; i<element_number; i++) {
-			ports.add("default");
-		}
-		for(String ename : elements.keySet()) {
-			Element e = elements.get(ename);
-			int element_id = element_ids.get(ename);
-			if (e instanceof ACLElement) {
-				ports.set(element_id, "deny");
+		int slot = allocateSlot(BDDACLWrapper.BDDTrue);
+		ap_ports.set(slot, ports);
+		ports.aps.add(slot);
+		
+		classifier = new APClassifier(bddengine.getBDD(), slot);
+	}
+	
+	/**
+	 * write the APs with their slots and port vectors, and the prefix BDD cache
+	 */
+	public void writeCheckpoint(CheckpointWriter out) throws IOException {
+		out.writeInt(slot_number);
+		out.writeInt(ap_number);
+		for (int slot = AP.nextSetBit(0); slot >= 0; slot = AP.nextSetBit(slot+1)) {
+			out.writeInt(slot);
+			out.writeBDD(slot_bdd[slot]);
+			PortVector ports = ap_ports.get(slot);
+			out.writeInt(ports.size());
+			for (int index=0; index<ports.size(); index++) {
+				out.writeInt(ports.elementAt(index));
+				out.writeInt(ports.portAt(index));
 			}
-			else if (e instanceof NATElement) {
-				nat_names.add(ename);
+		}
+		
+		out.writeInt(cachePrefixBDD.size());
+		for (Map.Entry<String, Integer> entry : cachePrefixBDD.entrySet()) {
+			out.writeString(entry.getKey());
+			out.writeBDD(entry.getValue());
+		}
+	}
+	
+	/**
+	 * restore the state written by writeCheckpoint, the elements must be added already
+	 */
+	public void readCheckpoint(CheckpointReader in) throws IOException {
+		AP.clear();
+		ap_number = 0;
+		bdd_slot = new IntIntHashMap();
+		ap_index = new APPrefixIndex();
+		if (ap_index6 != null) ap_index6 = new APPrefixIndex(BDDACLWrapper.ip6CoverBits);
+		port_vectors = new PortVectorTable();
+		ports_to_merge.clear();
+		mergeable_aps = 0;
+		
+		slot_number = in.readInt();
+		slot_bdd = new int[Math.max(64, slot_number)];
+		ap_ports = new ArrayList<PortVector>(Collections.<PortVector>nCopies(slot_number, null));
+		int ap_num = in.readInt();
+		for (int i=0; i<ap_num; i++) {
+			int slot = in.readInt();
+			int ap = in.readBDD();
+			slot_bdd[slot] = ap;
+			bdd_slot.put(ap, slot);
+			indexAP(slot, ap);
+			AP.set(slot);
+			ap_number ++;
+			
+			PortVector ports = port_vectors.getDefault();
+			int size = in.readInt();
+			for (int index=0; index<size; index++) {
+				PortVector next = port_vectors.getWithPort(ports, in.readInt(), in.readInt());
+				// drop the intermediate vectors held by no AP
+				if (ports.aps.isEmpty()) port_vectors.release(ports);
+				ports = next;
 			}
+			ap_ports.set(slot, ports);
+			if (!ports.aps.isEmpty()) mergeable_aps ++;
+			ports.aps.add(slot);
+			if (MergeAP && ports.aps.size() == 2) ports_to_merge.add(ports);
 		}
 		
-		ap_ports.put(BDDACLWrapper.BDDTrue, ports);
+		free_number = 0;
+		for (int slot = AP.nextClearBit(0); slot < slot_number; slot = AP.nextClearBit(slot+1)) {
+			if (free_number == free_slots.length) {
+				free_slots = Arrays.copyOf(free_slots, free_slots.length * 2);
+			}
+			free_slots[free_number++] = slot;
+		}
 		
-		aps.add(BDDACLWrapper.BDDTrue);
-		ports_aps.put(ports, aps);
+		int first = AP.nextSetBit(0);
+		classifier = new APClassifier(bddengine.getBDD(), first);
+		for (int slot = AP.nextSetBit(first+1); slot >= 0; slot = AP.nextSetBit(slot+1)) {
+			classifier.moveRegion(slot_bdd[slot], first, slot);
+		}
 		
-		AP.add(BDDACLWrapper.BDDTrue);
+		cachePrefixBDD.clear();
+		int cache_size = in.readInt();
+		for (int i=0; i<cache_size; i++) {
+			String prefix = in.readString();
+			cachePrefixBDD.put(prefix, in.readBDD());
+		}
+	}
+	
+	/*
+	 * take a free slot (or a new one) for the AP
+	 */
+	private int allocateSlot(int ap) {
+		int slot;
+		if (free_number > 0) {
+			slot = free_slots[--free_number];
+		}
+		else {
+			slot = slot_number++;
+			if (slot == slot_bdd.length) {
+				slot_bdd = Arrays.copyOf(slot_bdd, slot_bdd.length * 2);
+			}
+			ap_ports.add(null);
+		}
+		slot_bdd[slot] = ap;
+		bdd_slot.put(ap, slot);
+		indexAP(slot, ap);
+		AP.set(slot);
+		ap_number ++;
+		return slot;
+	}
+	
+	private void releaseSlot(int slot) {
+		bdd_slot.remove(slot_bdd[slot]);
+		unindexAP(slot);
+		AP.clear(slot);
+		ap_ports.set(slot, null);
+		ap_number --;
+		if (free_number == free_slots.length) {
+			free_slots = Arrays.copyOf(free_slots, free_slots.length * 2);
+		}
+		free_slots[free_number++] = slot;
+	}
+	
+	private void rebindSlot(int slot, int ap) {
+		bdd_slot.remove(slot_bdd[slot]);
+		slot_bdd[slot] = ap;
+		bdd_slot.put(ap, slot);
+		unindexAP(slot);
+		indexAP(slot, ap);
+	}
+	
+	/*
+	 * the v4 and v6 packets of an AP are indexed apart, by the cover of each part
+	 */
+	private void indexAP(int slot, int ap) {
+		int version = ap_index6 == null ? 4 : bddengine.getIPVersion(ap);
+		if (version != 6) {
+			ap_index.add(slot, bddengine.getDstIPCover(ap));
+		}
+		if (version != 4) {
+			ap_index6.add(slot, bddengine.getDstIP6Cover(ap));
+		}
+	}
+	
+	private void unindexAP(int slot) {
+		ap_index.remove(slot);
+		if (ap_index6 != null) ap_index6.remove(slot);
 	}
 	
 	public boolean hasAP(int ap){
-		return AP.contains(ap);
+		return bdd_slot.containsKey(ap);
+	}
+	
+	/**
+	 * @param ap - the BDD node of an AP
+	 * @return the slot of the AP, or -1 if it is not an AP
+	 */
+	public int getAPSlot(int ap) {
+		return bdd_slot.get(ap);
+	}
+	
+	/**
+	 * @param ap_slot - the slot of an AP
+	 * @return the BDD node of the AP
+	 */
+	public int getAPBDD(int ap_slot) {
+		return slot_bdd[ap_slot];
+	}
+	
+	public HashSet<Integer> getAPBDDs(BitSet ap_slots) {
+		HashSet<Integer> aps = new HashSet<Integer>();
+		for (int slot = ap_slots.nextSetBit(0); slot >= 0; slot = ap_slots.nextSetBit(slot+1)) {
+			aps.add(slot_bdd[slot]);
+		}
+		return aps;
+	}
+	
+	public HashSet<Integer> getAPBDDs(IntHashSet ap_slots) {
+		HashSet<Integer> aps = new HashSet<Integer>();
+		for (int slot : ap_slots.toArray()) {
+			aps.add(slot_bdd[slot]);
+		}
+		return aps;
+	}
+	
+	/**
+	 * @return a copy of the slots of all APs
+	 */
+	public BitSet getAPSlots() {
+		return (BitSet) AP.clone();
 	}
 	
 	public int getAPNum() {
-		return AP.size();
+		return ap_number;
+	}
+	
+	/**
+	 * @param header - a concrete header, see BDDACLWrapper.encodeHeader
+	 * @return the slot of the AP containing the header
+	 */
+	public int classify(int[] header) {
+		return classifier.classify(header);
+	}
+	
+	/**
+	 * @return the slots of the APs which may intersect the predicate, 
+	 *         a superset of the APs actually intersecting it
+	 */
+	public BitSet getCandidateAPs(int pred) {
+		int version = ap_index6 == null ? 4 : bddengine.getIPVersion(pred);
+		if (version == 4) {
+			return ap_index.getCandidates(bddengine.getDstIPCover(pred));
+		}
+		if (version == 6) {
+			return ap_index6.getCandidates(bddengine.getDstIP6Cover(pred));
+		}
+		BitSet candidates = ap_index.getCandidates(bddengine.getDstIPCover(pred));
+		candidates.or(ap_index6.getCandidates(bddengine.getDstIP6Cover(pred)));
+		return candidates;
+	}
+	
+	/**
+	 * @return the port of the element holding the AP, or -1 if the AP does not exist
+	 */
+	public int getAPPort(int element_id, int ap_slot) {
+		if(!AP.get(ap_slot)) return -1;
+		return ap_ports.get(ap_slot).get(element_id);
 	}
 	
-	public Set<PositionTuple> getHoldPorts(int ap) throws Exception {
-		if(!AP.contains(ap)) {
-			throw new APNotFoundException(ap);
+	public Set<PositionTuple> getHoldPorts(int ap_slot) throws Exception {
+		if(!AP.get(ap_slot)) {
+			throw new APNotFoundException(ap_slot);
 		}
 		
 		Set<PositionTuple> pts = new HashSet<>();
-		for(int index=0; index < ap_ports.get(ap).size();index++) {
-			if(ap_ports.get(ap).get(index).equals("default")) continue;
-			pts.add(new PositionTuple(id_element.get(index), ap_ports.get(ap).get(index)));
+		PortVector ports = ap_ports.get(ap_slot);
+		for(int index=0; index < ports.size();index++) {
+			Element e = elements.get(ports.elementAt(index));
+			pts.add(new PositionTuple(e.getName(), e.getPortName(ports.portAt(index))));
+		}
+		for(ACLElement e : acl_elements) {
+			if(ports.get(e.getId()) == 0) {
+				pts.add(new PositionTuple(e.getName(), e.getPortName(0)));
+			}
 		}
 		
 		return pts;
@@ -167,11 +443,13 @@ public class APKeeper {
 		}
 		else if ( PredicateBDD == BDDACLWrapper.BDDTrue)
 		{
-			return new HashSet<Integer>(AP);
+			return getAPBDDs(AP);
 		}
 
-		for(int oneap : AP)
+		BitSet candidates = getCandidateAPs(PredicateBDD);
+		for(int slot = candidates.nextSetBit(0); slot >= 0; slot = candidates.nextSetBit(slot+1))
 		{
+			int oneap = slot_bdd[slot];
 			if(bddengine.getBDD().and(oneap, PredicateBDD) != BDDACLWrapper.BDDFalse)
 			{
 				apexp.add(oneap);
@@ -179,7 +457,23 @@ public class APKeeper {
 		}
 		return apexp;
 	}
-	
+
+	/**
+	 * @return the APs among the given ones overlapping a predicate
+	 */
+	public BitSet getOverlapAPs(int PredicateBDD, BitSet ap_slots) {
+		BitSet overlaps = getCandidateAPs(PredicateBDD);
+		overlaps.and(ap_slots);
+		for(int slot = overlaps.nextSetBit(0); slot >= 0; slot = overlaps.nextSetBit(slot+1))
+		{
+			if(bddengine.getBDD().and(slot_bdd[slot], PredicateBDD) == BDDACLWrapper.BDDFalse)
+			{
+				overlaps.clear(slot);
+			}
+		}
+		return overlaps;
+	}
+
 	/**
 	 * add one predicate and recompute APs
 	 * @throws Exception 
@@ -191,9 +485,11 @@ public class APKeeper {
 		int predneg = thebdd.not(pred);
 		thebdd.ref(predneg);
 
-		HashSet<Integer> oldList = new HashSet<Integer>(AP);
+		// APs disjoint from pred stay untouched
+		int[] oldList = getCandidateAPs(pred).stream().toArray();
 
-		for (int oldap : oldList) {
+		for (int slot : oldList) {
+			int oldap = slot_bdd[slot];
 			int parta = thebdd.and(pred, oldap);
 			if(parta != BDDACLWrapper.BDDFalse) {
 				int partb = thebdd.and(predneg, oldap);
@@ -210,7 +506,7 @@ public class APKeeper {
 			return cachePrefixBDD.get(prefix);
 		}
 		else {
-			int prefixbdd = bddengine.encodeDstIPPrefix(destip, prefixlen);
+			int prefixbdd = restrictToSlice(bddengine.encodeDstIPPrefix(destip, prefixlen));
 			cachePrefixBDD.put(prefix, prefixbdd);
 			return prefixbdd;
 		}
@@ -223,38 +519,85 @@ public class APKeeper {
 		}
 	}
 	
+	public int encodePrefix6BDD(long destip_high, long destip_low, int prefixlen) {
+		String prefix = destip_high + " " + destip_low + " " + prefixlen;
+		if (cachePrefixBDD.containsKey(prefix)) {
+			return cachePrefixBDD.get(prefix);
+		}
+		else {
+			int prefixbdd = bddengine.encodeDstIP6Prefix(destip_high, destip_low, prefixlen);
+			cachePrefixBDD.put(prefix, prefixbdd);
+			return prefixbdd;
+		}
+	}
+	
+	public void removePrefix6BDD(long destip_high, long destip_low, int prefixlen) {
+		cachePrefixBDD.remove(destip_high + " " + destip_low + " " + prefixlen);
+	}
+	
 	public int encodeACLBDD(ACLRule rule) {
-		return bddengine.ConvertACLRule(rule);
+		return restrictToSlice(bddengine.ConvertACLRule(rule));
+	}
+	
+	/**
+	 * restrict the rules encoded from now on to a slice of the header space, 
+	 * so that the headers outside the slice stay at the default ports
+	 */
+	public void setSlice(int slice) {
+		bddengine.deref(slice_bdd);
+		slice_bdd = ap_index6 == null ? bddengine.ref(slice) : bddengine.diff(slice, bddengine.getIPv6Packets());
+	}
+	
+	private int restrictToSlice(int match_bdd) {
+		if (slice_bdd == BDDACLWrapper.BDDTrue) return match_bdd;
+		int restricted = bddengine.and(match_bdd, slice_bdd);
+		bddengine.deref(match_bdd);
+		return restricted;
+	}
+	
+	/**
+	 * @return the number of APs overlapping the predicate
+	 */
+	public int getAPNum(int PredicateBDD) {
+		int ap_num = 0;
+		BitSet candidates = getCandidateAPs(PredicateBDD);
+		for(int slot = candidates.nextSetBit(0); slot >= 0; slot = candidates.nextSetBit(slot+1))
+		{
+			if(bddengine.getBDD().and(slot_bdd[slot], PredicateBDD) != BDDACLWrapper.BDDFalse)
+			{
+				ap_num++;
+			}
+		}
+		return ap_num;
 	}
 	
-	@SuppressWarnings("unchecked")
 	public void updateSplitAP(int origin, int parta, int partb) throws Exception {
-		Logger.logDebugInfo("Splitting "+origin+" -> " +parta+" + "+partb);
-		if(!AP.contains(origin)) {
+		logger.logDebugInfo("Splitting "+origin+" -> " +parta+" + "+partb);
+		int slot = bdd_slot.get(origin);
+		if(slot < 0) {
 			throw new APNotFoundException(origin);
 		}
 
-		AP.remove(origin);
-		AP.add(parta);
-		AP.add(partb);
-		
-		if(ap_ports.containsKey(origin)){
-			ArrayList<String> ports = ap_ports.get(origin);
-			ap_ports.put(parta, ports);
-			ap_ports.put(partb, (ArrayList<String>)ports.clone());
+		// parta inherits the slot of origin
+		rebindSlot(slot, parta);
+		int slotb = allocateSlot(partb);
+		classifier.moveRegion(partb, slot, slotb);
+		
+		PortVector ports = ap_ports.get(slot);
+		if(ports != null){
+			ap_ports.set(slotb, ports);
+			ports.aps.add(slotb);
 			
-			// update each element's AP set
-			for(String elementname : elements.keySet()){
-				String port = ports.get(element_ids.get(elementname));
-				elements.get(elementname).updateAPSplit(port, origin, parta, partb);
+			// update the AP set of each element holding the AP on a non-default port,
+			// the NAT elements also rewrite the APs on their default ports
+			for(int index=0; index<ports.size(); index++){
+				elements.get(ports.elementAt(index)).updateAPSplit(ports.portAt(index), origin, parta, partb);
+			}
+			for(NATElement nat : nat_elements) {
+				if(ports.get(nat.getId()) == 0) nat.updateAPSplit(0, origin, parta, partb);
 			}
-			
-			ap_ports.remove(origin);
 			
 			if (MergeAP) {
-				ports_aps.get(ports).remove(origin);
-				ports_aps.get(ports).add(parta);
-				ports_aps.get(ports).add(partb);
 				mergeable_aps ++;
 			}
 		}
@@ -266,147 +609,215 @@ public class APKeeper {
 		/*
 		 * enabling Consistent check will affect efficiency
 		 */
-//		if(!ap_ports.keySet().equals(AP)) {
-//			throw new APInconsistentException("merge");
+//		if(bdd_slot.size() != ap_number) {
+//			throw new APInconsistentException("split");
 //		}
 	}
 	
-	public void updateTransferAP(PositionTuple pt1, PositionTuple pt2, int ap) throws APNotFoundException {
-		if(!ap_ports.containsKey(ap)){
-			throw new APNotFoundException(ap);
+	/**
+	 * the AP moves to port to_port of the element
+	 */
+	public void updateTransferAP(int element_id, int to_port, int ap_slot) throws APNotFoundException {
+		if(!AP.get(ap_slot)){
+			throw new APNotFoundException(ap_slot);
 		}
 		
-		ArrayList<String> ports = ap_ports.get(ap);
-
-		if (!MergeAP) {
-			ports.set(element_ids.get(pt2.getDeviceName()), pt2.getPortName());
+		PortVector ports = ap_ports.get(ap_slot);
+		PortVector new_ports = port_vectors.getWithPort(ports, element_id, to_port);
+		if (new_ports == ports) return;
+		
+		IntHashSet aps = ports.aps;
+		aps.remove(ap_slot);
+		
+		// the ap set becomes empty, then drop the vector
+		if (aps.isEmpty()) { 
+			port_vectors.release(ports);
 		}
 		else {
-			HashSet<Integer> aps = ports_aps.get(ports);
-			aps.remove(ap);
-			
-			// the ap set becomes empty, then remove the ports entry
-			if (aps.isEmpty()) { 
-				ports_aps.remove(ports);
-			}
-			// the ap set is non-empty, then clone the ports
-			else {
-				mergeable_aps --;
-				
-				// the ap set has one ap, then do not merge it
-				if (aps.size() == 1) {
-					ports_to_merge.remove(ports);
-				}
-				
-				ports = new ArrayList<String>(ports);
-			}
-			
-			ports.set(element_ids.get(pt2.getDeviceName()), pt2.getPortName());
-			ap_ports.put(ap, ports);
+			mergeable_aps --;
 			
-			if(!ports_aps.containsKey(ports)) {
-				ports_aps.put(ports, new HashSet<Integer>());
-			}
-			aps = ports_aps.get(ports);
-			if (!aps.isEmpty()) {
-				mergeable_aps ++;
-			}
-			aps.add(ap);
-			if (aps.size() == 2) {
-				ports_to_merge.add(ports);
+			// the ap set has one ap, then do not merge it
+			if (aps.size() == 1) {
+				ports_to_merge.remove(ports);
 			}
 		}
+		
+		ap_ports.set(ap_slot, new_ports);
+		
+		aps = new_ports.aps;
+		if (!aps.isEmpty()) {
+			mergeable_aps ++;
+		}
+		aps.add(ap_slot);
+		if (MergeAP && aps.size() == 2) {
+			ports_to_merge.add(new_ports);
+		}
 	}
 	
 	public boolean checkRWMergable(int ap1, int ap2) {
-		if (nat_names.isEmpty()) return true;
-		for (String nat_name : nat_names) {
-			NATElement nat = (NATElement) elements.get(nat_name);
+		if (nat_elements.isEmpty()) return true;
+		for (NATElement nat : nat_elements) {
 			if (!nat.isMergable(ap1, ap2)) return false;
 		}
 		return true;
 	}
 	
-	public boolean checkRWMergable(HashSet<Integer> aps) {
-		if (nat_names.isEmpty()) return true;
-		for (String nat_name : nat_names) {
-			NATElement nat = (NATElement) elements.get(nat_name);
+	public boolean checkRWMergable(IntHashSet ap_slots) {
+		if (nat_elements.isEmpty()) return true;
+		HashSet<Integer> aps = getAPBDDs(ap_slots);
+		for (NATElement nat : nat_elements) {
 			if (!nat.isMergable(aps)) return false;
 		}
 		return true;
 	}
 	
 	public boolean isMergeable() {
-		if(AP.size() > Parameters.TOTAL_AP_THRESHOLD 
-				&& mergeable_aps > Parameters.LOW_MERGEABLE_AP_THRESHOLD) return true;
-		if(mergeable_aps > Parameters.HIGH_MERGEABLE_AP_THRESHOLD) return true;
+		if(parameters.ADAPTIVE_MERGE) {
+			return merge_controller.shouldMerge(mergeable_aps, parameters.LOW_MERGEABLE_AP_THRESHOLD);
+		}
+		if(ap_number > parameters.TOTAL_AP_THRESHOLD 
+				&& mergeable_aps > parameters.LOW_MERGEABLE_AP_THRESHOLD) return true;
+		if(mergeable_aps > parameters.HIGH_MERGEABLE_AP_THRESHOLD) return true;
 		return false;
 	}
 	
-	public int tryMergeAP(int ap) throws Exception {
-		if (!MergeAP) return ap;
+	public int getMergeableAPNum() {
+		return mergeable_aps;
+	}
+	
+	/**
+	 * @return whether some APs having the same ports are left to merge
+	 */
+	public boolean hasPendingMerges() {
+		return !ports_to_merge.isEmpty();
+	}
+	
+	/**
+	 * let the merge controller know the time of an update
+	 */
+	public void recordUpdateTime(long update_time) {
+		merge_controller.recordUpdate(update_time, ap_number, mergeable_aps);
+	}
+	
+	/**
+	 * @return the estimated nanoseconds to merge away one AP, negative before any merge
+	 */
+	public double getMergeCost() {
+		return merge_controller.getMergeCost();
+	}
+	
+	/**
+	 * merge the AP with another AP having the same ports, if any
+	 * @param ap_slot
+	 * @return the slot released by the merge, or -1 if no merge happens;
+	 *         the merged AP keeps ap_slot
+	 * @throws Exception
+	 */
+	public int tryMergeAP(int ap_slot) throws Exception {
+		if (!MergeAP) return -1;
 		
-		ArrayList<String> ports = ap_ports.get(ap);
-		HashSet<Integer> aps = ports_aps.get(ports);
+		PortVector ports = ap_ports.get(ap_slot);
+		IntHashSet aps = ports.aps;
 		if (aps.size()>1) {
-			for(int one_ap: aps) {
-				if (one_ap == ap) continue;
+			int ap = slot_bdd[ap_slot];
+			for(int one_slot: aps.toArray()) {
+				if (one_slot == ap_slot) continue;
+				int one_ap = slot_bdd[one_slot];
 				if (!checkRWMergable(one_ap, ap)) continue;
 				int merged_ap = bddengine.or(ap, one_ap);
 				mergeable_aps--;
-				updateMergeAP(one_ap, ap, merged_ap);
+				updateMergeAP(one_slot, ap_slot, merged_ap);
 				if(aps.size() == 1) {
 					ports_to_merge.remove(ports);
 				}
-				return merged_ap;
+				return one_slot;
 			}
 		}
-		return ap;
+		return -1;
 	}
 	
 	public void tryMergeAPBatch() throws Exception {
 		if (ports_to_merge.isEmpty()) return;
+		long start = System.nanoTime();
+		int ap_num = ap_number;
 		
-		for (ArrayList<String> ports : new ArrayList<>(ports_to_merge)) {
-			HashSet<Integer> aps = ports_aps.get(ports);
-			if(aps.size()<2) {
-				throw new MergeSelfException(aps.toArray()[0]);
+		for (PortVector ports : new ArrayList<>(ports_to_merge)) {
+			tryMergePorts(ports);
+		}
+		merge_controller.recordMerge(System.nanoTime() - start, ap_num - ap_number);
+	}
+	
+	/**
+	 * merge the APs having the same ports, largest groups first, 
+	 * until the time budget is used up; at least one group is merged
+	 * @param budget - the time budget in nanoseconds
+	 * @return whether there are groups left to merge
+	 */
+	public boolean tryMergeAPBatch(long budget) throws Exception {
+		if (ports_to_merge.isEmpty()) return false;
+		long start = System.nanoTime();
+		
+		ArrayList<PortVector> groups = new ArrayList<>(ports_to_merge);
+		Collections.sort(groups, new Comparator<PortVector>() {
+			@Override
+			public int compare(PortVector v1, PortVector v2) {
+				return v2.aps.size() - v1.aps.size();
 			}
-			if (!checkRWMergable(aps)) continue;
-			
-			int[] apsarr = aps.stream().mapToInt(Number::intValue).toArray();
-			int merged_ap = bddengine.OrInBatch(apsarr);
-			mergeable_aps = mergeable_aps - aps.size() + 1;
-			updateMergeAPBatch(merged_ap, aps);
-			ports_to_merge.remove(ports);
+		});
+		int ap_num = ap_number;
+		for (PortVector ports : groups) {
+			tryMergePorts(ports);
+			if (System.nanoTime() - start >= budget) break;
+		}
+		merge_controller.recordMerge(System.nanoTime() - start, ap_num - ap_number);
+		return !ports_to_merge.isEmpty();
+	}
+	
+	private void tryMergePorts(PortVector ports) throws Exception {
+		IntHashSet aps = ports.aps;
+		if(aps.size()<2) {
+			throw new MergeSelfException(slot_bdd[aps.first()]);
+		}
+		if (!checkRWMergable(aps)) return;
+		
+		int[] ap_slots = aps.toArray();
+		int[] apsarr = new int[ap_slots.length];
+		for (int i=0; i<ap_slots.length; i++) {
+			apsarr[i] = slot_bdd[ap_slots[i]];
 		}
+		int merged_ap = bddengine.OrInBatch(apsarr);
+		mergeable_aps = mergeable_aps - aps.size() + 1;
+		updateMergeAPBatch(merged_ap, ap_slots);
+		ports_to_merge.remove(ports);
 	}
 	
-	public void updateMergeAP(int ap1, int ap2, int merged_ap) throws Exception {
-		Logger.logDebugInfo("Merging "+ap1+" + "+ap2+" -> " +merged_ap);
-		if(!AP.contains(ap1)) {
+	/**
+	 * the merged AP takes over slot2, and slot1 is released
+	 */
+	public void updateMergeAP(int slot1, int slot2, int merged_ap) throws Exception {
+		int ap1 = slot_bdd[slot1];
+		int ap2 = slot_bdd[slot2];
+		logger.logDebugInfo("Merging "+ap1+" + "+ap2+" -> " +merged_ap);
+		if(!AP.get(slot1)) {
 			throw new APNotFoundException(ap1);
 		}
-		if(!AP.contains(ap2)) {
+		if(!AP.get(slot2)) {
 			throw new APNotFoundException(ap2);
 		}
-		AP.remove(ap1);
-		AP.remove(ap2);
-		AP.add(merged_ap);
 		
-		ArrayList<String> ports = ap_ports.get(ap1);
-		for(String elementname : elements.keySet()){
-			String port = ports.get(element_ids.get(elementname));
-			elements.get(elementname).updateAPSetMerge(port, merged_ap, ap1, ap2);
+		PortVector ports = ap_ports.get(slot1);
+		for(int index=0; index<ports.size(); index++){
+			elements.get(ports.elementAt(index)).updateAPSetMerge(ports.portAt(index), merged_ap, ap1, ap2);
+		}
+		for(NATElement nat : nat_elements) {
+			if(ports.get(nat.getId()) == 0) nat.updateAPSetMerge(0, merged_ap, ap1, ap2);
 		}
-		ap_ports.remove(ap1);
-		ap_ports.remove(ap2);
-		ap_ports.put(merged_ap, ports);
 		
-		HashSet<Integer> aps = ports_aps.get(ports);
-		aps.remove(ap1);
-		aps.remove(ap2);
-		aps.add(merged_ap);
+		classifier.moveRegion(ap1, slot1, slot2);
+		releaseSlot(slot1);
+		rebindSlot(slot2, merged_ap);
+		
+		ports.aps.remove(slot1);
 		
 		bddengine.deref(ap1);
 		bddengine.deref(ap2);
@@ -414,56 +825,64 @@ public class APKeeper {
 		/*
 		 * enabling Consistent check will affect efficiency
 		 */
-//		if(!ap_ports.keySet().equals(AP)) {
+//		if(bdd_slot.size() != ap_number) {
 //			throw new APInconsistentException("merge");
 //		}
 	}
 	
-	public void updateMergeAPBatch (int merged_ap, HashSet<Integer> aps) throws Exception
+	/**
+	 * the merged AP takes over the first slot, and the others are released
+	 */
+	public void updateMergeAPBatch (int merged_ap, int[] ap_slots) throws Exception
 	{
-		Logger.logDebugInfo("Merging "+aps+" -> " +merged_ap);
-		if(!AP.containsAll(aps)) {
-			throw new APSetNotFoundException(aps);
+		logger.logDebugInfo("Merging "+Arrays.toString(ap_slots)+" -> " +merged_ap);
+		for (int slot : ap_slots) {
+			if(!AP.get(slot)) {
+				throw new APSetNotFoundException(Arrays.toString(ap_slots));
+			}
 		}
 		
-		AP.removeAll(aps);
-		AP.add(merged_ap);
-		
-		ArrayList<String> ports = ap_ports.get(aps.toArray()[0]);
-		ap_ports.put(merged_ap, ports);
-		for(String elementname : elements.keySet()){
-			String port = ports.get(element_ids.get(elementname));
-			elements.get(elementname).updateAPSetMergeBatch(port, merged_ap, aps);
+		PortVector ports = ap_ports.get(ap_slots[0]);
+		for(int index=0; index<ports.size(); index++){
+			elements.get(ports.elementAt(index)).updateAPSetMergeBatch(ports.portAt(index), merged_ap, ap_slots);
 		}
-		for (int ap : aps) {
-			bddengine.deref(ap);
-			ap_ports.remove(ap);
+		for (int i=1; i<ap_slots.length; i++) {
+			classifier.moveRegion(slot_bdd[ap_slots[i]], ap_slots[i], ap_slots[0]);
+			bddengine.deref(slot_bdd[ap_slots[i]]);
+			releaseSlot(ap_slots[i]);
 		}
+		bddengine.deref(slot_bdd[ap_slots[0]]);
+		rebindSlot(ap_slots[0], merged_ap);
 		
-		aps.clear();
-		aps.add(merged_ap);
+		ports.aps.clear();
+		ports.aps.add(ap_slots[0]);
 		
 		/*
 		 * enabling Consistent check will affect efficiency
 		 */
-//		if(!ap_ports.keySet().equals(AP)) {
+//		if(bdd_slot.size() != ap_number) {
 //			throw new APInconsistentException("merge");
 //		}
 	}
 	
-	public static HashSet<String> getAPPrefixes(Set<Integer> aps)
+	public static HashSet<String> getAPPrefixes(BDDACLWrapper bddengine, Set<Integer> aps)
 	{
 		HashSet<String> ip_prefixs = new HashSet<String>();
-		int total_bits = BDDACLWrapper.protocolBits + 2*BDDACLWrapper.portBits+
-				3*BDDACLWrapper.ipBits + BDDACLWrapper.mplsBits + BDDACLWrapper.ip6Bits;
-		int[] header = new int[total_bits];
+		int[] header = new int[bddengine.getBDD().numberOfVariables()];
 		int[] dstip = new int[32];
+		int offset = bddengine.getDstIPVar(BDDACLWrapper.ipBits - 1);
+		int offset6 = bddengine.getDstIP6Var(BDDACLWrapper.ip6Bits - 1);
+		int version_var = bddengine.getBDD().getVar(bddengine.getIPv6Packets());
 
 		for (int ap_origin : aps) {
 			int ap = ap_origin;
 			while (ap != BDDACLWrapper.BDDFalse) {
 				bddengine.getBDD().oneSat(ap, header);
-				int offset = 32+1;
+				// the v6 packets are told apart by the version bit
+				if (header[version_var] == 1) {
+					ap = bddengine.diff(ap, getAPPrefix6(bddengine, header, offset6, ip_prefixs));
+					continue;
+				}
 				int prefix_len = 32;
 				for (int i=0; i<32; i++) {
 					if (header[offset+i] == -1) {
@@ -483,4 +902,20 @@ public class APKeeper {
 		}
 		return ip_prefixs;
 	}
+	
+	/*
+	 * the v6 dst ip prefix of the fixed leading bits of a header
+	 * @return the v6 packets of the prefix
+	 */
+	private static int getAPPrefix6(BDDACLWrapper bddengine, int[] header, int offset6, Set<String> ip_prefixs)
+	{
+		long[] ip = new long[2];
+		int prefix_len = 0;
+		while (prefix_len < BDDACLWrapper.ip6Bits && header[offset6 + prefix_len] != -1) {
+			ip[prefix_len / 64] |= (long) header[offset6 + prefix_len] << (63 - prefix_len % 64);
+			prefix_len ++;
+		}
+		ip_prefixs.add(Utility.IPv6LongsToString(ip[0], ip[1]) + "/" + prefix_len);
+		return bddengine.encodeDstIP6Prefix(ip[0], ip[1], prefix_len);
+	}
 }
@@ -38,22 +38,25 @@
  */
 package apkeep.core;
 
+/**
+ * Packets moving between two ports of an element, the ports are given by their ids
+ */
 public class ChangeItem {
-	private String from_port;
-	private String to_port;
+	private int from_port;
+	private int to_port;
 	private int delta;
 	
-	public ChangeItem(String port1, String port2, int packets) {
+	public ChangeItem(int port1, int port2, int packets) {
 		from_port = port1;
 		to_port = port2;
 		delta = packets;
 	}
 
-	public String getFrom_port() {
+	public int getFrom_port() {
 		return from_port;
 	}
 
-	public String getTo_port() {
+	public int getTo_port() {
 		return to_port;
 	}
 
@@ -61,6 +64,10 @@ public class ChangeItem {
 		return delta;
 	}
 	
+	void setDelta(int packets) {
+		delta = packets;
+	}
+	
 	public String toString() {
 		return "["+delta+"]"+from_port +" -> "+ to_port;
 	}
@@ -0,0 +1,130 @@
+/**
+ * APKeep
+ * 
+ * Copyright (c) 2020 ANTS Lab, Xi'an Jiaotong University. All rights reserved.
+ * Developed by: PENG ZHANG and XU LIU.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * with the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimers.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimers in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the Xi'an Jiaotong University nor the names of the
+ * developers may be used to endorse or promote products derived from this
+ * Software without specific prior written permission.
+ * 
+ * 4. Any report or paper describing results derived from using any part of this
+ * Software must cite the following publication of the developers: Peng Zhang,
+ * Xu Liu, Hongkun Yang, Ning Kang, Zhengchang Gu, and Hao Li, APKeep: Realtime 
+ * Verification for Real Networks, In 17th USENIX Symposium on Networked Systems
+ * Design and Implementation (NSDI 20), pp. 241-255. 2020.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH
+ * THE SOFTWARE.
+ */
+package apkeep.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import common.BDDACLWrapper;
+
+/**
+ * The net changes of a sequence of rule updates on one element.
+ * 
+ * Change items are appended in the order the rules are updated, each one 
+ * relative to the ports after the previous items. The set keeps, for each 
+ * pair of (original port, current port), the packets that moved between 
+ * them, so packets moved back and forth are not moved at all, and the 
+ * PPM is updated once for the whole sequence.
+ */
+public class ChangeSet {
+	private BDDACLWrapper bdd;
+	private Map<Long, ChangeItem> items;
+	
+	public ChangeSet(BDDACLWrapper bdd) {
+		this.bdd = bdd;
+		items = new LinkedHashMap<>();
+	}
+	
+	public boolean isEmpty() {
+		return items.isEmpty();
+	}
+	
+	public void append(List<ChangeItem> change_set) {
+		for (ChangeItem item : change_set) {
+			append(item);
+		}
+	}
+	
+	/**
+	 * the delta of the item is owned by the set afterwards
+	 */
+	public void append(ChangeItem item) {
+		int from_port = item.getFrom_port();
+		int to_port = item.getTo_port();
+		int rest = item.getDelta();
+		
+		// packets already moved to from_port by previous items
+		List<ChangeItem> moved = new ArrayList<>();
+		for (ChangeItem prev : items.values()) {
+			if (prev.getTo_port() == from_port) moved.add(prev);
+		}
+		for (ChangeItem prev : moved) {
+			int intersect = bdd.and(prev.getDelta(), rest);
+			if (intersect == BDDACLWrapper.BDDFalse) continue;
+			prev.setDelta(bdd.diffTo(prev.getDelta(), intersect));
+			rest = bdd.diffTo(rest, intersect);
+			add(prev.getFrom_port(), to_port, intersect);
+			if (rest == BDDACLWrapper.BDDFalse) break;
+		}
+		add(from_port, to_port, rest);
+		
+		Iterator<ChangeItem> it = items.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().getDelta() == BDDACLWrapper.BDDFalse) it.remove();
+		}
+	}
+	
+	private void add(int from_port, int to_port, int delta) {
+		if (delta == BDDACLWrapper.BDDFalse) return;
+		if (from_port == to_port) {
+			// the packets are back to their original port
+			bdd.deref(delta);
+			return;
+		}
+		long key = ((long) from_port << 32) | to_port;
+		ChangeItem item = items.get(key);
+		if (item == null) {
+			items.put(key, new ChangeItem(from_port, to_port, delta));
+		}
+		else {
+			item.setDelta(bdd.orTo(item.getDelta(), delta));
+			bdd.deref(delta);
+		}
+	}
+	
+	/**
+	 * @return the coalesced change items, at most one for each pair of ports
+	 */
+	public List<ChangeItem> getChangeItems() {
+		return new ArrayList<>(items.values());
+	}
+}
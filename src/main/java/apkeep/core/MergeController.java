@@ -0,0 +1,88 @@
+/**
+ * APKeep
+ * 
+ * Copyright (c) 2020 ANTS Lab, Xi'an Jiaotong University. All rights reserved.
+ * Developed by: PENG ZHANG and XU LIU.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * with the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimers.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimers in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the Xi'an Jiaotong University nor the names of the
+ * developers may be used to endorse or promote products derived from this
+ * Software without specific prior written permission.
+ * 
+ * 4. Any report or paper describing results derived from using any part of this
+ * Software must cite the following publication of the developers: Peng Zhang,
+ * Xu Liu, Hongkun Yang, Ning Kang, Zhengchang Gu, and Hao Li, APKeep: Realtime 
+ * Verification for Real Networks, In 17th USENIX Symposium on Networked Systems
+ * Design and Implementation (NSDI 20), pp. 241-255. 2020.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH
+ * THE SOFTWARE.
+ */
+package apkeep.core;
+
+/**
+ * Decides when an APKeeper merges its mergeable APs, in place of the static thresholds.
+ * 
+ * The mergeable APs make every update slower, as more APs are split, 
+ * transferred and checked, while merging them takes time too. Like in ski 
+ * rental, the APs are merged once the update time spent on them since the 
+ * last merge reaches the estimated time to merge them. The update time spent 
+ * on them is the share of mergeable APs in all APs, and the time to merge is 
+ * learned from the previous merges.
+ */
+public class MergeController {
+	private static final double ALPHA = 0.2; // the weight of the latest merge in the estimate
+	
+	private double merge_cost; // estimated nanoseconds to merge away one AP, negative before the first merge
+	private double carry_cost; // nanoseconds spent on mergeable APs since the last merge
+	
+	public MergeController() {
+		merge_cost = -1;
+		carry_cost = 0;
+	}
+	
+	public void recordUpdate(long update_time, int ap_num, int mergeable_aps) {
+		if (ap_num == 0) return;
+		carry_cost += (double) update_time * mergeable_aps / ap_num;
+	}
+	
+	public void recordMerge(long merge_time, int merged_aps) {
+		if (merged_aps > 0) {
+			double cost = (double) merge_time / merged_aps;
+			merge_cost = merge_cost < 0 ? cost : ALPHA * cost + (1 - ALPHA) * merge_cost;
+		}
+		carry_cost = 0;
+	}
+	
+	public boolean shouldMerge(int mergeable_aps, int low_threshold) {
+		if (mergeable_aps == 0) return false;
+		// no estimate yet, start with the static threshold
+		if (merge_cost < 0) return mergeable_aps > low_threshold;
+		return carry_cost >= merge_cost * mergeable_aps;
+	}
+	
+	/**
+	 * @return the estimated nanoseconds to merge away one AP
+	 */
+	public double getMergeCost() {
+		return merge_cost;
+	}
+}
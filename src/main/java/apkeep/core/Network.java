@@ -39,12 +39,15 @@
 package apkeep.core;
 
 import java.io.BufferedReader;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -57,14 +60,21 @@ import apkeep.elements.ForwardElement;
 import apkeep.elements.NATElement;
 import apkeep.exception.ElementNotFoundException;
 import apkeep.rules.Rule;
+import apkeep.utils.CheckpointReader;
+import apkeep.utils.CheckpointWriter;
 import apkeep.utils.Evaluator;
 import apkeep.utils.Logger;
+import apkeep.utils.Parameters;
+import apkeep.utils.UpdateFeed;
+import apkeep.utils.UpdateLog;
 import common.BDDACLWrapper;
 import common.PositionTuple;
 
 public class Network {
 
 	protected String name;
+	protected Parameters parameters;
+	protected Logger logger;
 	protected boolean division_activated = false;
 	protected HashMap<PositionTuple, HashSet<PositionTuple>> topology;
 	
@@ -93,13 +103,25 @@ public class Network {
 
 	private Checker checker;
 	
+	private UpdateWindow update_window; // keeps the last update of each rule until they are applied
+	private List<String> update_batch; // updates waiting to be applied in one batch
+	
+	private long update_sequence; // the number of updates applied since the snapshot
+	private UpdateLog update_log;
+	
 	public Network(String network_name) {
+		this(network_name, new Parameters());
+	}
+	
+	public Network(String network_name, Parameters network_parameters) {
 		name = network_name;
+		parameters = network_parameters;
+		logger = new Logger(network_name);
 		division_activated = false;
 		
 		topology = new HashMap<>();
 		elements = new HashMap<>();
-		bdd_engine = new BDDACLWrapper();
+		bdd_engine = new BDDACLWrapper(parameters.BDD_TABLE_SIZE);
 		
 		fwd_apk = null;
 		acl_apk = null;
@@ -108,8 +130,6 @@ public class Network {
 		nat_element_names = new HashSet<>();
 		
 		new HashMap<>();
-
-		Element.setBDDWrapper(bdd_engine);
 		
 		checker = new Checker(this);
 	}
@@ -124,6 +144,7 @@ public class Network {
 		addNATs(device_nats); // create NATElement and insert it to topology, if any
 		addACLs(device_acls); // create ACLElements, if any
 		addVLANs(vlan_ports); // create VLAN to physic port mapping, if any
+		addPorts(); // create the port dictionary of each element from the topology
 		initializeAPK();
 	}
 	
@@ -132,8 +153,8 @@ public class Network {
 	 */
 	private void initializeAPK()
 	{
-		fwd_apk = new APKeeper(bdd_engine);
-		if(division_activated) acl_apk = new APKeeper(bdd_engine);
+		fwd_apk = new APKeeper(bdd_engine, parameters, logger);
+		if(division_activated) acl_apk = new APKeeper(bdd_engine, parameters, logger);
 
 		for(Element e : elements.values()) {
 			
@@ -143,12 +164,15 @@ public class Network {
 			else {
 				e.setAPC(fwd_apk);
 			}
-			
-			e.initialize();
 		}
 		
+		// the initial AP must have a slot before the elements hold it
 		fwd_apk.initialize();
 		if(division_activated) acl_apk.initialize();
+		
+		for(Element e : elements.values()) {
+			e.initialize();
+		}
 	}
 	
 	private void addElementOrNode(String name) {
@@ -240,6 +264,135 @@ public class Network {
 		}
 	}
 	
+	/*
+	 * intern the ports in the topology, so that the port ids are settled 
+	 * before any rule arrives; ports only seen in rules are added on parsing
+	 */
+	private void addPorts() {
+		for(PositionTuple pt1 : topology.keySet()) {
+			addPort(pt1);
+			for(PositionTuple pt2 : topology.get(pt1)) {
+				addPort(pt2);
+			}
+		}
+	}
+	
+	private void addPort(PositionTuple pt) {
+		Element e = elements.get(pt.getDeviceName());
+		if(e != null) e.addPort(pt.getPortName());
+	}
+	
+	/**
+	 * write a checkpoint of the PPM and the rules of all elements
+	 * @param snapshot - the snapshot the network is initialized from
+	 */
+	public void writeCheckpoint(String file, String snapshot) throws IOException {
+		CheckpointWriter out = new CheckpointWriter(bdd_engine, snapshot, update_sequence);
+		List<String> names = new ArrayList<>(elements.keySet());
+		Collections.sort(names);
+		out.writeInt(names.size());
+		for(String element_name : names) {
+			out.writeString(element_name);
+			elements.get(element_name).writeCheckpoint(out);
+		}
+		fwd_apk.writeCheckpoint(out);
+		if(division_activated) acl_apk.writeCheckpoint(out);
+		out.writeTo(file);
+		// the logged updates are covered by the checkpoint
+		if(update_log != null) update_log.rotate();
+	}
+	
+	/**
+	 * restore a checkpoint on the network initialized from its snapshot
+	 */
+	public void readCheckpoint(CheckpointReader in) throws IOException {
+		in.loadNodes(bdd_engine);
+		update_sequence = in.getSequence();
+		int element_number = in.readInt();
+		if(element_number != elements.size()) {
+			throw new IOException("the checkpoint has " + element_number + " elements, but the network has " + elements.size());
+		}
+		for(int i=0; i<element_number; i++) {
+			String element_name = in.readString();
+			Element e = elements.get(element_name);
+			if(e == null) {
+				throw new IOException("element " + element_name + " of the checkpoint is not found");
+			}
+			e.readCheckpoint(in);
+		}
+		fwd_apk.readCheckpoint(in);
+		if(division_activated) acl_apk.readCheckpoint(in);
+		in.close();
+	}
+	
+	/**
+	 * log the updates applied from now on, the updates logged before are dropped
+	 */
+	public void startUpdateLog(String file) throws IOException {
+		closeUpdateLog();
+		update_log = new UpdateLog(file, parameters.UPDATE_LOG_SYNC_INTERVAL);
+		update_log.rotate();
+	}
+	
+	/**
+	 * replay the updates logged after the restored checkpoint one by one, without the window 
+	 * and the batches, and keep logging to the same file after the last logged update;
+	 * the network is left without a log if the replay fails
+	 * @return the number of updates replayed
+	 */
+	public int recoverFromUpdateLog(Evaluator eva, String file) throws Exception {
+		closeUpdateLog();
+		List<String> updates = UpdateLog.read(file, update_sequence);
+		long last_sequence = update_sequence + updates.size();
+		
+		eva.startExp();
+		for(String update : updates) {
+			updateRule(eva, update);
+		}
+		hardMergeAPBatch();
+		eva.endExp(getAPNum());
+		
+		update_sequence = last_sequence;
+		update_log = new UpdateLog(file, parameters.UPDATE_LOG_SYNC_INTERVAL);
+		return updates.size();
+	}
+	
+	public void closeUpdateLog() throws IOException {
+		if(update_log == null) return;
+		update_log.close();
+		update_log = null;
+	}
+	
+	/*
+	 * only queues the update, the log is written and synced by its own thread
+	 */
+	private void logUpdate(String rule) throws IOException {
+		update_sequence++;
+		if(update_log != null) update_log.append(update_sequence, rule);
+	}
+	
+	/**
+	 * trace a concrete header injected at the device through the current PPM
+	 */
+	public List<String> tracePacket(String device, long[] fields) {
+		return checker.tracePacket(device, fields);
+	}
+	
+	/**
+	 * @return the slot of the forwarding AP containing the concrete header
+	 */
+	public int getFwdAP(int[] header) {
+		return fwd_apk.classify(header);
+	}
+	
+	/**
+	 * @return the slot of the ACL AP containing the concrete header, or -1 without ACLs
+	 */
+	public int getACLAP(int[] header) {
+		if(acl_apk == null) return -1;
+		return acl_apk.classify(header);
+	}
+	
 	public Element getElement(String deviceName) {
 		return elements.get(deviceName);
 	}
@@ -273,8 +426,37 @@ public class Network {
 		}
 	}
 
-	public Set<PositionTuple> getHoldPorts(int ap) throws Exception {
-		return fwd_apk.getHoldPorts(ap);
+	public Set<PositionTuple> getHoldPorts(int ap_slot) throws Exception {
+		return fwd_apk.getHoldPorts(ap_slot);
+	}
+	
+	public HashSet<Integer> getAPBDDs(BitSet ap_slots) {
+		return fwd_apk.getAPBDDs(ap_slots);
+	}
+	
+	/**
+	 * @return the slots of all APs kept by the APKeeper for ACL devices
+	 */
+	public BitSet getACLAPs() {
+		return acl_apk.getAPSlots();
+	}
+	
+	/**
+	 * check whether the forwarding APs and the ACL APs share any packet
+	 */
+	public boolean hasOverlap(BitSet fwd_aps, BitSet acl_aps) {
+		if (fwd_aps.isEmpty() || acl_aps.isEmpty()) {
+			return false;
+		}
+		for (int fwd = fwd_aps.nextSetBit(0); fwd >= 0; fwd = fwd_aps.nextSetBit(fwd+1)) {
+			for (int acl = acl_aps.nextSetBit(0); acl >= 0; acl = acl_aps.nextSetBit(acl+1)) {
+				int intersect = bdd_engine.and(fwd_apk.getAPBDD(fwd), acl_apk.getAPBDD(acl));
+				if (intersect != BDDACLWrapper.BDDFalse) {
+					return true;
+				}
+			}
+		}
+		return false;
 	}
 	
 	public int getAPNum() {
@@ -286,56 +468,289 @@ public class Network {
 		}
 	}
 	
+	/**
+	 * @return the number of APs overlapping the destination IP prefix
+	 */
+	public int getAPNum(long ip_prefix, int prefix_len) {
+		int prefix_bdd = bdd_engine.encodeDstIPPrefix(ip_prefix, prefix_len);
+		int ap_num = fwd_apk.getAPNum(prefix_bdd);
+		if(division_activated) ap_num += acl_apk.getAPNum(prefix_bdd);
+		bdd_engine.deref(prefix_bdd);
+		return ap_num;
+	}
+	
+	/**
+	 * restrict the rules to the destination IP slices, i.e., the prefixes of slice_bits bits numbered by the slices,
+	 * the headers outside the slices are left at the default ports; must be called before any update
+	 */
+	public void restrictToSlices(BitSet slices, int slice_bits) {
+		int slice_bdd = BDDACLWrapper.BDDFalse;
+		for(int slice = slices.nextSetBit(0); slice >= 0; slice = slices.nextSetBit(slice+1)) {
+			int prefix_bdd = bdd_engine.encodeDstIPPrefix((long) slice << (32 - slice_bits), slice_bits);
+			slice_bdd = bdd_engine.orTo(slice_bdd, prefix_bdd);
+			bdd_engine.deref(prefix_bdd);
+		}
+		fwd_apk.setSlice(slice_bdd);
+		if(division_activated) acl_apk.setSlice(slice_bdd);
+		bdd_engine.deref(slice_bdd);
+	}
+	
 	public void run(Evaluator eva, List<String> rules) throws Exception {
-		
+		run(eva, new UpdateFeed(rules));
+	}
+	
+	public void run(Evaluator eva, String ruleFile) throws Exception {
+		run(eva, new UpdateFeed(ruleFile));
+	}
+	
+	private void run(Evaluator eva, UpdateFeed feed) throws Exception {
 		eva.startExp();
+		runPart(eva, feed);
+		endRun(eva);
+	}
+	
+	/**
+	 * apply a part of the updates of a run, which is started by eva.startExp() and ended by endRun,
+	 * e.g., when the shards of a network are rebalanced between the parts
+	 */
+	public void runPart(Evaluator eva, List<String> rules) throws Exception {
+		runPart(eva, new UpdateFeed(rules));
+	}
+	
+	private void runPart(Evaluator eva, UpdateFeed feed) throws Exception {
 		
-		for(String rule : rules) {
-			updateRule(eva, rule);
+		startUpdates();
+		
+		List<String> initial_fib = isColdStart() ? new ArrayList<String>() : null;
+		String rule;
+		while((rule = nextUpdate(eva, feed)) != null) {
+			if(initial_fib != null) {
+				if(rule.startsWith("+ fwd ")) {
+					initial_fib.add(rule);
+					continue;
+				}
+				loadFIB(eva, initial_fib);
+				initial_fib = null;
+			}
+			submitUpdate(eva, rule);
 		}
+		if(initial_fib != null) loadFIB(eva, initial_fib);
 		
-		hardMergeAPBatch();
+		flushUpdates(eva);
+	}
+	
+	/*
+	 * while no update is waiting, the merges left are caught up with, 
+	 * and the held updates are flushed once their time is up
+	 */
+	private String nextUpdate(Evaluator eva, UpdateFeed feed) throws Exception {
+		String rule = feed.poll(0);
+		if(rule != null || feed.hasEnded()) return rule;
 		
-		eva.endExp(getAPNum());
+		if(parameters.MERGE_STRATEGY.equals("incremental")) {
+			rule = catchUpMerges(eva, feed);
+			if(rule != null || feed.hasEnded()) return rule;
+		}
+		if(update_window != null) {
+			rule = feed.poll(update_window.getRemainingNanos());
+			if(rule != null || feed.hasEnded()) return rule;
+			dispatchWindow(eva);
+		}
+		return feed.poll(Long.MAX_VALUE);
 	}
 	
-	public void run(Evaluator eva, String ruleFile) throws Exception {
-		BufferedReader br = null;
-		try {
-			br = new BufferedReader(new FileReader(ruleFile));
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
+	/*
+	 * merge a time slice after another until an update arrives, the merges are done,
+	 * or the held updates are due
+	 */
+	private String catchUpMerges(Evaluator eva, UpdateFeed feed) throws Exception {
+		String rule = null;
+		while(rule == null && !feed.hasEnded() && hasPendingMerges()) {
+			if(update_window != null && update_window.getRemainingNanos() <= 0) break;
+			int ap_num = getAPNum();
+			long start = System.nanoTime();
+			incrementalMergeAPBatch(true);
+			eva.addIdleMerge(ap_num - getAPNum(), System.nanoTime() - start);
+			// the groups left cannot be merged
+			if(getAPNum() == ap_num) break;
+			rule = feed.poll(0);
 		}
-
-		eva.startExp();
+		return rule;
+	}
+	
+	/*
+	 * the forwarding rules at the head of the first updates are loaded in bulk
+	 */
+	private boolean isColdStart() {
+		return parameters.BULK_LOAD && update_sequence == 0;
+	}
+	
+	/**
+	 * load the initial forwarding rules at once: the hits of the rules of each device 
+	 * are computed in one pass, and the APs are split by the port predicates 
+	 * instead of by each rule; the properties are checked once at the end
+	 */
+	public void loadFIB(Evaluator eva, List<String> rules) throws Exception {
+		if(rules.isEmpty()) return;
+		for(String rule : rules) {
+			logger.logDebugInfo(rule);
+		}
+		eva.startBatch(rules.size());
+		
+		Map<ForwardElement, List<Rule>> element_rules = new LinkedHashMap<>();
+		List<Rule> loaded = new ArrayList<>();
+		List<ForwardElement> loaded_elements = new ArrayList<>();
+		for(String rule : rules) {
+			String[] tokens = rule.split(" ");
+			ForwardElement e = (ForwardElement) getUpdatedElement(tokens[1], tokens[2], rule);
+			element_rules.putIfAbsent(e, new ArrayList<>());
+			Rule r = e.encodeOneRule(rule);
+			element_rules.get(e).add(r);
+			loaded.add(r);
+			loaded_elements.add(e);
+		}
+		BitSet moved_aps = new BitSet();
+		for(ForwardElement e : element_rules.keySet()) {
+			e.updatePortPredicateMap(e.loadRules(element_rules.get(e)), moved_aps);
+		}
+		for(String rule : rules) {
+			logUpdate(rule);
+		}
+		eva.midUpdate();
 		
-		String OneLine;
-		while((OneLine = br.readLine()) != null) {
-			String linestr = OneLine.trim();
-			updateRule(eva, linestr);
+		if(!moved_aps.isEmpty()) {
+			Map<ForwardElement, BitSet> last_movers = getLastMovers(loaded, loaded_elements, moved_aps);
+			for(ForwardElement e : last_movers.keySet()) {
+				checkProperty(eva, e.getName(), last_movers.get(e));
+			}
 		}
-
+		
+		softMergeAPBatch(eva);
+		
+		eva.endUpdate();
+		eva.printUpdateResults(getAPNum());
+	}
+	
+	/*
+	 * each moved AP is checked once, from the device of the last loaded rule forwarding it, 
+	 * where the rules inserted one by one would have found its loops
+	 */
+	private Map<ForwardElement, BitSet> getLastMovers(List<Rule> loaded, List<ForwardElement> loaded_elements, 
+			BitSet moved_aps) {
+		BitSet unchecked = (BitSet) moved_aps.clone();
+		Map<ForwardElement, BitSet> last_movers = new LinkedHashMap<>();
+		for(int i=loaded.size()-1; i>=0 && !unchecked.isEmpty(); i--) {
+			ForwardElement e = loaded_elements.get(i);
+			int hit = e.getForwardingHit(loaded.get(i));
+			if(hit == BDDACLWrapper.BDDFalse) continue;
+			BitSet aps = fwd_apk.getOverlapAPs(hit, unchecked);
+			bdd_engine.deref(hit);
+			if(aps.isEmpty()) continue;
+			unchecked.andNot(aps);
+			last_movers.putIfAbsent(e, new BitSet());
+			last_movers.get(e).or(aps);
+		}
+		return last_movers;
+	}
+	
+	private void startUpdates() {
+		update_window = null;
+		if(parameters.UPDATE_WINDOW_SIZE > 1 || parameters.UPDATE_WINDOW_TIME > 0) {
+			// a window of 1 update is only bounded by the time
+			int max_updates = parameters.UPDATE_WINDOW_SIZE > 1 ? parameters.UPDATE_WINDOW_SIZE : 0;
+			update_window = new UpdateWindow(max_updates, parameters.UPDATE_WINDOW_TIME);
+		}
+		update_batch = new ArrayList<>();
+	}
+	
+	public void endRun(Evaluator eva) throws Exception {
 		hardMergeAPBatch();
-
+		
+		if(parameters.ADAPTIVE_MERGE) eva.setMergeCost(fwd_apk.getMergeCost());
+		if(parameters.COMPRESS_FIB) setRuleNum(eva);
 		eva.endExp(getAPNum());
 	}
 	
+	/*
+	 * the original rules are reported with the rules left after compression
+	 */
+	private void setRuleNum(Evaluator eva) {
+		int rule_num = 0;
+		int kept_rule_num = 0;
+		for(Element e : elements.values()) {
+			if(!(e instanceof ForwardElement)) continue;
+			rule_num += ((ForwardElement) e).getOriginalRuleNum();
+			kept_rule_num += ((ForwardElement) e).getRuleNum();
+		}
+		eva.setRuleNum(rule_num, kept_rule_num);
+	}
+	
+	/*
+	 * the update goes through the cancellation window and the batch if they are enabled
+	 */
+	private void submitUpdate(Evaluator eva, String rule) throws Exception {
+		// the held updates go first, a replace is applied on its own
+		if(rule.startsWith("replace ")) {
+			flushUpdates(eva);
+			replaceFIB(eva, rule);
+		}
+		else if(update_window == null) {
+			dispatchUpdate(eva, rule);
+		}
+		else if(update_window.add(rule)) {
+			dispatchWindow(eva);
+		}
+	}
+	
+	private void flushUpdates(Evaluator eva) throws Exception {
+		if(update_window != null) {
+			dispatchWindow(eva);
+		}
+		if(!update_batch.isEmpty()) {
+			updateBatch(eva, update_batch);
+			update_batch.clear();
+		}
+	}
+	
+	private void dispatchWindow(Evaluator eva) throws Exception {
+		int held = update_window.getHeldNumber();
+		List<String> updates = update_window.flush();
+		eva.addCancelledUpdates(held - updates.size());
+		for(String update : updates) {
+			dispatchUpdate(eva, update);
+		}
+	}
+	
+	private void dispatchUpdate(Evaluator eva, String rule) throws Exception {
+		if(parameters.UPDATE_BATCH_SIZE <= 1) {
+			updateRule(eva, rule);
+			return;
+		}
+		// the first removal ends the insertions, which are not batched with it
+		if(rule.startsWith("-") && !eva.isInsertFinish() && !update_batch.isEmpty()) {
+			updateBatch(eva, update_batch);
+			update_batch.clear();
+		}
+		update_batch.add(rule);
+		if(update_batch.size() == parameters.UPDATE_BATCH_SIZE) {
+			updateBatch(eva, update_batch);
+			update_batch.clear();
+		}
+	}
+	
 	public void updateRule(Evaluator eva, String rule) throws Exception {
-		Logger.logDebugInfo(rule);
+		logger.logDebugInfo(rule);
 		String[] tokens = rule.split(" ");
 		String op = tokens[0];
 		String type = tokens[1];
 		String device = tokens[2];
 		
-		if(op.equals("-") && !eva.isInsertFinish()) {
-			eva.setInsertFlag(true);
-			hardMergeAPBatch();
-			eva.setInsertAP(getAPNum());
-		}
+		finishInsertIfRemoval(eva, op);
 		/*
 		 * Updating PPM
 		 */
-		Set<Integer> moved_aps = updateRule(eva, op, type, device, rule);
+		BitSet moved_aps = updateRule(eva, op, type, device, rule);
+		logUpdate(rule);
 		if (moved_aps == null) return;
 		eva.midUpdate();
 		
@@ -346,13 +761,94 @@ public class Network {
 			checkProperty(eva, device, moved_aps);
 		}
 		
-		softMergeAPBatch();
+		softMergeAPBatch(eva);
 		
 		eva.endUpdate();
 		eva.printUpdateResults(getAPNum());
 	}
 	
-	private Set<Integer> updateRule(Evaluator eva, String op, String type, String device, String rule) throws Exception{
+	private void finishInsertIfRemoval(Evaluator eva, String op) throws Exception {
+		if(op.equals("-") && !eva.isInsertFinish()) {
+			eva.setInsertFlag(true);
+			hardMergeAPBatch();
+			eva.setInsertAP(getAPNum());
+		}
+	}
+	
+	private BitSet updateRule(Evaluator eva, String op, String type, String device, String rule) throws Exception{
+		Element e = getUpdatedElement(type, device, rule);
+		// redundant updates are dropped before any BDD work
+		if (e.isRedundantUpdate(op, rule)) {
+			eva.startUpdate();
+			return new BitSet();
+		}
+		
+		/*
+		 * Step 1. Encoding match fields
+		 */
+		Rule r = e.encodeOneRule(rule);
+
+		/*
+		 * Step 2. Identifying changes
+		 */
+		eva.startUpdate();
+		List<ChangeItem> change_set = identifyChanges(e, op, r);
+		
+		/*
+		 * Step 3. Updating predicates
+		 */
+		BitSet moved_aps = e.updatePortPredicateMap(change_set);
+		return moved_aps;
+	}
+	
+	/**
+	 * replace the forwarding rules of a device by the rules in a file, 
+	 * given as "replace fwd device file", e.g., when the device resyncs its FIB;
+	 * only the rules that differ are updated, in one batch
+	 */
+	public void replaceFIB(Evaluator eva, String update) throws Exception {
+		logger.logDebugInfo(update);
+		String[] tokens = update.split(" ");
+		String device = tokens[2];
+		if(!tokens[1].equals("fwd")) {
+			throw new IllegalArgumentException("cannot replace " + tokens[1] + " rules: " + update);
+		}
+		ForwardElement e = (ForwardElement) getUpdatedElement(tokens[1], device, update);
+		
+		List<String> rules = new ArrayList<>();
+		for(String change : e.diffRules(readFIB(tokens[3]))) {
+			String[] fields = change.split(" ", 2);
+			rules.add(fields[0] + " fwd " + device + " " + fields[1]);
+		}
+		updateBatch(eva, rules);
+	}
+	
+	/**
+	 * @return the fields of the rules in a FIB file, "prefix prefixlen port priority", 
+	 * which are the last fields of each line, so the lines of fwd updates can be read as well
+	 */
+	static Set<String> readFIB(String fib_file) throws IOException {
+		Set<String> fib = new LinkedHashSet<>();
+		BufferedReader br = new BufferedReader(new FileReader(fib_file));
+		try {
+			String OneLine;
+			while((OneLine = br.readLine()) != null) {
+				String linestr = OneLine.trim();
+				if(linestr.isEmpty()) continue;
+				String[] tokens = linestr.split("\\s+");
+				int n = tokens.length;
+				long prefix = Long.parseLong(tokens[n-4]);
+				int prefixlen = Integer.parseInt(tokens[n-3]);
+				int priority = Integer.parseInt(tokens[n-1]);
+				fib.add(prefix + " " + prefixlen + " " + tokens[n-2] + " " + priority);
+			}
+		} finally {
+			br.close();
+		}
+		return fib;
+	}
+	
+	private Element getUpdatedElement(String type, String device, String rule) throws ElementNotFoundException {
 		String element_name = null;
 		if(type.equals("nat")) {
 			element_name = device+"_"+rule.split(" ")[3];
@@ -364,33 +860,93 @@ public class Network {
 		if (e == null) {
 			throw new ElementNotFoundException(element_name);
 		}
-		
-		List<ChangeItem> change_set = new ArrayList<>();
+		return e;
+	}
+	
+	private List<ChangeItem> identifyChanges(Element e, String op, Rule r) throws Exception {
+		if (op.equals("+")){
+			return e.insertOneRule(r);
+		}
+		else if (op.equals("-")){
+			return e.removeOneRule(r);
+		}
+		return new ArrayList<>();
+	}
+	
+	/**
+	 * apply a batch of rule updates, 
+	 * the changes of all rules on one element are coalesced before one PPM update,
+	 * and the properties are checked once for all APs moved by the batch
+	 */
+	public void updateBatch(Evaluator eva, List<String> rules) throws Exception {
+		if(rules.isEmpty()) return;
+		for(String rule : rules) {
+			logger.logDebugInfo(rule);
+		}
+		finishInsertIfRemoval(eva, rules.get(0).split(" ")[0]);
 		
 		/*
 		 * Step 1. Encoding match fields
 		 */
-		Rule r = e.encodeOneRule(rule);
-
+		Map<Element, List<String>> element_rules = new LinkedHashMap<>();
+		Map<Element, List<Rule>> encoded_rules = new HashMap<>();
+		Map<Element, String> element_devices = new HashMap<>();
+		for(String rule : rules) {
+			String[] tokens = rule.split(" ");
+			Element e = getUpdatedElement(tokens[1], tokens[2], rule);
+			element_rules.putIfAbsent(e, new ArrayList<>());
+			element_rules.get(e).add(tokens[0]);
+			encoded_rules.putIfAbsent(e, new ArrayList<>());
+			encoded_rules.get(e).add(e.encodeOneRule(rule));
+			element_devices.put(e, tokens[2]);
+		}
+		
 		/*
-		 * Step 2. Identifying changes
+		 * Step 2. Identifying changes, coalesced per element
+		 * Step 3. Updating predicates
 		 */
-		eva.startUpdate();
-		if (op.equals("+")){
-			change_set = e.insertOneRule(r);
+		eva.startBatch(rules.size());
+		BitSet fwd_moved_aps = new BitSet();
+		BitSet acl_moved_aps = new BitSet();
+		for(Element e : element_rules.keySet()) {
+			List<String> ops = element_rules.get(e);
+			List<Rule> rs = encoded_rules.get(e);
+			ChangeSet change_set = new ChangeSet(bdd_engine);
+			for(int i=0; i<rs.size(); i++) {
+				change_set.append(identifyChanges(e, ops.get(i), rs.get(i)));
+			}
+			e.updatePortPredicateMap(change_set.getChangeItems(), getMovedAPs(e, fwd_moved_aps, acl_moved_aps));
 		}
-		else if (op.equals("-")){
-			change_set = e.removeOneRule(r);
+		for(String rule : rules) {
+			logUpdate(rule);
 		}
+		eva.midUpdate();
 		
 		/*
-		 * Step 3. Updating predicates
+		 * Verifying properties
 		 */
-		Set<Integer> moved_aps = e.updatePortPredicateMap(change_set);
-		return moved_aps;
+		Set<String> checked = new HashSet<>();
+		for(Element e : element_rules.keySet()) {
+			String device = element_devices.get(e);
+			if(!checked.add(device)) continue;
+			BitSet moved_aps = getMovedAPs(e, fwd_moved_aps, acl_moved_aps);
+			if (!moved_aps.isEmpty()) {
+				checkProperty(eva, device, moved_aps);
+			}
+		}
+		
+		softMergeAPBatch(eva);
+		
+		eva.endUpdate();
+		eva.printUpdateResults(getAPNum());
+	}
+	
+	private BitSet getMovedAPs(Element e, BitSet fwd_moved_aps, BitSet acl_moved_aps) {
+		if(division_activated && e instanceof ACLElement) return acl_moved_aps;
+		return fwd_moved_aps;
 	}
 	
-	public void checkProperty(Evaluator eva, String device, Set<Integer> moved_aps) throws Exception {
+	public void checkProperty(Evaluator eva, String device, BitSet moved_aps) throws Exception {
 		if(division_activated) {
 			checker.checkPropertyDivision(device, moved_aps);
 		}
@@ -401,15 +957,48 @@ public class Network {
 		eva.addLoops(checker.getLoops());
 	}
 	
-	private void softMergeAPBatch() throws Exception {
-		if(fwd_apk.isMergeable()) {
-			fwd_apk.tryMergeAPBatch();
+	private void softMergeAPBatch(Evaluator eva) throws Exception {
+		fwd_apk.recordUpdateTime(eva.getUpdateElapsedTime());
+		int ap_num = fwd_apk.getAPNum();
+		int mergeable_aps = fwd_apk.getMergeableAPNum();
+		long start = System.nanoTime();
+		
+		if(parameters.MERGE_STRATEGY.equals("incremental")) {
+			incrementalMergeAPBatch(false);
 		}
-		if (acl_apk != null) {
-			acl_apk.tryMergeAPBatch();
+		else {
+			if(fwd_apk.isMergeable()) {
+				fwd_apk.tryMergeAPBatch();
+			}
+			if (acl_apk != null) {
+				acl_apk.tryMergeAPBatch();
+			}
+		}
+		
+		if(fwd_apk.getAPNum() < ap_num) {
+			eva.addMerge(mergeable_aps, ap_num - fwd_apk.getAPNum(), System.nanoTime() - start);
 		}
 	}
 	
+	/*
+	 * merge in a time slice of MERGE_BUDGET microseconds shared by the APKeepers, 
+	 * the APs left are merged by later updates or when the updates are idle
+	 */
+	private void incrementalMergeAPBatch(boolean idle) throws Exception {
+		long deadline = System.nanoTime() + parameters.MERGE_BUDGET * 1000L;
+		if(idle || fwd_apk.isMergeable()) {
+			fwd_apk.tryMergeAPBatch(deadline - System.nanoTime());
+		}
+		long budget = deadline - System.nanoTime();
+		if (acl_apk != null && budget > 0) {
+			acl_apk.tryMergeAPBatch(budget);
+		}
+	}
+	
+	private boolean hasPendingMerges() {
+		return fwd_apk.hasPendingMerges() || (acl_apk != null && acl_apk.hasPendingMerges());
+	}
+	
 	private void hardMergeAPBatch() throws Exception {
 		fwd_apk.tryMergeAPBatch();
 		if (acl_apk != null) {
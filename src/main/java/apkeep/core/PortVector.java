@@ -0,0 +1,183 @@
+/**
+ * APKeep
+ * 
+ * Copyright (c) 2020 ANTS Lab, Xi'an Jiaotong University. All rights reserved.
+ * Developed by: PENG ZHANG and XU LIU.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * with the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimers.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimers in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the Xi'an Jiaotong University nor the names of the
+ * developers may be used to endorse or promote products derived from this
+ * Software without specific prior written permission.
+ * 
+ * 4. Any report or paper describing results derived from using any part of this
+ * Software must cite the following publication of the developers: Peng Zhang,
+ * Xu Liu, Hongkun Yang, Ning Kang, Zhengchang Gu, and Hao Li, APKeep: Realtime 
+ * Verification for Real Networks, In 17th USENIX Symposium on Networked Systems
+ * Design and Implementation (NSDI 20), pp. 241-255. 2020.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH
+ * THE SOFTWARE.
+ */
+package apkeep.core;
+
+import java.util.Arrays;
+
+import apkeep.utils.IntHashSet;
+
+/**
+ * The ports holding an AP, one port id per element id.
+ * 
+ * Only the elements holding the AP on a non-default port are stored, 
+ * sorted by element id; every other element holds it on port 0.
+ * 
+ * Port vectors are canonical (see PortVectorTable), hence immutable 
+ * and compared by identity. The hash code is the sum of the hashes 
+ * of the entries, so the hash of a vector with one element changed 
+ * is known without building it.
+ */
+public class PortVector {
+	private int[] element_ids;
+	private short[] ports;
+	private int size;
+	private int hash;
+	
+	/*
+	 * the APs having this vector, which also serve as its reference count
+	 */
+	final IntHashSet aps;
+	PortVector next; // the next vector in the same bucket of the table
+	
+	PortVector() {
+		element_ids = new int[0];
+		ports = new short[0];
+		size = 0;
+		hash = 0;
+		aps = new IntHashSet();
+	}
+	
+	/*
+	 * a copy of base with the element moved to port
+	 */
+	PortVector(PortVector base, int element_id, int port) {
+		int index = Arrays.binarySearch(base.element_ids, 0, base.size, element_id);
+		int new_size = base.size;
+		if (index >= 0 && port == 0) new_size--;
+		if (index < 0 && port != 0) new_size++;
+		
+		element_ids = new int[new_size];
+		ports = new short[new_size];
+		size = new_size;
+		hash = base.hashWithPort(element_id, port);
+		aps = new IntHashSet();
+		
+		int i = 0;
+		boolean placed = (port == 0);
+		for (int j=0; j<base.size; j++) {
+			int one_element = base.element_ids[j];
+			if (!placed && one_element > element_id) {
+				element_ids[i] = element_id;
+				ports[i++] = (short) port;
+				placed = true;
+			}
+			if (one_element == element_id) continue;
+			element_ids[i] = one_element;
+			ports[i++] = base.ports[j];
+		}
+		if (!placed) {
+			element_ids[i] = element_id;
+			ports[i] = (short) port;
+		}
+	}
+	
+	private static int mix(int element_id, int port) {
+		if (port == 0) return 0;
+		int h = element_id * 0x9E3779B9 + port * 0x85EBCA6B;
+		h ^= h >>> 16;
+		h *= 0x7FEB352D;
+		h ^= h >>> 15;
+		return h;
+	}
+	
+	public int get(int element_id) {
+		int index = Arrays.binarySearch(element_ids, 0, size, element_id);
+		if (index < 0) return 0;
+		return ports[index];
+	}
+	
+	/**
+	 * @return the number of elements holding the AP on a non-default port
+	 */
+	public int size() {
+		return size;
+	}
+	
+	public int elementAt(int index) {
+		return element_ids[index];
+	}
+	
+	public int portAt(int index) {
+		return ports[index];
+	}
+	
+	int hashWithPort(int element_id, int port) {
+		return hash - mix(element_id, get(element_id)) + mix(element_id, port);
+	}
+	
+	/*
+	 * whether this vector equals base with the element moved to port
+	 */
+	boolean equalsWithPort(PortVector base, int element_id, int port) {
+		boolean found = false;
+		int i = 0;
+		int j = 0;
+		while (true) {
+			if (i < size && element_ids[i] == element_id) {
+				if (ports[i] != port) return false;
+				found = true;
+				i++;
+				continue;
+			}
+			if (j < base.size && base.element_ids[j] == element_id) {
+				j++;
+				continue;
+			}
+			if (i == size || j == base.size) break;
+			if (element_ids[i] != base.element_ids[j] || ports[i] != base.ports[j]) return false;
+			i++;
+			j++;
+		}
+		return i == size && j == base.size && found == (port != 0);
+	}
+	
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+	
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{");
+		for (int i=0; i<size; i++) {
+			if (i > 0) sb.append(", ");
+			sb.append(element_ids[i]).append(":").append(ports[i]);
+		}
+		return sb.append("}").toString();
+	}
+}
@@ -0,0 +1,134 @@
+/**
+ * APKeep
+ * 
+ * Copyright (c) 2020 ANTS Lab, Xi'an Jiaotong University. All rights reserved.
+ * Developed by: PENG ZHANG and XU LIU.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * with the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimers.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimers in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the Xi'an Jiaotong University nor the names of the
+ * developers may be used to endorse or promote products derived from this
+ * Software without specific prior written permission.
+ * 
+ * 4. Any report or paper describing results derived from using any part of this
+ * Software must cite the following publication of the developers: Peng Zhang,
+ * Xu Liu, Hongkun Yang, Ning Kang, Zhengchang Gu, and Hao Li, APKeep: Realtime 
+ * Verification for Real Networks, In 17th USENIX Symposium on Networked Systems
+ * Design and Implementation (NSDI 20), pp. 241-255. 2020.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH
+ * THE SOFTWARE.
+ */
+package apkeep.core;
+
+/**
+ * The canonical port vectors (hash-consing).
+ * 
+ * Equal vectors share one instance, which is kept in the table as long as 
+ * some AP has it. Moving an AP to another port looks up the vector with 
+ * one element changed, and only builds it if no AP has it yet.
+ */
+public class PortVectorTable {
+	private PortVector[] buckets;
+	private int size;
+	
+	public PortVectorTable() {
+		buckets = new PortVector[64];
+		size = 0;
+	}
+	
+	/**
+	 * @return the vector holding all packets on the default ports
+	 */
+	public PortVector getDefault() {
+		for (PortVector v = buckets[index(0)]; v != null; v = v.next) {
+			if (v.size() == 0) return v;
+		}
+		PortVector empty = new PortVector();
+		insert(empty);
+		return empty;
+	}
+	
+	/**
+	 * @return the canonical vector of base with the element moved to port
+	 */
+	public PortVector getWithPort(PortVector base, int element_id, int port) {
+		if (base.get(element_id) == port) return base;
+		int hash = base.hashWithPort(element_id, port);
+		for (PortVector v = buckets[index(hash)]; v != null; v = v.next) {
+			if (v.hashCode() == hash && v.equalsWithPort(base, element_id, port)) {
+				return v;
+			}
+		}
+		PortVector v = new PortVector(base, element_id, port);
+		insert(v);
+		return v;
+	}
+	
+	/**
+	 * drop the vector once no AP has it
+	 */
+	public void release(PortVector ports) {
+		if (!ports.aps.isEmpty()) return;
+		int index = index(ports.hashCode());
+		PortVector prev = null;
+		for (PortVector v = buckets[index]; v != null; prev = v, v = v.next) {
+			if (v != ports) continue;
+			if (prev == null) buckets[index] = v.next;
+			else prev.next = v.next;
+			v.next = null;
+			size --;
+			return;
+		}
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	private int index(int hash) {
+		return (hash ^ (hash >>> 16)) & (buckets.length - 1);
+	}
+	
+	private void insert(PortVector ports) {
+		if (size * 4 >= buckets.length * 3) {
+			resize();
+		}
+		int index = index(ports.hashCode());
+		ports.next = buckets[index];
+		buckets[index] = ports;
+		size ++;
+	}
+	
+	private void resize() {
+		PortVector[] old_buckets = buckets;
+		buckets = new PortVector[old_buckets.length * 2];
+		for (PortVector head : old_buckets) {
+			PortVector v = head;
+			while (v != null) {
+				PortVector next = v.next;
+				int index = index(v.hashCode());
+				v.next = buckets[index];
+				buckets[index] = v;
+				v = next;
+			}
+		}
+	}
+}
@@ -0,0 +1,420 @@
+/**
+ * APKeep
+ * 
+ * Copyright (c) 2020 ANTS Lab, Xi'an Jiaotong University. All rights reserved.
+ * Developed by: PENG ZHANG and XU LIU.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * with the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimers.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimers in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the Xi'an Jiaotong University nor the names of the
+ * developers may be used to endorse or promote products derived from this
+ * Software without specific prior written permission.
+ * 
+ * 4. Any report or paper describing results derived from using any part of this
+ * Software must cite the following publication of the developers: Peng Zhang,
+ * Xu Liu, Hongkun Yang, Ning Kang, Zhengchang Gu, and Hao Li, APKeep: Realtime 
+ * Verification for Real Networks, In 17th USENIX Symposium on Networked Systems
+ * Design and Implementation (NSDI 20), pp. 241-255. 2020.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH
+ * THE SOFTWARE.
+ */
+package apkeep.core;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import apkeep.utils.Evaluator;
+import apkeep.utils.Parameters;
+import common.Utility;
+
+/**
+ * A network sharded by the destination IP.
+ * 
+ * The destination IP space is cut into slices by the leading SLICE_BITS bits, 
+ * and each shard is a Network with its own BDD engine, APKeepers and elements, 
+ * whose rules are restricted to the slices assigned to the shard. A rule is 
+ * routed to the shards of the slices it overlaps, and the shards are updated 
+ * on their own threads. Without NAT a header never leaves its slice, so the 
+ * moved APs and the loops of the network are those of the shards put together, 
+ * though a loop whose headers span several shards is reported by each of them.
+ * The balance is checked periodically during a run. When the shards are 
+ * unbalanced, the slices are reassigned by their numbers of APs, and the shards 
+ * whose slices change are rebuilt from the installed rules.
+ */
+public class ShardedNetwork {
+	static final int SLICE_BITS = 8;
+	static final int SLICE_NUMBER = 1 << SLICE_BITS;
+	static final double IMBALANCE_THRESHOLD = 1.5; // the largest shard over the average, in APs
+	static final int REBALANCE_INTERVAL = 1000; // the number of updates between the checks of the balance
+	
+	private String name;
+	private Parameters parameters;
+	private String output_path;
+	
+	// the snapshot every shard is initialized from
+	private ArrayList<String> l1_links;
+	private List<String> devices;
+	private Map<String, Set<String>> device_acls;
+	private Map<String, Map<String, Set<String>>> vlan_ports;
+	
+	private Network[] shards;
+	private Evaluator[] shard_evas;
+	private int[] slice_shard; // the shard of each slice
+	
+	private Set<String> installed_rules; // the rules in the network, without the operator
+	
+	/**
+	 * @param output_path - the directory of the results of each shard
+	 */
+	public ShardedNetwork(String network_name, Parameters network_parameters, String output_path) {
+		name = network_name;
+		parameters = network_parameters;
+		this.output_path = output_path;
+		
+		int shard_number = parameters.SHARD_NUMBER;
+		shards = new Network[shard_number];
+		shard_evas = new Evaluator[shard_number];
+		slice_shard = new int[SLICE_NUMBER];
+		// contiguous slices of equal size at the start
+		for(int slice=0; slice<SLICE_NUMBER; slice++) {
+			slice_shard[slice] = (int) ((long) slice * shard_number / SLICE_NUMBER);
+		}
+		installed_rules = new LinkedHashSet<>();
+	}
+	
+	/**
+	 * NAT is not supported since it rewrites headers to other slices
+	 */
+	public void initializeNetwork(ArrayList<String> l1_links, 
+			List<String> devices,
+			Map<String, Set<String>> device_acls,
+			Map<String, Map<String, Set<String>>> vlan_ports) {
+		this.l1_links = l1_links;
+		this.devices = devices;
+		this.device_acls = device_acls;
+		this.vlan_ports = vlan_ports;
+		
+		for(int shard=0; shard<shards.length; shard++) {
+			shards[shard] = createShard(shard);
+			String output_file = Paths.get(output_path, name+"_shard"+shard+"_result.txt").toString();
+			shard_evas[shard] = new Evaluator(name+"_shard"+shard, output_file, parameters);
+		}
+	}
+	
+	private Network createShard(int shard) {
+		// the shards keep the name of the network, which the ACL nodes are parsed by
+		Network network = new Network(name, parameters);
+		network.initializeNetwork(l1_links, devices, device_acls, vlan_ports, null);
+		network.restrictToSlices(getShardSlices(shard), SLICE_BITS);
+		return network;
+	}
+	
+	private BitSet getShardSlices(int shard) {
+		BitSet slices = new BitSet(SLICE_NUMBER);
+		for(int slice=0; slice<SLICE_NUMBER; slice++) {
+			if(slice_shard[slice] == shard) slices.set(slice);
+		}
+		return slices;
+	}
+	
+	public int getAPNum() {
+		int ap_num = 0;
+		for(Network shard : shards) {
+			ap_num += shard.getAPNum();
+		}
+		return ap_num;
+	}
+	
+	/**
+	 * trace a concrete header in the shard of its destination IP
+	 */
+	public List<String> tracePacket(String device, long[] fields) {
+		return shards[slice_shard[(int) (fields[1] >>> (32 - SLICE_BITS))]].tracePacket(device, fields);
+	}
+	
+	public void run(Evaluator eva, String ruleFile) throws Exception {
+		List<String> rules = new ArrayList<>();
+		BufferedReader br = new BufferedReader(new FileReader(ruleFile));
+		try {
+			String OneLine;
+			while((OneLine = br.readLine()) != null) {
+				rules.add(OneLine.trim());
+			}
+		} finally {
+			br.close();
+		}
+		run(eva, rules);
+	}
+	
+	/**
+	 * route the updates to the shards, run the shards in parallel and merge their results;
+	 * the balance of the shards is checked after every REBALANCE_INTERVAL updates
+	 */
+	public void run(Evaluator eva, List<String> rules) throws Exception {
+		eva.startExp();
+		for(Evaluator shard_eva : shard_evas) {
+			shard_eva.startExp();
+		}
+		long wall_time = 0;
+		for(int from=0; from<rules.size(); from+=REBALANCE_INTERVAL) {
+			List<List<String>> shard_rules = routeUpdates(eva, rules.subList(from, Math.min(from+REBALANCE_INTERVAL, rules.size())));
+			
+			long start = System.nanoTime();
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for(int shard=0; shard<shards.length; shard++) {
+				final Network network = shards[shard];
+				final Evaluator shard_eva = shard_evas[shard];
+				final List<String> updates = shard_rules.get(shard);
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						network.runPart(shard_eva, updates);
+						return null;
+					}
+				});
+			}
+			runInParallel(tasks);
+			wall_time += System.nanoTime() - start;
+			
+			if(isUnbalanced()) rebalance();
+		}
+		
+		long start = System.nanoTime();
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for(int shard=0; shard<shards.length; shard++) {
+			final Network network = shards[shard];
+			final Evaluator shard_eva = shard_evas[shard];
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					network.endRun(shard_eva);
+					return null;
+				}
+			});
+		}
+		runInParallel(tasks);
+		eva.setWallTime(wall_time + System.nanoTime() - start);
+		for(Evaluator shard_eva : shard_evas) {
+			eva.addShard(shard_eva);
+		}
+		eva.endExp(getAPNum());
+	}
+	
+	/**
+	 * @return the updates of each shard, each update is counted once however many shards it is routed to
+	 */
+	private List<List<String>> routeUpdates(Evaluator eva, List<String> rules) throws IOException {
+		List<List<String>> shard_rules = new ArrayList<>();
+		for(int shard=0; shard<shards.length; shard++) {
+			shard_rules.add(new ArrayList<String>());
+		}
+		for(String rule : rules) {
+			if(rule.isEmpty()) continue;
+			if(rule.startsWith("replace ")) {
+				List<String> updates = diffInstalledRules(rule);
+				for(String update : updates) {
+					routeUpdate(update, shard_rules);
+				}
+				eva.addUpdates(updates.size());
+			}
+			else {
+				routeUpdate(rule, shard_rules);
+				eva.addUpdates(1);
+			}
+		}
+		return shard_rules;
+	}
+	
+	private void routeUpdate(String rule, List<List<String>> shard_rules) {
+		BitSet routed = new BitSet(shards.length);
+		BitSet slices = getSlices(rule);
+		for(int slice = slices.nextSetBit(0); slice >= 0; slice = slices.nextSetBit(slice+1)) {
+			routed.set(slice_shard[slice]);
+		}
+		for(int shard = routed.nextSetBit(0); shard >= 0; shard = routed.nextSetBit(shard+1)) {
+			shard_rules.get(shard).add(rule);
+		}
+		String installed = rule.substring(rule.indexOf(' ') + 1);
+		if(rule.startsWith("+")) installed_rules.add(installed);
+		else installed_rules.remove(installed);
+	}
+	
+	/**
+	 * a replace is turned into the updates of the rules that differ from the installed rules,
+	 * which are routed to the shards like the other updates
+	 */
+	private List<String> diffInstalledRules(String replace) throws IOException {
+		String[] tokens = replace.split(" ");
+		if(!tokens[1].equals("fwd")) {
+			throw new IllegalArgumentException("cannot replace " + tokens[1] + " rules: " + replace);
+		}
+		String head = "fwd " + tokens[2] + " ";
+		Set<String> fib = Network.readFIB(tokens[3]);
+		List<String> updates = new ArrayList<>();
+		for(String installed : installed_rules) {
+			if(installed.startsWith(head) && !fib.remove(installed.substring(head.length()))) {
+				updates.add("- " + installed);
+			}
+		}
+		for(String fields : fib) {
+			updates.add("+ " + head + fields);
+		}
+		return updates;
+	}
+	
+	private void runInParallel(List<Callable<Void>> tasks) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+		try {
+			List<Future<Void>> results = executor.invokeAll(tasks);
+			for(Future<Void> result : results) {
+				result.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * @return the slices overlapped by the destination IP of the rule
+	 */
+	private BitSet getSlices(String rule) {
+		String[] tokens = rule.split(" ");
+		String type = tokens[1];
+		BitSet slices = new BitSet(SLICE_NUMBER);
+		if(type.equals("fwd")) {
+			long prefix = Long.parseLong(tokens[3]);
+			int prefix_len = Integer.parseInt(tokens[4]);
+			int span = prefix_len >= SLICE_BITS ? 1 : 1 << (SLICE_BITS - prefix_len);
+			int first = (int) (prefix >>> (32 - SLICE_BITS)) & ~(span - 1);
+			slices.set(first, first + span);
+		}
+		else if(type.equals("acl")) {
+			// the ACL rule starts at tokens[3], with the destination and its wildcard at its 10th and 11th fields
+			String destination = tokens[12];
+			String wildcard = tokens[13];
+			if(destination.equals("null") || destination.equalsIgnoreCase("any")) {
+				slices.set(0, SLICE_NUMBER);
+			}
+			else {
+				int dst = (int) (Utility.IPStringToLong(destination) >>> (32 - SLICE_BITS));
+				int wild = wildcard.equals("null") ? 0 : (int) (Utility.IPStringToLong(wildcard) >>> (32 - SLICE_BITS));
+				for(int slice=0; slice<SLICE_NUMBER; slice++) {
+					if((slice & ~wild) == (dst & ~wild)) slices.set(slice);
+				}
+			}
+		}
+		else {
+			throw new IllegalArgumentException("cannot shard " + type + " rules: " + rule);
+		}
+		return slices;
+	}
+	
+	private boolean isUnbalanced() {
+		if(shards.length == 1) return false;
+		int max = 0;
+		int total = 0;
+		for(Network shard : shards) {
+			max = Math.max(max, shard.getAPNum());
+			total += shard.getAPNum();
+		}
+		return max > IMBALANCE_THRESHOLD * total / shards.length;
+	}
+	
+	/**
+	 * reassign the slices by their numbers of APs, the largest first to the shard with the fewest,
+	 * and rebuild the shards whose slices change from the installed rules
+	 */
+	public void rebalance() throws Exception {
+		final int[] slice_aps = new int[SLICE_NUMBER];
+		Integer[] slices = new Integer[SLICE_NUMBER];
+		for(int slice=0; slice<SLICE_NUMBER; slice++) {
+			long prefix = (long) slice << (32 - SLICE_BITS);
+			slice_aps[slice] = shards[slice_shard[slice]].getAPNum(prefix, SLICE_BITS);
+			slices[slice] = slice;
+		}
+		Arrays.sort(slices, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer s1, Integer s2) {
+				return Integer.compare(slice_aps[s2], slice_aps[s1]);
+			}
+		});
+		
+		int[] new_slice_shard = new int[SLICE_NUMBER];
+		long[] shard_aps = new long[shards.length];
+		for(int slice : slices) {
+			int least = 0;
+			for(int shard=1; shard<shards.length; shard++) {
+				if(shard_aps[shard] < shard_aps[least]) least = shard;
+			}
+			new_slice_shard[slice] = least;
+			shard_aps[least] += slice_aps[slice];
+		}
+		
+		BitSet changed = new BitSet(shards.length);
+		for(int slice=0; slice<SLICE_NUMBER; slice++) {
+			if(new_slice_shard[slice] != slice_shard[slice]) {
+				changed.set(slice_shard[slice]);
+				changed.set(new_slice_shard[slice]);
+			}
+		}
+		slice_shard = new_slice_shard;
+		
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for(int shard = changed.nextSetBit(0); shard >= 0; shard = changed.nextSetBit(shard+1)) {
+			final int rebuilt = shard;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					rebuildShard(rebuilt);
+					return null;
+				}
+			});
+		}
+		if(!tasks.isEmpty()) runInParallel(tasks);
+	}
+	
+	private void rebuildShard(int shard) throws Exception {
+		Network network = createShard(shard);
+		BitSet slices = getShardSlices(shard);
+		List<String> rules = new ArrayList<>();
+		for(String installed : installed_rules) {
+			String rule = "+ " + installed;
+			if(getSlices(rule).intersects(slices)) rules.add(rule);
+		}
+		String output_file = Paths.get(output_path, name+"_shard"+shard+"_rebuild.txt").toString();
+		network.run(new Evaluator(name+"_shard"+shard, output_file, parameters), rules);
+		shards[shard] = network;
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * APKeep
+ * 
+ * Copyright (c) 2020 ANTS Lab, Xi'an Jiaotong University. All rights reserved.
+ * Developed by: PENG ZHANG and XU LIU.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * with the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimers.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimers in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the Xi'an Jiaotong University nor the names of the
+ * developers may be used to endorse or promote products derived from this
+ * Software without specific prior written permission.
+ * 
+ * 4. Any report or paper describing results derived from using any part of this
+ * Software must cite the following publication of the developers: Peng Zhang,
+ * Xu Liu, Hongkun Yang, Ning Kang, Zhengchang Gu, and Hao Li, APKeep: Realtime 
+ * Verification for Real Networks, In 17th USENIX Symposium on Networked Systems
+ * Design and Implementation (NSDI 20), pp. 241-255. 2020.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH
+ * THE SOFTWARE.
+ */
+package apkeep.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A window holding rule updates before they are applied.
+ * 
+ * Only the last update of each rule (the same update line without the operator) 
+ * is kept, since inserting and removing a rule are idempotent: the rule ends up 
+ * the same as with all its updates applied, whether it was present or not. 
+ * A flap within the window is applied once, and is rejected as redundant 
+ * before touching the PPM if it leaves the rule as it was.
+ * The window is full after a number of updates or a period of time since 
+ * the first update it holds.
+ */
+public class UpdateWindow {
+	private int max_updates;
+	private long max_nanos;
+	
+	private Map<String, String> last_updates; // rule -> the operator of its last update
+	private int held;
+	private long open_time;
+	
+	/**
+	 * @param max_updates - the number of updates held at most, no limit if not positive
+	 * @param max_millis - the time in milliseconds an update is held at most, no limit if not positive
+	 */
+	public UpdateWindow(int max_updates, int max_millis) {
+		this.max_updates = max_updates;
+		this.max_nanos = max_millis * 1000000L;
+		last_updates = new LinkedHashMap<>();
+		held = 0;
+	}
+	
+	/**
+	 * @return whether the window is full and should be flushed
+	 */
+	public boolean add(String update) {
+		if (held == 0) open_time = System.nanoTime();
+		held++;
+		
+		int split = update.indexOf(' ');
+		String op = update.substring(0, split);
+		String rule = update.substring(split+1);
+		// the rule moves to its last occurrence
+		last_updates.remove(rule);
+		last_updates.put(rule, op);
+		
+		if (max_updates > 0 && held >= max_updates) return true;
+		return getRemainingNanos() <= 0;
+	}
+	
+	/**
+	 * @return the nanoseconds until the held updates must be flushed, Long.MAX_VALUE if there is no time limit
+	 */
+	public long getRemainingNanos() {
+		if (max_nanos <= 0 || held == 0) return Long.MAX_VALUE;
+		return max_nanos - (System.nanoTime() - open_time);
+	}
+	
+	/**
+	 * @return the number of updates added since the last flush
+	 */
+	public int getHeldNumber() {
+		return held;
+	}
+	
+	/**
+	 * @return the last update of each rule in the order their rules last appeared, the window is emptied
+	 */
+	public List<String> flush() {
+		List<String> updates = new ArrayList<>();
+		for (Map.Entry<String, String> entry : last_updates.entrySet()) {
+			updates.add(entry.getValue() + " " + entry.getKey());
+		}
+		last_updates.clear();
+		held = 0;
+		return updates;
+	}
+}
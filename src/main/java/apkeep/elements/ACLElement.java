@@ -38,43 +38,78 @@
  */
 package apkeep.elements;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 
 import apkeep.core.ChangeItem;
 import apkeep.rules.FilterRule;
 import apkeep.rules.Rule;
-import apkeep.utils.Logger;
+import apkeep.utils.CheckpointReader;
+import apkeep.utils.CheckpointWriter;
+import apkeep.utils.OrderedRules;
 import common.ACLRule;
 import common.BDDACLWrapper;
 
 public class ACLElement extends Element {
 	
-	private LinkedList<Rule> acl_rule;
+	private OrderedRules acl_rule;
 	
 	public ACLElement(String ename) {
 		super(ename);
-		acl_rule = new LinkedList<>();
+		acl_rule = new OrderedRules();
+		addPort("deny");
+		addPort("permit");
 	}
 
 	@Override
 	public void initialize() {
 		// initialize the rule list with a default deny rule
 		FilterRule rule = new FilterRule(BDDACLWrapper.BDDTrue,BDDACLWrapper.BDDTrue,"deny", -1);
+		rule.setPort_id(addPort("deny"));
 		acl_rule.add(rule);
-		
-		// initialize the AP set for port deny
-		String deny_port = "deny";
-		HashSet<Integer> alltrue = new HashSet<Integer>();
-		alltrue.add(BDDACLWrapper.BDDTrue);
-		port_aps_raw.put(deny_port, alltrue);
-		
-		// initialize the AP set for port permit
-		String permit_port = "permit";
-		HashSet<Integer> allfalse = new HashSet<Integer>();
-		port_aps_raw.put(permit_port, allfalse);
+	}
+
+	@Override
+	protected void writeRules(CheckpointWriter out) throws IOException {
+		out.writeInt(acl_rule.size());
+		for (Rule rule : acl_rule) {
+			FilterRule r = (FilterRule) rule;
+			writeRule(out, r);
+			String[] fields = {r.accessList, r.accessListNumber, r.protocolLower, r.protocolUpper, 
+					r.source, r.sourceWildcard, r.sourcePortLower, r.sourcePortUpper, 
+					r.destination, r.destinationWildcard, r.destinationPortLower, r.destinationPortUpper};
+			for (String field : fields) {
+				out.writeString(field);
+			}
+		}
+	}
+	
+	@Override
+	protected void readRules(CheckpointReader in) throws IOException {
+		acl_rule.clear();
+		int rule_number = in.readInt();
+		for (int i=0; i<rule_number; i++) {
+			int match_bdd = in.readBDD();
+			int hit_bdd = in.readBDD();
+			int priority = in.readInt();
+			String port = in.readString();
+			FilterRule r = new FilterRule(match_bdd, hit_bdd, port, priority);
+			r.accessList = in.readString();
+			r.accessListNumber = in.readString();
+			r.protocolLower = in.readString();
+			r.protocolUpper = in.readString();
+			r.source = in.readString();
+			r.sourceWildcard = in.readString();
+			r.sourcePortLower = in.readString();
+			r.sourcePortUpper = in.readString();
+			r.destination = in.readString();
+			r.destinationWildcard = in.readString();
+			r.destinationPortLower = in.readString();
+			r.destinationPortUpper = in.readString();
+			r.setPort_id(getPortId(port));
+			acl_rule.add(r);
+		}
 	}
 
 	@Override
@@ -83,51 +118,41 @@ public class ACLElement extends Element {
 		ACLRule r = new ACLRule(rule.substring(tokens[0].length() + tokens[1].length() + tokens[2].length() + 3));
 		
 		int match_bdd = apk.encodeACLBDD(r);
-		return new FilterRule(match_bdd, r);
+		FilterRule filter_rule = new FilterRule(match_bdd, r);
+		filter_rule.setPort_id(addPort(filter_rule.getPort()));
+		return filter_rule;
 	}
 
 	@Override
 	public List<ChangeItem> insertOneRule(Rule rule) throws Exception {
-		List<ChangeItem> change_set = identifyChangesInsert(rule, acl_rule);
-		port_aps_raw.putIfAbsent(rule.getPort(), new HashSet<Integer>());
-		return change_set;
+		return identifyChangesInsert(rule, acl_rule);
 	}
 
 	@Override
 	public List<ChangeItem> removeOneRule(Rule rule) throws Exception {
-		int index = findRule(rule);
-		if(index == acl_rule.size()) {
-			Logger.logInfo("Rule not found " + rule.toString());
+		Rule rule_to_remove = acl_rule.find(rule);
+		if(rule_to_remove == null) {
+			logger.logInfo("Rule not found " + rule.toString());
 			return new ArrayList<ChangeItem>();
 		}
-		Rule rule_to_remove = acl_rule.get(index);
 		// remove if rule hits no packets
 		if(rule_to_remove.getHit_bdd() == BDDACLWrapper.BDDFalse) {
-			removeRule(index);
-			Logger.logInfo("hidden rule deleted");
+			removeRule(rule_to_remove);
+			logger.logInfo("hidden rule deleted");
 			return new ArrayList<ChangeItem>();
 		}
 		
 		List<ChangeItem> change_set = identifyChangesRemove(rule_to_remove, acl_rule);
-		removeRule(index);
+		removeRule(rule_to_remove);
 		return change_set;
 	}
 
-	private int findRule(Rule rule) {
-		int index = 0;
-		for(Rule r : acl_rule) {
-			if(r.equals(rule)) return index;
-			index++;
-		}
-		return index;
-	}
-	
-	private void removeRule(int index) {
-		bdd.deref(acl_rule.get(index).getMatch_bdd());
-		acl_rule.remove(index);
+	private void removeRule(Rule rule) {
+		bdd.deref(rule.getMatch_bdd());
+		acl_rule.remove(rule);
 	}
 	@Override
-	protected int tryMergeIfNATElement(int delta) {
-		return delta;
+	protected int tryMergeIfNATElement(int ap_slot) {
+		return -1;
 	}
 }
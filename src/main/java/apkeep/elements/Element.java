@@ -38,13 +38,13 @@
  */
 package apkeep.elements;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import apkeep.core.APKeeper;
@@ -53,93 +53,190 @@ import apkeep.exception.APNotFoundException;
 import apkeep.exception.APSetNotFoundException;
 import apkeep.exception.BDDNotFalseException;
 import apkeep.rules.Rule;
+import apkeep.utils.CheckpointReader;
+import apkeep.utils.CheckpointWriter;
 import apkeep.utils.Logger;
+import apkeep.utils.OrderedRules;
 import common.BDDACLWrapper;
-import common.PositionTuple;
 
 public abstract class Element {
 	
 	protected String name;
+	protected int id; // the id of the element in its APKeeper
 	
-	protected static BDDACLWrapper bdd;
+	protected BDDACLWrapper bdd; // the BDD engine of the APKeeper
 	protected APKeeper apk;
+	protected Logger logger;
 	
-	protected Map<String, Set<Integer>> port_aps_raw;
+	/*
+	 * the port dictionary, ports are numbered in the order they are added;
+	 * port 0 is the default port, which holds all packets initially.
+	 * The membership of the default port is implicit: it holds every AP 
+	 * not held by another port, so that splitting or merging an AP 
+	 * only touches the elements forwarding it to a non-default port.
+	 */
+	protected ArrayList<String> port_names;
+	protected HashMap<String, Integer> port_ids;
+	protected ArrayList<BitSet> port_aps_raw; // the AP slots held by each port, indexed by port id, null for port 0
 	
 	public Element(String ename) {
 		name = ename;
-		port_aps_raw = new HashMap<>();
+		port_names = new ArrayList<>();
+		port_ids = new HashMap<>();
+		port_aps_raw = new ArrayList<>();
 	}
 
-	public static void setBDDWrapper(BDDACLWrapper bdd_engine) {
-		bdd = bdd_engine;
-		
-	}
-	
 	public void setAPC(APKeeper theapk) {
 		apk = theapk;
-		apk.addElement(name, this);
+		bdd = apk.getBDDEngine();
+		logger = apk.getLogger();
+		id = apk.addElement(name, this);
+	}
+	
+	/**
+	 * add the port to the dictionary if it is not there, 
+	 * and initialize the AP set of the port to empty
+	 * @return the id of the port
+	 */
+	public int addPort(String port) {
+		Integer port_id = port_ids.get(port);
+		if (port_id != null) {
+			return port_id;
+		}
+		port_id = port_names.size();
+		if (port_id > Short.MAX_VALUE) {
+			throw new IndexOutOfBoundsException("too many ports in " + name);
+		}
+		port_names.add(port);
+		port_ids.put(port, port_id);
+		port_aps_raw.add(port_id == 0 ? null : new BitSet());
+		return port_id;
+	}
+	
+	/**
+	 * @return the id of the port, or -1 if the port does not exist
+	 */
+	public int getPortId(String port) {
+		Integer port_id = port_ids.get(port);
+		if (port_id == null) return -1;
+		return port_id;
+	}
+	
+	public String getPortName(int port) {
+		return port_names.get(port);
+	}
+	
+	public int getPortNumber() {
+		return port_names.size();
 	}
 	
 	public abstract void initialize();
+	protected abstract void writeRules(CheckpointWriter out) throws IOException;
+	protected abstract void readRules(CheckpointReader in) throws IOException;
+	
+	/**
+	 * @return whether the update is a duplicate insert or the removal of an unknown rule, 
+	 * which is told before the rule is encoded
+	 */
+	public boolean isRedundantUpdate(String op, String rule) {
+		return false;
+	}
+	
 	public abstract Rule encodeOneRule(String rule);
 	public abstract List<ChangeItem> insertOneRule(Rule rule) throws Exception;
 	public abstract List<ChangeItem> removeOneRule(Rule rule) throws Exception;
 
-	protected abstract int tryMergeIfNATElement(int delta);
+	/**
+	 * write the port dictionary, the AP sets of the ports and the rules
+	 */
+	public void writeCheckpoint(CheckpointWriter out) throws IOException {
+		out.writeInt(port_names.size());
+		for (String port : port_names) {
+			out.writeString(port);
+		}
+		for (int port=1; port<port_names.size(); port++) {
+			out.writeBitSet(port_aps_raw.get(port));
+		}
+		writeRules(out);
+	}
+	
+	/**
+	 * restore the state written by writeCheckpoint on an initialized element
+	 */
+	public void readCheckpoint(CheckpointReader in) throws IOException {
+		int port_number = in.readInt();
+		for (int port=0; port<port_number; port++) {
+			String port_name = in.readString();
+			if (addPort(port_name) != port) {
+				throw new IOException("port " + port_name + " of " + name + " does not match the checkpoint");
+			}
+		}
+		for (int port=1; port<port_number; port++) {
+			port_aps_raw.set(port, in.readBitSet());
+		}
+		readRules(in);
+	}
+	
+	/**
+	 * write the fields of a rule common to all elements
+	 */
+	protected void writeRule(CheckpointWriter out, Rule rule) throws IOException {
+		writeRule(out, rule, rule.getHit_bdd());
+	}
+	
+	protected void writeRule(CheckpointWriter out, Rule rule, int hit_bdd) throws IOException {
+		out.writeBDD(rule.getMatch_bdd());
+		out.writeBDD(hit_bdd);
+		out.writeInt(rule.getPriority());
+		out.writeString(rule.getPort());
+	}
+	
+	/**
+	 * @return the AP slot released by merging, or -1 if no merge happens
+	 */
+	protected abstract int tryMergeIfNATElement(int ap_slot);
 	
 	public String getName() {
 		return name;
 	}
 	
-	protected List<ChangeItem> identifyChangesInsert(Rule rule, ArrayList<Rule> affected_rules) throws Exception {
-		// set bdd for the inserted rule
+	public int getId() {
+		return id;
+	}
+	
+	/**
+	 * the inserted rule takes its headers from the hits of the rules below it, 
+	 * so the rules above it are never visited
+	 * @param affected_rules - the overlapping rules with no higher priority, 
+	 * in the order of decreasing priority
+	 */
+	protected List<ChangeItem> identifyChangesInsert(Rule rule, Iterator<Rule> affected_rules) throws Exception {
 		List<ChangeItem> change_set = new ArrayList<>();
 		
-		int hit_bdd = bdd.ref(rule.getMatch_bdd());
-		int bdd_to_change = BDDACLWrapper.BDDFalse;
-		boolean inserted = false;
-		Iterator<Rule> it2 = affected_rules.iterator();
-
-		while (it2.hasNext()) {
-			Rule item = it2.next();
-			if (item.getPriority() > rule.getPriority()) {
-				hit_bdd = bdd.diffTo(hit_bdd, item.getMatch_bdd());
-				if (hit_bdd == BDDACLWrapper.BDDFalse) {
-					return change_set;
-				}
+		int hit_bdd = BDDACLWrapper.BDDFalse;
+		// stop once the inserted rule hits all it matches
+		while (affected_rules.hasNext() && hit_bdd != rule.getMatch_bdd()) {
+			Rule item = affected_rules.next();
+			int delta = bdd.and(item.getHit_bdd(), rule.getMatch_bdd());
+			if (delta == BDDACLWrapper.BDDFalse) {
+				continue;
+			}
+			item.setHit_bdd(bdd.diffTo(item.getHit_bdd(), delta));
+			hit_bdd = bdd.orTo(hit_bdd, delta);
+			if (item.getPort_id() != rule.getPort_id()) {
+				ChangeItem change_item = new ChangeItem(item.getPort_id(), rule.getPort_id(), delta);
+				change_set.add(change_item);
 			}
 			else {
-				if(!inserted) {
-					bdd_to_change = bdd.ref(hit_bdd);
-					inserted = true;
-				}
-
-				if(bdd_to_change == BDDACLWrapper.BDDFalse) {
-					break;
-				}
-
-				int delta = bdd.and(item.getHit_bdd(), bdd_to_change);
-				if (delta == BDDACLWrapper.BDDFalse) {
-					continue;
-				}
-				item.setHit_bdd(bdd.diffTo(item.getHit_bdd(), delta));
-				bdd_to_change = bdd.diffTo(bdd_to_change, delta);
-				if (!item.getPort().equals(rule.getPort())) {
-					ChangeItem change_item = new ChangeItem(item.getPort(), rule.getPort(), delta);
-					change_set.add(change_item);
-				}
+				bdd.deref(delta);
 			}
 		}
-		if (bdd_to_change != BDDACLWrapper.BDDFalse) {
-			throw new BDDNotFalseException(bdd_to_change);
-		}
 		
 		rule.setHit_bdd(hit_bdd);
 		
 		return change_set;
 	}
-	protected List<ChangeItem> identifyChangesInsert(Rule rule, LinkedList<Rule> affected_rules) throws Exception {
+	protected List<ChangeItem> identifyChangesInsert(Rule rule, OrderedRules affected_rules) throws Exception {
 		// set bdd for the inserted rule
 		List<ChangeItem> change_set = new ArrayList<>();
 		
@@ -148,7 +245,6 @@ public abstract class Element {
 		Rule default_rule = affected_rules.getLast();
 		boolean inserted = false;
 
-		int cur_position = 0;
 		Iterator<Rule> it2 = affected_rules.iterator();
 		while (it2.hasNext()) {
 			Rule item = it2.next();
@@ -156,7 +252,6 @@ public abstract class Element {
 				if (hit_bdd != BDDACLWrapper.BDDFalse) {
 					hit_bdd = bdd.diffTo(hit_bdd, item.getMatch_bdd());
 				}
-				cur_position++;
 			}
 			else {
 				if(!inserted) {
@@ -164,8 +259,8 @@ public abstract class Element {
 					int temp = bdd.diff(hit_bdd, default_rule.getHit_bdd());
 					if (temp == BDDACLWrapper.BDDFalse) {
 						default_rule.setHit_bdd(bdd.diffTo(default_rule.getHit_bdd(), hit_bdd));
-						if (!default_rule.getPort().equals(rule.getPort())) {
-							ChangeItem change_item = new ChangeItem(default_rule.getPort(), rule.getPort(), hit_bdd);
+						if (default_rule.getPort_id() != rule.getPort_id()) {
+							ChangeItem change_item = new ChangeItem(default_rule.getPort_id(), rule.getPort_id(), hit_bdd);
 							change_set.add(change_item);
 						}
 						break;
@@ -186,8 +281,8 @@ public abstract class Element {
 				}
 				item.setHit_bdd(bdd.diffTo(item.getHit_bdd(), delta));
 				bdd_to_change = bdd.diffTo(bdd_to_change, delta);
-				if (!item.getPort().equals(rule.getPort())) {
-					ChangeItem change_item = new ChangeItem(item.getPort(), rule.getPort(), delta);
+				if (item.getPort_id() != rule.getPort_id()) {
+					ChangeItem change_item = new ChangeItem(item.getPort_id(), rule.getPort_id(), delta);
 					change_set.add(change_item);
 				}
 			}
@@ -198,19 +293,17 @@ public abstract class Element {
 		}
 		
 		rule.setHit_bdd(hit_bdd);
-		affected_rules.add(cur_position, rule);
+		affected_rules.insert(rule);
 		
 		return change_set;
 	}
 	
-	protected List<ChangeItem> identifyChangesRemove(Rule rule, ArrayList<Rule> affected_rules) throws Exception{
+	protected List<ChangeItem> identifyChangesRemove(Rule rule, Iterator<Rule> affected_rules) throws Exception{
 		ArrayList<ChangeItem> change_set = new ArrayList<ChangeItem>();
-		affected_rules.remove(rule);
 		
 		int hit_bdd = bdd.ref(rule.getHit_bdd());
-		Iterator<Rule> it2 = affected_rules.iterator();
-		while (it2.hasNext() && hit_bdd != BDDACLWrapper.BDDFalse){
-			Rule item = it2.next();
+		while (affected_rules.hasNext() && hit_bdd != BDDACLWrapper.BDDFalse){
+			Rule item = affected_rules.next();
 			if (item.getPriority() >= rule.getPriority()){
 				continue;
 			}
@@ -219,8 +312,8 @@ public abstract class Element {
 				item.setHit_bdd(bdd.orTo(item.getHit_bdd(), delta));
 				hit_bdd = bdd.diffTo(hit_bdd, delta);
 				
-				if (!item.getPort().equals(rule.getPort())) {
-					ChangeItem change_item = new ChangeItem(rule.getPort(), item.getPort(), delta);
+				if (item.getPort_id() != rule.getPort_id()) {
+					ChangeItem change_item = new ChangeItem(rule.getPort_id(), item.getPort_id(), delta);
 					change_set.add(change_item);
 				}
 			}
@@ -234,23 +327,21 @@ public abstract class Element {
 		return change_set;
 	}
 	
-	protected List<ChangeItem> identifyChangesRemove(Rule rule, LinkedList<Rule> affected_rules) throws Exception {
+	protected List<ChangeItem> identifyChangesRemove(Rule rule, OrderedRules affected_rules) throws Exception {
 		List<ChangeItem> change_set = new ArrayList<ChangeItem>();
 		int hit_bdd = bdd.ref(rule.getHit_bdd());
 		
-		Iterator<Rule> it = affected_rules.iterator();
+		// the rules of higher or the same priority are skipped in the tree
+		Iterator<Rule> it = affected_rules.iteratorBelow(rule.getPriority());
 		while (it.hasNext() && hit_bdd != BDDACLWrapper.BDDFalse){
 			Rule item = it.next();
-			if (item.getPriority() >= rule.getPriority()){
-				continue;
-			}
 			int delta = bdd.and(hit_bdd, item.getMatch_bdd());
 			if (delta != BDDACLWrapper.BDDFalse) {
 				item.setHit_bdd(bdd.orTo(item.getHit_bdd(), delta));
 				hit_bdd = bdd.diffTo(hit_bdd, delta);
 				
-				if (!item.getPort().equals(rule.getPort())) {
-					ChangeItem change_item = new ChangeItem(rule.getPort(), item.getPort(), delta);
+				if (item.getPort_id() != rule.getPort_id()) {
+					ChangeItem change_item = new ChangeItem(rule.getPort_id(), item.getPort_id(), delta);
 					change_set.add(change_item);
 				}
 			}
@@ -264,63 +355,66 @@ public abstract class Element {
 		return change_set;
 	}
 
-	public Set<Integer> updatePortPredicateMap(List<ChangeItem> change_set) throws Exception{
-		HashSet<Integer> moved_aps = new HashSet<Integer>();
-		if(change_set.isEmpty()) return moved_aps;
+	public BitSet updatePortPredicateMap(List<ChangeItem> change_set) throws Exception{
+		BitSet moved_aps = new BitSet();
+		updatePortPredicateMap(change_set, moved_aps);
+		return moved_aps;
+	}
+	
+	/**
+	 * add the moved APs to moved_aps, 
+	 * which may hold APs moved by other elements in the same batch
+	 */
+	public void updatePortPredicateMap(List<ChangeItem> change_set, BitSet moved_aps) throws Exception{
+		if(change_set.isEmpty()) return;
 		for(ChangeItem item : change_set) {
 			
-			String from_port = item.getFrom_port();
-			String to_port = item.getTo_port();
+			int from_port = item.getFrom_port();
+			int to_port = item.getTo_port();
 			int delta = bdd.getBDD().ref(item.getDelta());
 			
 			// fast track: delta is one AP kept by from_port
-			if(port_aps_raw.get(from_port).contains(delta)) {
-				transferOneAP(from_port, to_port, delta);
-				int merged_ap = tryMergeIfNATElement(delta);
-				if (merged_ap != delta) {
-					moved_aps.remove(delta);
-					int another_ap = bdd.diff(merged_ap, delta);
-					moved_aps.remove(another_ap);
-					bdd.deref(another_ap);
+			int delta_slot = apk.getAPSlot(delta);
+			if(delta_slot >= 0 && holdsAP(from_port, delta_slot)) {
+				transferOneAP(from_port, to_port, delta_slot);
+				int released = tryMergeIfNATElement(delta_slot);
+				if (released >= 0) {
+					moved_aps.clear(released);
 				}
-				moved_aps.add(merged_ap);
-				bdd.getBDD().deref(merged_ap);
-//				moved_aps.add(delta);
-//				bdd.getBDD().deref(delta);
+				moved_aps.set(delta_slot);
+				bdd.getBDD().deref(apk.getAPBDD(delta_slot));
 				continue;
 			}
 			
 			// split AP when intersect
-			Set<Integer> apset = new HashSet<Integer>(port_aps_raw.get(from_port));
-			for(int ap : apset) {
+			BitSet apset = apk.getCandidateAPs(delta);
+			retainPortAPs(from_port, apset);
+			for(int slot = apset.nextSetBit(0); slot >= 0; slot = apset.nextSetBit(slot+1)) {
+				// the AP may have been merged away by a NAT element
+				if(!holdsAP(from_port, slot)) continue;
+				int ap = apk.getAPBDD(slot);
 				int intersect = bdd.and(delta, ap);
 				if(intersect != BDDACLWrapper.BDDFalse) {
+					int intersect_slot = slot;
 					if(intersect != ap) {
 						int dif = bdd.diff(ap, intersect);
 						apk.updateSplitAP(ap, dif, intersect);
-						if (moved_aps.contains(ap)) {
-							moved_aps.remove(ap);
-							moved_aps.add(dif);
-							moved_aps.add(intersect);
-							Logger.logInfo("updated a moved AP");
+						// dif keeps the slot of ap
+						intersect_slot = apk.getAPSlot(intersect);
+						if (moved_aps.get(slot)) {
+							moved_aps.set(intersect_slot);
+							logger.logInfo("updated a moved AP");
 						}
 						bdd.deref(dif);
 					}
-					transferOneAP(from_port, to_port, intersect);
-					int merged_ap = tryMergeIfNATElement(intersect); 
-					if (merged_ap != intersect) {
-						moved_aps.remove(intersect);
-						int another_ap = bdd.diff(merged_ap, intersect);
-						moved_aps.remove(another_ap);
-						bdd.deref(another_ap);
+					transferOneAP(from_port, to_port, intersect_slot);
+					int released = tryMergeIfNATElement(intersect_slot); 
+					if (released >= 0) {
+						moved_aps.clear(released);
 					}
-					moved_aps.add(merged_ap);
+					moved_aps.set(intersect_slot);
   					delta = bdd.diffTo(delta, intersect);
-					bdd.getBDD().deref(merged_ap);
-//					moved_aps.add(intersect);
-//					delta = bdd.diffTo(delta, intersect);
-//					bdd.getBDD().deref(intersect);
-					
+					bdd.getBDD().deref(apk.getAPBDD(intersect_slot));
 				}
 				if(delta == BDDACLWrapper.BDDFalse) break;
 			}
@@ -333,51 +427,75 @@ public abstract class Element {
 		}
 		
 		updateRewriteTableIfPresent();
-		return moved_aps;
 	}
 
-	protected void transferOneAP(String from_port, String to_port, int delta) {
-		port_aps_raw.get(from_port).remove(delta);
-		port_aps_raw.get(to_port).add(delta);
+	/**
+	 * @return the id of the port holding the AP
+	 */
+	public int getAPPort(int ap_slot) {
+		return apk.getAPPort(id, ap_slot);
+	}
+	
+	protected boolean holdsAP(int port, int ap_slot) {
+		if (port != 0) return port_aps_raw.get(port).get(ap_slot);
+		return apk.getAPPort(id, ap_slot) == 0;
+	}
+
+	protected void transferOneAP(int from_port, int to_port, int ap_slot) {
+		if (from_port != 0) port_aps_raw.get(from_port).clear(ap_slot);
+		if (to_port != 0) port_aps_raw.get(to_port).set(ap_slot);
 		
 		// update the AP edge reference		 
 		try {
-			apk.updateTransferAP(new PositionTuple(name, from_port), new PositionTuple(name, to_port), delta);
+			apk.updateTransferAP(id, to_port, ap_slot);
 		} catch (APNotFoundException e) {
 			e.printStackTrace();
 		}
 	}
 	
-	public void updateAPSplit(String portname, int origin, int parta, int partb) throws Exception {
-		Set<Integer> apset = port_aps_raw.get(portname);
-		if(!apset.contains(origin)) {
+	/**
+	 * called after the APKeeper hands the slot of origin over to parta;
+	 * only called on the default port if the element is a NAT element
+	 */
+	public void updateAPSplit(int port, int origin, int parta, int partb) throws Exception {
+		if (port == 0) return;
+		BitSet apset = port_aps_raw.get(port);
+		if(!apset.get(apk.getAPSlot(parta))) {
 			throw new APNotFoundException(origin);
 		}
-		apset.remove(origin);
-		apset.add(parta);
-		apset.add(partb);
+		apset.set(apk.getAPSlot(partb));
 	}
 	
-	public void updateAPSetMerge(String port, int merged_ap, int ap1, int ap2) throws Exception {
-		Set<Integer> apset = port_aps_raw.get(port);
-		if(!apset.contains(ap1)) {
+	/**
+	 * called before the APKeeper releases the slot of ap1
+	 */
+	public void updateAPSetMerge(int port, int merged_ap, int ap1, int ap2) throws Exception {
+		if (port == 0) return;
+		BitSet apset = port_aps_raw.get(port);
+		int slot1 = apk.getAPSlot(ap1);
+		if(!apset.get(slot1)) {
 			throw new APNotFoundException(ap1);
 		}
-		if(!apset.contains(ap2)) {
+		if(!apset.get(apk.getAPSlot(ap2))) {
 			throw new APNotFoundException(ap2);
 		}
-		apset.remove(ap1);
-		apset.remove(ap2);
-		apset.add(merged_ap);
+		apset.clear(slot1);
 	}
 	
-	public void updateAPSetMergeBatch(String port, int merged_ap, HashSet<Integer> aps) throws Exception {
-		Set<Integer> apset = port_aps_raw.get(port);
-		if(!apset.containsAll(aps)) {
-			throw new APSetNotFoundException(aps);
+	/**
+	 * called before the APKeeper releases all but the first slot
+	 */
+	public void updateAPSetMergeBatch(int port, int merged_ap, int[] ap_slots) throws Exception {
+		if (port == 0) return;
+		BitSet apset = port_aps_raw.get(port);
+		for (int slot : ap_slots) {
+			if(!apset.get(slot)) {
+				throw new APSetNotFoundException(Arrays.toString(ap_slots));
+			}
+		}
+		for (int i=1; i<ap_slots.length; i++) {
+			apset.clear(ap_slots[i]);
 		}
-		apset.removeAll(aps);
-		apset.add(merged_ap);
 	}
 	
 	protected void updateRewriteTableIfPresent() {
@@ -385,35 +503,42 @@ public abstract class Element {
 	}
 
 	public Set<String> getPorts() {
-		// TODO Auto-generated method stub
-		return port_aps_raw.keySet();
+		return port_ids.keySet();
 	}
 	
-	public Set<Integer> getPortAPs(String port){
-		return port_aps_raw.get(port);
+	public BitSet getPortAPs(String port){
+		Integer port_id = port_ids.get(port);
+		if (port_id == null) return null;
+		return getPortAPs(port_id);
 	}
 	
-	public HashSet<Integer> forwardAPs(String port, Set<Integer> aps){
-		HashSet<Integer> new_aps = new HashSet<>(aps);
-		if(new_aps.remove(BDDACLWrapper.BDDTrue)) {
-			return new HashSet<>(getPortAPs(port));
-		}
-		new_aps.retainAll(getPortAPs(port));
-		return new_aps;
+	/**
+	 * @return the AP slots held by the port; 
+	 *         the set of the default port is computed, others must not be modified
+	 */
+	public BitSet getPortAPs(int port){
+		if (port != 0) return port_aps_raw.get(port);
+		BitSet aps = apk.getAPSlots();
+		retainPortAPs(0, aps);
+		return aps;
 	}
-
-	public static boolean hasOverlap(Set<Integer> aps1, Set<Integer> aps2) {
-		if (aps1.isEmpty() || aps2.isEmpty()) {
-			return false;
+	
+	/*
+	 * keep the APs held by the port
+	 */
+	private void retainPortAPs(int port, BitSet aps) {
+		if (port != 0) {
+			aps.and(port_aps_raw.get(port));
+			return;
 		}
-		for (int ap1 : aps1) {
-			for (int ap2: aps2) {
-				int intersect = bdd.and(ap1, ap2);
-				if (intersect != BDDACLWrapper.BDDFalse) {
-					return true;
-				}
-			}
+		for (int i=1; i<port_aps_raw.size(); i++) {
+			aps.andNot(port_aps_raw.get(i));
 		}
-		return false;
+	}
+	
+	public BitSet forwardAPs(int port, BitSet aps){
+		BitSet new_aps = (BitSet) aps.clone();
+		retainPortAPs(port, new_aps);
+		return new_aps;
 	}
 }
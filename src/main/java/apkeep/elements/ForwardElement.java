@@ -38,43 +38,205 @@
  */
 package apkeep.elements;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import apkeep.core.ChangeItem;
+import apkeep.core.ChangeSet;
+import apkeep.exception.BDDNotFalseException;
 import apkeep.rules.ForwardingRule;
+import apkeep.rules.ForwardingRule6;
 import apkeep.rules.Rule;
-import apkeep.utils.Logger;
+import apkeep.utils.CheckpointReader;
+import apkeep.utils.CheckpointWriter;
+import apkeep.utils.FIBCompressor;
+import apkeep.utils.IntIntHashMap;
+import apkeep.utils.IntervalSet;
 import apkeep.utils.TrieTree;
+import apkeep.utils.TrieTree6;
 import apkeep.utils.TrieTreeNode;
 import common.BDDACLWrapper;
+import common.Utility;
 
 public class ForwardElement extends Element {
 	
 	TrieTree trie;
+	FIBCompressor compressor; // the original rules when the rules in the trie are compressed
+	TrieTree6 trie6; // the v6 rules, when there are v6 packets
 	Map<String, Set<String>> vlan_ports;
 
 	public ForwardElement(String ename) {
 		super(ename);
 		trie = new TrieTree();
 		vlan_ports = new HashMap<>();
+		addPort("default");
 	}
 
 	@Override
 	public void initialize() {
-		String default_port = "default";
-		HashSet<Integer> alltrue = new HashSet<Integer>();
-		alltrue.add(BDDACLWrapper.BDDTrue);
-		port_aps_raw.put(default_port, alltrue);
+		// the default port holds all packets implicitly
+		if (apk.getParameters().COMPRESS_FIB) {
+			compressor = new FIBCompressor();
+		}
+		if (apk.getParameters().IPV6) {
+			trie6 = new TrieTree6(bdd.getIPv6Packets());
+			// the v4 default rule leaves the v6 packets to the v6 one
+			trie.getDefaultRule().setHit_bdd(bdd.diff(BDDACLWrapper.BDDTrue, bdd.getIPv6Packets()));
+		}
+	}
+
+	@Override
+	protected void writeRules(CheckpointWriter out) throws IOException {
+		List<Rule> rules = trie.getRules();
+		out.writeInt(rules.size());
+		for (Rule rule : rules) {
+			ForwardingRule r = (ForwardingRule) rule;
+			if (isIntervalMode()) {
+				int hit_bdd = bdd.encodeDstIPIntervals(r.getHitIntervals().toArray());
+				writeRule(out, r, hit_bdd);
+				bdd.deref(hit_bdd);
+			}
+			else {
+				writeRule(out, r);
+			}
+			out.writeLong(r.getDstIP());
+			out.writeInt(r.getMaskLen());
+		}
+		if (compressor != null) {
+			writeOriginalRules(out);
+		}
+		if (trie6 != null) {
+			writeRules6(out);
+		}
+	}
+	
+	private void writeOriginalRules(CheckpointWriter out) throws IOException {
+		List<Rule> rules = compressor.getTrie().getRules();
+		out.writeInt(rules.size() - 1);
+		for (Rule rule : rules) {
+			if (rule == compressor.getTrie().getDefaultRule()) continue;
+			ForwardingRule r = (ForwardingRule) rule;
+			out.writeLong(r.getDstIP());
+			out.writeInt(r.getMaskLen());
+			out.writeString(r.getPort());
+			out.writeInt(r.getPriority());
+		}
+	}
+	
+	private void writeRules6(CheckpointWriter out) throws IOException {
+		List<Rule> rules = trie6.getRules();
+		out.writeInt(rules.size());
+		for (Rule rule : rules) {
+			ForwardingRule6 r = (ForwardingRule6) rule;
+			writeRule(out, r);
+			out.writeLong(r.getDstIPHigh());
+			out.writeLong(r.getDstIPLow());
+			out.writeInt(r.getMaskLen());
+		}
+	}
+	
+	@Override
+	protected void readRules(CheckpointReader in) throws IOException {
+		trie = new TrieTree();
+		int rule_number = in.readInt();
+		for (int i=0; i<rule_number; i++) {
+			int match_bdd = in.readBDD();
+			int hit_bdd = in.readBDD();
+			int priority = in.readInt();
+			String port = in.readString();
+			long prefix = in.readLong();
+			int prefixlen = in.readInt();
+			ForwardingRule r = new ForwardingRule(match_bdd, hit_bdd, prefix, prefixlen, port, priority);
+			r.setPort_id(getPortId(port));
+			
+			TrieTreeNode node = trie.insert(r);
+			ForwardingRule existing = (ForwardingRule) node.findRule(r);
+			// the default rule is created with the trie
+			if (existing != null) {
+				existing.setHit_bdd(hit_bdd);
+				r = existing;
+			}
+			else {
+				node.addRule(r);
+			}
+			if (isIntervalMode()) {
+				r.setMatchIntervals(bdd.getDstIPIntervals(r.getMatch_bdd()));
+				r.setHitIntervals(new IntervalSet(bdd.getDstIPIntervals(hit_bdd)));
+				bdd.deref(hit_bdd);
+				r.setHit_bdd(BDDACLWrapper.BDDFalse);
+			}
+		}
+		if (compressor != null) {
+			readOriginalRules(in);
+		}
+		if (trie6 != null) {
+			readRules6(in);
+		}
+	}
+	
+	private void readRules6(CheckpointReader in) throws IOException {
+		trie6 = new TrieTree6(bdd.getIPv6Packets());
+		int rule_number = in.readInt();
+		for (int i=0; i<rule_number; i++) {
+			int match_bdd = in.readBDD();
+			int hit_bdd = in.readBDD();
+			int priority = in.readInt();
+			String port = in.readString();
+			long prefix_high = in.readLong();
+			long prefix_low = in.readLong();
+			int prefixlen = in.readInt();
+			ForwardingRule6 r = new ForwardingRule6(match_bdd, hit_bdd, prefix_high, prefix_low, prefixlen, port, priority);
+			r.setPort_id(getPortId(port));
+			
+			TrieTreeNode node = trie6.insert(r);
+			Rule existing = node.findRule(r);
+			// the default rule is created with the trie
+			if (existing != null) {
+				existing.setHit_bdd(hit_bdd);
+			}
+			else {
+				node.addRule(r);
+			}
+		}
+	}
+	
+	private void readOriginalRules(CheckpointReader in) throws IOException {
+		compressor = new FIBCompressor();
+		List<ForwardingRule> removed = new ArrayList<>();
+		List<ForwardingRule> inserted = new ArrayList<>();
+		int rule_number = in.readInt();
+		for (int i=0; i<rule_number; i++) {
+			long prefix = in.readLong();
+			int prefixlen = in.readInt();
+			String port = in.readString();
+			int priority = in.readInt();
+			// the kept rules are the ones in the trie
+			TrieTreeNode node = trie.search(prefix, prefixlen);
+			ForwardingRule r = node == null ? null : (ForwardingRule) node.findRule(priority, getPortId(port));
+			if (r == null) {
+				r = new ForwardingRule(BDDACLWrapper.BDDFalse, prefix, prefixlen, port, priority);
+				r.setPort_id(getPortId(port));
+			}
+			compressor.insert(r, removed, inserted);
+			removed.clear();
+			inserted.clear();
+		}
 	}
 
 	public void addVlanPorts(Map<String, Set<String>> map) {
 		vlan_ports.putAll(map);
+		for (String vlan : map.keySet()) {
+			addPort(vlan);
+		}
 	}
 	
 	public Set<String> getVlanPorts(String vlan){
@@ -85,92 +247,505 @@ public class ForwardElement extends Element {
 	@Override
 	public Rule encodeOneRule(String rule) {
 		String[] tokens = rule.split(" ");
+		if (tokens[1].equals("fwd6")) {
+			return encodeRule6(tokens);
+		}
 		long prefix = Long.valueOf(tokens[3]);
 		int prefixlen = Integer.valueOf(tokens[4]);
 		String port = tokens[5];
 		int priority = Integer.valueOf(tokens[6]);
 		
-		int match_bdd = apk.encodePrefixBDD(prefix, prefixlen);
+		ForwardingRule r = new ForwardingRule(BDDACLWrapper.BDDFalse, prefix, prefixlen, port, priority);
+		r.setPort_id(addPort(port));
+		// the compressed rules are encoded only when they are kept
+		if (compressor == null) {
+			encodeMatch(r);
+		}
+		return r;
+	}
+	
+	private ForwardingRule6 encodeRule6(String[] tokens) {
+		long[] prefix = Utility.IPv6StringToLongs(tokens[3]);
+		int prefixlen = Integer.valueOf(tokens[4]);
+		String port = tokens[5];
+		int priority = Integer.valueOf(tokens[6]);
 		
-		return new ForwardingRule(match_bdd, prefix, prefixlen, port, priority);
+		int match_bdd = apk.encodePrefix6BDD(prefix[0], prefix[1], prefixlen);
+		ForwardingRule6 r = new ForwardingRule6(match_bdd, prefix[0], prefix[1], prefixlen, port, priority);
+		r.setPort_id(addPort(port));
+		return r;
+	}
+	
+	private TrieTree6 getTrie6() {
+		if (trie6 == null) {
+			throw new IllegalArgumentException("v6 rules are given to " + name + " without IPV6");
+		}
+		return trie6;
+	}
+	
+	private void encodeMatch(ForwardingRule r) {
+		r.setMatch_bdd(apk.encodePrefixBDD(r.getDstIP(), r.getMaskLen()));
+		if (isIntervalMode()) {
+			r.setMatchIntervals(bdd.getDstIPIntervals(r.getMatch_bdd()));
+		}
+	}
+	
+	/*
+	 * the original rules are told apart from the rules in the trie when they are compressed
+	 */
+	private TrieTree getOriginalTrie() {
+		return compressor != null ? compressor.getTrie() : trie;
+	}
+	
+	/**
+	 * @return the original rules forwarded as a rule in the trie, only the rule itself without compression
+	 */
+	public List<ForwardingRule> getOriginalRules(ForwardingRule rule) {
+		if (compressor != null) {
+			return compressor.getOriginalRules(rule);
+		}
+		List<ForwardingRule> rules = new ArrayList<>();
+		rules.add(rule);
+		return rules;
+	}
+
+	/**
+	 * @return the original rule matching a dst ip, the default rule if none
+	 */
+	public ForwardingRule getMatchedRule(long dst_ip) {
+		ForwardingRule rule = trie.lookup(dst_ip);
+		if (compressor == null || rule == trie.getDefaultRule()) return rule;
+		// the original rule of the highest priority is forwarded as the rule matched in the trie
+		ForwardingRule matched = rule;
+		for (ForwardingRule r : compressor.getOriginalRules(rule)) {
+			if (r.getPriority() > matched.getPriority() 
+					&& ((dst_ip ^ r.getDstIP()) & 0xffffffffL) >>> (32 - r.getMaskLen()) == 0) {
+				matched = r;
+			}
+		}
+		return matched;
+	}
+	
+	public boolean isCompressed() {
+		return compressor != null;
+	}
+	
+	/**
+	 * @return the original rules forwarding the APs to a physical port, 
+	 * found in the trie by the overlapping hits
+	 */
+	public List<ForwardingRule> getForwardingRules(String port, BitSet ap_slots) {
+		List<ForwardingRule> rules = new ArrayList<>();
+		for (Rule rule : trie.getRules()) {
+			if (!rule.getPort().equals(port) && !getVlanPorts(rule.getPort()).contains(port)) continue;
+			int hit = getForwardingHit(rule);
+			if (hit == BDDACLWrapper.BDDFalse) continue;
+			if (!apk.getOverlapAPs(hit, ap_slots).isEmpty()) {
+				rules.addAll(getOriginalRules((ForwardingRule) rule));
+			}
+			bdd.deref(hit);
+		}
+		return rules;
+	}
+	
+	/**
+	 * @return the number of the original v4 rules, without the default rule
+	 */
+	public int getOriginalRuleNum() {
+		return compressor != null ? compressor.getOriginalRuleNum() : getRuleNum();
+	}
+	
+	/**
+	 * @return the number of the v4 rules in the trie, without the default rule
+	 */
+	public int getRuleNum() {
+		return trie.getRules().size() - 1;
+	}
+
+	/**
+	 * @return the hit of the rule in the trie forwarding the packets of an original rule,
+	 * or false when they stay on the default port
+	 */
+	public int getForwardingHit(Rule rule) {
+		ForwardingRule r = (ForwardingRule) rule;
+		if (compressor != null) {
+			r = compressor.getCompressedRule(r);
+		}
+		if (r.getPort().equals(trie.getDefaultRule().getPort())) {
+			return BDDACLWrapper.BDDFalse;
+		}
+		if (isIntervalMode()) {
+			return r.getHitIntervals() == null ? BDDACLWrapper.BDDFalse
+					: bdd.encodeDstIPIntervals(r.getHitIntervals().toArray());
+		}
+		return bdd.ref(r.getHit_bdd());
+	}
+
+	@Override
+	public boolean isRedundantUpdate(String op, String rule) {
+		String[] tokens = rule.split(" ");
+		TrieTreeNode node;
+		if (tokens[1].equals("fwd6")) {
+			long[] prefix = Utility.IPv6StringToLongs(tokens[3]);
+			node = getTrie6().search(prefix[0], prefix[1], Integer.parseInt(tokens[4]));
+		}
+		else {
+			node = getOriginalTrie().search(Long.parseLong(tokens[3]), Integer.parseInt(tokens[4]));
+		}
+		int port_id = getPortId(tokens[5]);
+		boolean found = node != null && port_id != -1 
+				&& node.findRule(Integer.parseInt(tokens[6]), port_id) != null;
+		if (op.equals("+") && found) {
+			logger.logInfo("duplicate rule " + rule);
+			return true;
+		}
+		if (op.equals("-") && !found) {
+			logger.logInfo("Rule not found " + rule);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param fib - the fields of the rules the element should have, "prefix prefixlen port priority"
+	 * @return the updates turning the rules of the element into the fib, "+ fields" or "- fields"
+	 */
+	public List<String> diffRules(Set<String> fib) {
+		Set<String> inserted = new LinkedHashSet<>(fib);
+		List<String> changes = new ArrayList<>();
+		TrieTree original = getOriginalTrie();
+		for (Rule rule : original.getRules()) {
+			if (rule == original.getDefaultRule()) continue;
+			ForwardingRule r = (ForwardingRule) rule;
+			String fields = r.getDstIP() + " " + r.getMaskLen() + " " + r.getPort() + " " + r.getPriority();
+			if (!inserted.remove(fields)) {
+				changes.add("- " + fields);
+			}
+		}
+		for (String fields : inserted) {
+			changes.add("+ " + fields);
+		}
+		return changes;
+	}
+
+	/**
+	 * load the first rules of the element at once: the rules are put into the trie, 
+	 * and their hits are computed in one pass by decreasing priority, 
+	 * as if the rules were inserted one by one
+	 * @return the changes from the default port to the predicate of each port
+	 */
+	public List<ChangeItem> loadRules(List<Rule> rules) {
+		if (compressor != null) {
+			rules = compressRules(rules);
+		}
+		
+		// in the reverse order, so that a later rule comes first among the rules of its priority
+		List<Rule> loaded = new ArrayList<>();
+		for (int i=rules.size()-1; i>=0; i--) {
+			Rule rule = rules.get(i);
+			TrieTreeNode node = trie.insert((ForwardingRule) rule);
+			if (node.hasRule(rule)) {
+				logger.logInfo("duplicate rule " + rule.toString());
+				continue;
+			}
+			node.addRule(rule);
+			loaded.add(rule);
+		}
+		Collections.sort(loaded);
+		
+		if (isIntervalMode()) {
+			return loadIntervalHits(loaded);
+		}
+		
+		IntIntHashMap port_predicates = new IntIntHashMap();
+		int covered = BDDACLWrapper.BDDFalse;
+		for (Rule rule : loaded) {
+			int hit_bdd = bdd.diff(rule.getMatch_bdd(), covered);
+			rule.setHit_bdd(hit_bdd);
+			covered = bdd.orTo(covered, rule.getMatch_bdd());
+			if (hit_bdd == BDDACLWrapper.BDDFalse) continue;
+			int predicate = port_predicates.get(rule.getPort_id());
+			if (predicate == -1) predicate = BDDACLWrapper.BDDFalse;
+			port_predicates.put(rule.getPort_id(), bdd.orTo(predicate, hit_bdd));
+		}
+		Rule default_rule = trie.getDefaultRule();
+		default_rule.setHit_bdd(bdd.diffTo(default_rule.getHit_bdd(), covered));
+		bdd.deref(covered);
+		
+		List<ChangeItem> change_set = new ArrayList<>();
+		for (int port=0; port<getPortNumber(); port++) {
+			int predicate = port_predicates.get(port);
+			if (predicate == -1) continue;
+			if (port == default_rule.getPort_id()) {
+				bdd.deref(predicate);
+				continue;
+			}
+			change_set.add(new ChangeItem(default_rule.getPort_id(), port, predicate));
+		}
+		return change_set;
+	}
+	
+	/*
+	 * @return the rules kept by the compressor, encoded
+	 */
+	private List<Rule> compressRules(List<Rule> rules) {
+		List<ForwardingRule> removed = new ArrayList<>();
+		List<ForwardingRule> inserted = new ArrayList<>();
+		for (Rule rule : rules) {
+			if (!compressor.insert((ForwardingRule) rule, removed, inserted)) {
+				logger.logInfo("duplicate rule " + rule.toString());
+			}
+			removed.clear();
+			inserted.clear();
+		}
+		List<Rule> kept_rules = new ArrayList<>();
+		for (Rule rule : rules) {
+			if (compressor.isKept(rule)) {
+				encodeMatch((ForwardingRule) rule);
+				kept_rules.add(rule);
+			}
+		}
+		return kept_rules;
+	}
+	
+	/**
+	 * the interval version of loadRules, with the rules sorted
+	 */
+	private List<ChangeItem> loadIntervalHits(List<Rule> loaded) {
+		Map<Integer, IntervalSet> port_predicates = new HashMap<>();
+		IntervalSet covered = new IntervalSet();
+		for (Rule rule : loaded) {
+			ForwardingRule r = (ForwardingRule) rule;
+			IntervalSet hit = new IntervalSet(r.getMatchIntervals());
+			hit.removeAll(covered.intersect(r.getMatchIntervals()));
+			r.setHitIntervals(hit);
+			covered.addAll(hit);
+			if (hit.isEmpty()) continue;
+			if (!port_predicates.containsKey(r.getPort_id())) {
+				port_predicates.put(r.getPort_id(), new IntervalSet());
+			}
+			port_predicates.get(r.getPort_id()).addAll(hit);
+		}
+		ForwardingRule default_rule = trie.getDefaultRule();
+		default_rule.getHitIntervals().removeAll(covered);
+		
+		List<ChangeItem> change_set = new ArrayList<>();
+		for (int port=0; port<getPortNumber(); port++) {
+			IntervalSet predicate = port_predicates.get(port);
+			if (predicate == null || port == default_rule.getPort_id()) continue;
+			change_set.add(new ChangeItem(default_rule.getPort_id(), port, bdd.encodeDstIPIntervals(predicate.toArray())));
+		}
+		return change_set;
 	}
 
 	@Override
 	public List<ChangeItem> insertOneRule(Rule rule) throws Exception {
+		// the v6 rules are not compressed
+		if (rule instanceof ForwardingRule6) {
+			return insertToNode(getTrie6().insert((ForwardingRule6) rule), rule);
+		}
+		if (compressor == null) {
+			return insertToTrie(rule);
+		}
+		List<ForwardingRule> removed = new ArrayList<>();
+		List<ForwardingRule> inserted = new ArrayList<>();
+		if (!compressor.insert((ForwardingRule) rule, removed, inserted)) {
+			logger.logInfo("duplicate rule " + rule.toString());
+		}
+		return updateCompressedRules(removed, inserted);
+	}
+
+	@Override
+	public List<ChangeItem> removeOneRule(Rule rule) throws Exception {
+		if (rule instanceof ForwardingRule6) {
+			return removeFromNode(getTrie6().search((ForwardingRule6) rule), rule);
+		}
+		if (compressor == null) {
+			return removeFromTrie(rule);
+		}
+		List<ForwardingRule> removed = new ArrayList<>();
+		List<ForwardingRule> inserted = new ArrayList<>();
+		if (compressor.remove((ForwardingRule) rule, removed, inserted) == null) {
+			logger.logInfo("Rule not found " + rule.toString());
+		}
+		return updateCompressedRules(removed, inserted);
+	}
+	
+	/*
+	 * update the trie by the changes of the compressed rules, whose changes are coalesced
+	 */
+	private List<ChangeItem> updateCompressedRules(List<ForwardingRule> removed, List<ForwardingRule> inserted) throws Exception {
+		ChangeSet change_set = new ChangeSet(bdd);
+		for (ForwardingRule r : removed) {
+			change_set.append(removeFromTrie(r));
+		}
+		for (ForwardingRule r : inserted) {
+			encodeMatch(r);
+			change_set.append(insertToTrie(r));
+		}
+		return change_set.getChangeItems();
+	}
+
+	private List<ChangeItem> insertToTrie(Rule rule) throws Exception {
 		// find the node in the trie
-		TrieTreeNode node = trie.insert((ForwardingRule) rule);
-		
+		return insertToNode(trie.insert((ForwardingRule) rule), rule);
+	}
+	
+	private List<ChangeItem> insertToNode(TrieTreeNode node, Rule rule) throws Exception {
 		// duplicate rules
 		if (node.hasRule(rule)) {
-			Logger.logInfo("duplicate rule " + rule.toString());
+			logger.logInfo("duplicate rule " + rule.toString());
 			return new ArrayList<ChangeItem>();
 		}
 		
 		// get the affected rules
-		ArrayList<Rule> affected_rules = getAffectedRules(node);
-		List<ChangeItem> change_set = identifyChangesInsert(rule, affected_rules);
-		
-		// check whether the forwarding port exists, if not create it, 
-		// and initialize the AP set of the port to empty
-		port_aps_raw.putIfAbsent(rule.getPort(), new HashSet<Integer>());
+		Iterator<Rule> affected_rules = node.getAffectedRules(rule.getPriority());
+		List<ChangeItem> change_set = isIntervalMode() 
+				? identifyIntervalChangesInsert((ForwardingRule) rule, affected_rules) 
+				: identifyChangesInsert(rule, affected_rules);
 		
 		// insert the rule
 		node.addRule(rule);
 		return change_set;
 	}
 
-	@Override
-	public List<ChangeItem> removeOneRule(Rule rule) throws Exception {
+	private List<ChangeItem> removeFromTrie(Rule rule) throws Exception {
 		// find the node in the trie
-		TrieTreeNode node = trie.search((ForwardingRule) rule);
+		return removeFromNode(trie.search((ForwardingRule) rule), rule);
+	}
+	
+	private List<ChangeItem> removeFromNode(TrieTreeNode node, Rule rule) throws Exception {
 		if(node == null) {
-			Logger.logInfo("Node not found " + rule.toString());
+			logger.logInfo("Node not found " + rule.toString());
 			return new ArrayList<ChangeItem>();
 		}
 		
 		// find the rule in the node
 		Rule rule_to_remove = node.findRule(rule);
 		if(rule_to_remove == null) {
-			Logger.logInfo("Rule not found " + rule.toString());
+			logger.logInfo("Rule not found " + rule.toString());
 			return new ArrayList<ChangeItem>();
 		}
 		
 		// remove if rule hits no packets
-		if(rule_to_remove.getHit_bdd() == BDDACLWrapper.BDDFalse) {
+		if(isIntervalMode() ? ((ForwardingRule) rule_to_remove).getHitIntervals().isEmpty() 
+				: rule_to_remove.getHit_bdd() == BDDACLWrapper.BDDFalse) {
 			removeRule(node, rule_to_remove);
-			Logger.logInfo("hidden rule deleted");
+			logger.logInfo("hidden rule deleted");
 			return new ArrayList<ChangeItem>();
 		}
 		
-		// get the affected rules
-		ArrayList<Rule> affected_rules = getAffectedRules(node);
-		List<ChangeItem> change_set = identifyChangesRemove(rule_to_remove, affected_rules);
+		// get the affected rules, the removed rule hands its headers to lower ones only
+		Iterator<Rule> affected_rules = node.getAffectedRules(rule_to_remove.getPriority() - 1);
+		List<ChangeItem> change_set = isIntervalMode() 
+				? identifyIntervalChangesRemove((ForwardingRule) rule_to_remove, affected_rules) 
+				: identifyChangesRemove(rule_to_remove, affected_rules);
 		
 		removeRule(node, rule_to_remove);
 		return change_set;
 	}
 	
-	private ArrayList<Rule> getAffectedRules(TrieTreeNode node) {
-		ArrayList<Rule> affected_rules = new ArrayList<>();
-		affected_rules.addAll(node.getDescendantRules());
-		affected_rules.addAll(node.getAncestorRules());
-		affected_rules.addAll(node.getRules());
-		Arrays.sort(affected_rules.toArray());
-		return affected_rules;
+	/*
+	 * the hits of the forwarding rules are kept as dst ip intervals, 
+	 * and only the deltas are encoded to BDDs for the predicate update
+	 */
+	private boolean isIntervalMode() {
+		// the intervals are on the v4 dst ip only
+		return apk.getParameters().INTERVAL_HITS && !apk.getParameters().IPV6;
+	}
+	
+	/**
+	 * the interval version of identifyChangesInsert
+	 */
+	private List<ChangeItem> identifyIntervalChangesInsert(ForwardingRule rule, Iterator<Rule> affected_rules) {
+		List<ChangeItem> change_set = new ArrayList<>();
+		
+		long[] match = rule.getMatchIntervals();
+		long match_size = getSize(match);
+		IntervalSet hit = new IntervalSet();
+		// stop once the inserted rule hits all it matches
+		while (affected_rules.hasNext() && hit.size() != match_size) {
+			ForwardingRule item = (ForwardingRule) affected_rules.next();
+			IntervalSet delta = item.getHitIntervals().intersect(match);
+			if (delta.isEmpty()) {
+				continue;
+			}
+			item.getHitIntervals().removeAll(delta);
+			hit.addAll(delta);
+			if (item.getPort_id() != rule.getPort_id()) {
+				change_set.add(new ChangeItem(item.getPort_id(), rule.getPort_id(), encodeDelta(delta, rule, match_size)));
+			}
+		}
+		
+		rule.setHitIntervals(hit);
+		
+		return change_set;
+	}
+	
+	/**
+	 * the interval version of identifyChangesRemove
+	 */
+	private List<ChangeItem> identifyIntervalChangesRemove(ForwardingRule rule, Iterator<Rule> affected_rules) throws Exception {
+		List<ChangeItem> change_set = new ArrayList<>();
+		
+		IntervalSet hit = rule.getHitIntervals();
+		long match_size = getSize(rule.getMatchIntervals());
+		while (affected_rules.hasNext() && !hit.isEmpty()) {
+			ForwardingRule item = (ForwardingRule) affected_rules.next();
+			IntervalSet delta = hit.intersect(item.getMatchIntervals());
+			if (delta.isEmpty()) {
+				continue;
+			}
+			item.getHitIntervals().addAll(delta);
+			hit.removeAll(delta);
+			if (item.getPort_id() != rule.getPort_id()) {
+				change_set.add(new ChangeItem(rule.getPort_id(), item.getPort_id(), encodeDelta(delta, rule, match_size)));
+			}
+		}
+		
+		if (!hit.isEmpty()) {
+			throw new BDDNotFalseException(bdd.encodeDstIPIntervals(hit.toArray()));
+		}
+		
+		return change_set;
+	}
+	
+	private long getSize(long[] intervals) {
+		long size = 0;
+		for (int i=0; i<intervals.length; i+=2) {
+			size += intervals[i+1] - intervals[i];
+		}
+		return size;
+	}
+	
+	/*
+	 * the delta within the match of the rule is the match when it is as large
+	 */
+	private int encodeDelta(IntervalSet delta, ForwardingRule rule, long match_size) {
+		if (delta.size() == match_size) {
+			return bdd.ref(rule.getMatch_bdd());
+		}
+		return bdd.encodeDstIPIntervals(delta.toArray());
 	}
 	
 	private void removeRule(TrieTreeNode node, Rule rule) {
 		node.removeRule(rule);
-		if(node.noRules()) {
+		if(node.noRules() && rule instanceof ForwardingRule6) {
+			ForwardingRule6 r = (ForwardingRule6) rule;
+			apk.removePrefix6BDD(r.getDstIPHigh(), r.getDstIPLow(), r.getMaskLen());
+			bdd.deref(rule.getMatch_bdd());
+			trie6.delete(node);
+		}
+		else if(node.noRules()) {
 			ForwardingRule r = (ForwardingRule) rule;
 			apk.removePrefixBDD(r.getDstIP(), r.getMaskLen());
 			bdd.deref(rule.getMatch_bdd());
-        	node.delete();
+        	trie.delete(node);
 		}
 	}
 
 	@Override
-	protected int tryMergeIfNATElement(int delta) {
-		return delta;
+	protected int tryMergeIfNATElement(int ap_slot) {
+		return -1;
 	}
 }
@@ -38,79 +38,150 @@
  */
 package apkeep.elements;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import apkeep.core.ChangeItem;
 import apkeep.exception.APNotFoundException;
 import apkeep.rules.RewriteRule;
 import apkeep.rules.Rule;
-import apkeep.utils.Logger;
+import apkeep.utils.CheckpointReader;
+import apkeep.utils.CheckpointWriter;
+import apkeep.utils.OrderedRules;
 import common.BDDACLWrapper;
-import common.PositionTuple;
+import common.Fields;
 import common.Utility;
 
 public class NATElement extends Element {
 
-	LinkedList<Rule> rewrite_rules;
+	OrderedRules rewrite_rules;
 	HashMap<Integer, HashSet<Integer>> rewrite_table;
 	HashSet<Integer> output_aps;
 	HashMap<String, Rule> rule_map;
 
 	public NATElement(String ename) {
 		super(ename);
-		rewrite_rules = new LinkedList<>();
+		rewrite_rules = new OrderedRules();
 		rewrite_table = new HashMap<Integer, HashSet<Integer>>();
 		output_aps = new HashSet<Integer>();
 		rule_map = new HashMap<>();
+		addPort("default");
 	}
 
 	@Override
 	public void initialize() {
 		// initialize the AP set for default rewrite rule
 		RewriteRule default_rule = new RewriteRule(BDDACLWrapper.BDDTrue, BDDACLWrapper.BDDTrue, 
-				BDDACLWrapper.BDDTrue, "default", 0);
+				BDDACLWrapper.BDDTrue, bdd.get_field_bdd(Fields.dst_ip), "default", 0);
+		default_rule.setPort_id(addPort("default"));
 		rewrite_rules.add(default_rule);
 		rule_map.put(default_rule.getPort(), default_rule);
+	}
+	
+	@Override
+	protected void writeRules(CheckpointWriter out) throws IOException {
+		out.writeInt(rewrite_rules.size());
+		for (Rule rule : rewrite_rules) {
+			writeRule(out, rule);
+			out.writeBDD(((RewriteRule) rule).getNew_pkt_bdd());
+		}
 		
-		HashSet<Integer> alltrue = new HashSet<Integer>();
-		alltrue.add(BDDACLWrapper.BDDTrue);
-		port_aps_raw.put(default_rule.getPort(), alltrue);
+		out.writeInt(rewrite_table.size());
+		for (Map.Entry<Integer, HashSet<Integer>> entry : rewrite_table.entrySet()) {
+			out.writeBDD(entry.getKey());
+			writeBDDs(out, entry.getValue());
+		}
+		writeBDDs(out, output_aps);
 	}
 	
-	public HashMap<Integer, HashSet<Integer>> getRewrite_table() {
-		return rewrite_table;
+	private void writeBDDs(CheckpointWriter out, Set<Integer> bdds) throws IOException {
+		out.writeInt(bdds.size());
+		for (int one_bdd : bdds) {
+			out.writeBDD(one_bdd);
+		}
 	}
 	
 	@Override
-	public HashSet<Integer> forwardAPs(String port, Set<Integer> aps){
-		HashSet<Integer> new_aps = new HashSet<>(aps);
-		if(new_aps.remove(BDDACLWrapper.BDDTrue)) {
-			new_aps = new HashSet<>(getPortAPs(port));
+	protected void readRules(CheckpointReader in) throws IOException {
+		rewrite_rules.clear();
+		rule_map.clear();
+		int rule_number = in.readInt();
+		for (int i=0; i<rule_number; i++) {
+			int match_bdd = in.readBDD();
+			int hit_bdd = in.readBDD();
+			int priority = in.readInt();
+			String port = in.readString();
+			int new_pkt_bdd = in.readBDD();
+			RewriteRule r = new RewriteRule(match_bdd, hit_bdd, new_pkt_bdd, bdd.get_field_bdd(Fields.dst_ip), port, priority);
+			r.setPort_id(getPortId(port));
+			// the new prefix is not written, but read off the cover of the new packets once
+			long cover = bdd.getDstIPCover(new_pkt_bdd);
+			r.setNewPrefix(cover >>> 8, (int) (cover & 0xff));
+			rewrite_rules.add(r);
+			rule_map.put(port, r);
 		}
-		else {
-			new_aps.retainAll(getPortAPs(port));
+		
+		rewrite_table.clear();
+		int table_size = in.readInt();
+		for (int i=0; i<table_size; i++) {
+			int ap = in.readBDD();
+			rewrite_table.put(ap, readBDDs(in));
 		}
-		return rewriteAPs(new_aps);
+		output_aps = readBDDs(in);
 	}
 	
-	public HashSet<Integer> rewriteAPs(HashSet<Integer> old_aps) {
-		HashSet<Integer> new_aps = new HashSet<Integer>();
-		for (int ap : old_aps) {
-			if (rewrite_table.containsKey(ap)) {
-				new_aps.addAll(rewrite_table.get(ap));
+	private HashSet<Integer> readBDDs(CheckpointReader in) {
+		HashSet<Integer> bdds = new HashSet<Integer>();
+		int size = in.readInt();
+		for (int i=0; i<size; i++) {
+			bdds.add(in.readBDD());
+		}
+		return bdds;
+	}
+	
+	public HashMap<Integer, HashSet<Integer>> getRewrite_table() {
+		return rewrite_table;
+	}
+	
+	@Override
+	public BitSet forwardAPs(int port, BitSet aps){
+		return rewriteAPs(super.forwardAPs(port, aps));
+	}
+	
+	public BitSet rewriteAPs(BitSet old_aps) {
+		BitSet new_aps = new BitSet();
+		for (int slot = old_aps.nextSetBit(0); slot >= 0; slot = old_aps.nextSetBit(slot+1)) {
+			HashSet<Integer> rewrited_aps = rewrite_table.get(apk.getAPBDD(slot));
+			if (rewrited_aps != null) {
+				for (int rewrited_ap : rewrited_aps) {
+					int rewrited_slot = apk.getAPSlot(rewrited_ap);
+					if (rewrited_slot >= 0) new_aps.set(rewrited_slot);
+				}
 			}
 			else {
-				new_aps.add(ap);
+				new_aps.set(slot);
 			}
 		}
 		return new_aps;
 	}
 
+	/**
+	 * @return the dst ip of a concrete packet after it is rewritten by the port, 
+	 *         the host bits out of the new prefix are kept
+	 */
+	public long rewriteDstIP(int port, long dst_ip) {
+		if (port == 0) return dst_ip;
+		RewriteRule rule = (RewriteRule) rule_map.get(port_names.get(port));
+		long mask = (0xffffffffL << (32 - rule.getNewPrefixLen())) & 0xffffffffL;
+		return (rule.getNewPrefix() & mask) | (dst_ip & ~mask & 0xffffffffL);
+	}
+
 	public boolean isMergable(int ap1, int ap2) {
 		if (!output_aps.contains(ap1) && !output_aps.contains(ap2)) 
 			return true;
@@ -157,55 +228,48 @@ public class NATElement extends Element {
 		int old_bdd = apk.encodePrefixBDD(old_prefix, old_prefixlen);
 		int new_bdd = apk.encodePrefixBDD(new_prefix, new_prefixlen);
 		
-		return new RewriteRule(old_bdd, new_bdd, new_ip, 65535);
+		RewriteRule r = new RewriteRule(old_bdd, new_bdd, bdd.get_field_bdd(Fields.dst_ip), new_ip, 65535);
+		r.setPort_id(addPort(new_ip));
+		r.setNewPrefix(new_prefix, new_prefixlen);
+		return r;
 	}
 
 	@Override
 	public List<ChangeItem> insertOneRule(Rule rule) throws Exception {
 		List<ChangeItem> change_set = identifyChangesInsert(rule, rewrite_rules);
 		rule_map.put(rule.getPort(), rule);
-		port_aps_raw.putIfAbsent(rule.getPort(), new HashSet<Integer>());
 		return change_set;
 	}
 
 	@Override
 	public List<ChangeItem> removeOneRule(Rule rule) throws Exception {
-		int index = findRule(rule);
-		if(index == rewrite_rules.size()) {
-			Logger.logInfo("Rule not found " + rule.toString());
+		Rule rule_to_remove = rewrite_rules.find(rule);
+		if(rule_to_remove == null) {
+			logger.logInfo("Rule not found " + rule.toString());
 			return new ArrayList<ChangeItem>();
 		}
-		Rule rule_to_remove = rewrite_rules.get(index);
 		// remove if rule hits no packets
 		if(rule_to_remove.getHit_bdd() == BDDACLWrapper.BDDFalse) {
-			removeRule(index);
-			Logger.logInfo("hidden rule deleted");
+			removeRule(rule_to_remove);
+			logger.logInfo("hidden rule deleted");
 			return new ArrayList<ChangeItem>();
 		}
 		
 		List<ChangeItem> change_set = identifyChangesRemove(rule_to_remove, rewrite_rules);
-		removeRule(index);
+		removeRule(rule_to_remove);
 		return change_set;
 	}
 	
-	private int findRule(Rule rule) {
-		int index = 0;
-		for(Rule r : rewrite_rules) {
-			if(r.equals(rule)) return index;
-			index++;
-		}
-		return index;
-	}
-	
-	private void removeRule(int index) {
-		bdd.deref(rewrite_rules.get(index).getMatch_bdd());
-		rewrite_rules.remove(index);
+	private void removeRule(Rule rule) {
+		bdd.deref(rule.getMatch_bdd());
+		rewrite_rules.remove(rule);
 	}
 	
 	@Override
-	protected void transferOneAP(String from_port, String to_port, int delta) {
-		port_aps_raw.get(from_port).remove(delta);
-		port_aps_raw.get(to_port).add(delta);
+	protected void transferOneAP(int from_port, int to_port, int ap_slot) {
+		int delta = apk.getAPBDD(ap_slot);
+		if (from_port != 0) port_aps_raw.get(from_port).clear(ap_slot);
+		if (to_port != 0) port_aps_raw.get(to_port).set(ap_slot);
 		
 		if (rewrite_table.containsKey(delta)) {
 			HashSet<Integer> old_aps = rewrite_table.get(delta);
@@ -215,7 +279,7 @@ public class NATElement extends Element {
 				for (int one_ap : new_aps) {
 					if (apk.hasAP(one_ap)) {
 						try {
-							apk.tryMergeAP(one_ap);
+							apk.tryMergeAP(apk.getAPSlot(one_ap));
 						} catch (Exception e) {
 							e.printStackTrace();
 						}
@@ -231,32 +295,27 @@ public class NATElement extends Element {
 			rewrite_table.put(delta, new HashSet<Integer>());
 		}
 		
-		if (to_port.equals("default")) {
+		// port 0 is the default port, which rewrites nothing
+		if (to_port == 0) {
 			rewrite_table.remove(delta);
 		}
 		else {
-			RewriteRule rule = (RewriteRule) rule_map.get(to_port);
+			RewriteRule rule = (RewriteRule) rule_map.get(port_names.get(to_port));
 			int delta_rewrite = bdd.nat(delta, rule.getField_bdd(), rule.getNew_pkt_bdd());
 			rewrite_table.get(delta).add(delta_rewrite);
 		}
 		
 		// update the AP edge reference		 
 		try {
-			apk.updateTransferAP(new PositionTuple(name, from_port), new PositionTuple(name, to_port), delta);
+			apk.updateTransferAP(id, to_port, ap_slot);
 		} catch (APNotFoundException e) {
 			e.printStackTrace();
 		}
 	}
 	
 	@Override
-	public void updateAPSplit(String portname, int origin, int parta, int partb) throws Exception {
-		Set<Integer> apset = port_aps_raw.get(portname);
-		if(!apset.contains(origin)) {
-			throw new APNotFoundException(origin);
-		}
-		apset.remove(origin);
-		apset.add(parta);
-		apset.add(partb);
+	public void updateAPSplit(int port, int origin, int parta, int partb) throws Exception {
+		super.updateAPSplit(port, origin, parta, partb);
 		
 		for (HashSet<Integer> aps : rewrite_table.values()) {
 			if (aps.contains(origin)) {
@@ -276,7 +335,7 @@ public class NATElement extends Element {
 			output_aps.removeAll(rewrite_table.get(origin));
 		}
 		rewrite_table.remove(origin);
-		RewriteRule rule = (RewriteRule) rule_map.get(portname);
+		RewriteRule rule = (RewriteRule) rule_map.get(port_names.get(port));
 		int parta_rewrite = bdd.nat(parta, rule.getField_bdd(), rule.getNew_pkt_bdd());
 		int partb_rewrite = bdd.nat(partb, rule.getField_bdd(), rule.getNew_pkt_bdd());
 		HashSet<Integer> parta_apset = new HashSet<Integer>();
@@ -290,17 +349,8 @@ public class NATElement extends Element {
 	}
 	
 	@Override
-	public void updateAPSetMerge(String port, int merged_ap, int ap1, int ap2) throws Exception {
-		Set<Integer> apset = port_aps_raw.get(port);
-		if(!apset.contains(ap1)) {
-			throw new APNotFoundException(ap1);
-		}
-		if(!apset.contains(ap2)) {
-			throw new APNotFoundException(ap2);
-		}
-		apset.remove(ap1);
-		apset.remove(ap2);
-		apset.add(merged_ap);
+	public void updateAPSetMerge(int port, int merged_ap, int ap1, int ap2) throws Exception {
+		super.updateAPSetMerge(port, merged_ap, ap1, ap2);
 		
 		for (HashSet<Integer> aps : rewrite_table.values()) {
 			if (aps.contains(ap1) && aps.contains(ap2)) {
@@ -326,7 +376,7 @@ public class NATElement extends Element {
 			
 		rewrite_table.remove(ap1);
 		rewrite_table.remove(ap2);
-		RewriteRule rule = (RewriteRule) rule_map.get(port);
+		RewriteRule rule = (RewriteRule) rule_map.get(port_names.get(port));
 		int merged_rewrite = bdd.nat(merged_ap, rule.getField_bdd(), rule.getNew_pkt_bdd());
 		HashSet<Integer> merged_apset = new HashSet<Integer>();
 		merged_apset.add(merged_rewrite);
@@ -365,17 +415,17 @@ public class NATElement extends Element {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
 			}
-			Logger.logInfo("Update rewrite table round " + update_round++);
+			logger.logInfo("Update rewrite table round " + update_round++);
 		}
 	}
 
 	@Override
-	protected int tryMergeIfNATElement(int delta) {
+	protected int tryMergeIfNATElement(int ap_slot) {
 		try {
-			return apk.tryMergeAP(delta);
+			return apk.tryMergeAP(ap_slot);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		return delta;
+		return -1;
 	}
 }
@@ -38,13 +38,11 @@
  */
 package apkeep.exception;
 
-import java.util.Set;
-
 public class APSetNotFoundException extends Exception {
 
 	private static final long serialVersionUID = 9145930457521805790L;
 
-	public APSetNotFoundException(Set<Integer> aps) {
+	public APSetNotFoundException(Object aps) {
 		super("AP set "+aps+" not completely contained");
 	}
 }
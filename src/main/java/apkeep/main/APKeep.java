@@ -49,11 +49,14 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import com.alibaba.fastjson.JSONObject;
 import apkeep.core.Network;
+import apkeep.core.ShardedNetwork;
+import apkeep.utils.CheckpointReader;
 import apkeep.utils.Evaluator;
 import apkeep.utils.Parameters;
 
@@ -63,53 +66,182 @@ public class APKeep {
     public static String workingPath;
     public static String outputPath;
 	public static String name = "unknown";
+	public static Parameters parameters;
 	public static Network net;
+	public static ShardedNetwork sharded_net; // instead of net when the network is sharded
 	public static Evaluator eva;
 
 	public static void init(String configPath) throws IOException {
+		initNetwork(configPath);
+		if(parameters.UPDATE_LOG && sharded_net == null) net.startUpdateLog(getUpdateLogPath());
+	}
+	
+	private static void initNetwork(String configPath) throws IOException {
+		if(net != null) net.closeUpdateLog();
 		workingPath = Paths.get(configPath).toRealPath().toString();
 		String paraFile = new String(Files.readAllBytes(Paths.get(workingPath, "parameters.json")));
 		JSONObject paras = JSONObject.parseObject(paraFile);
 		
-		parseParameters(paras);
+		if(paras.containsKey("NAME")) 
+			name = paras.getString("NAME");
+		parameters = parseParameters(paras);
 		outputPath = Paths.get(currentPath, "results", name+"_result.txt").toString();
 		
-		net = new Network(name);
-		eva = new Evaluator(name, outputPath);
+		net = null;
+		sharded_net = null;
+		// NAT rewrites headers to other shards
+		if(parameters.SHARD_NUMBER > 1 && !new File(workingPath, "nat.txt").exists()) {
+			sharded_net = createShardedNetwork(workingPath, name, parameters);
+		}
+		else {
+			net = createNetwork(workingPath, name, parameters);
+		}
+		eva = new Evaluator(name, outputPath, parameters);
+	}
+	
+	public static ShardedNetwork createShardedNetwork(String network_path, String network_name, Parameters network_parameters) throws IOException {
+		ShardedNetwork network = new ShardedNetwork(network_name, network_parameters, 
+				Paths.get(currentPath, "results").toString());
 		
-		ArrayList<String> topo = readFile(Paths.get(workingPath, "topo.txt").toString());
-		ArrayList<String> devices = readFile(Paths.get(workingPath, "devices.txt").toString());
-		Map<String, Set<String>> device_acls = readACLs(Paths.get(workingPath, "acls").toString());
-		Map<String, Map<String, Set<String>>> vlan_ports = readVlans(Paths.get(workingPath, "vlan.txt").toString());
-		Map<String, Set<String>> device_nats = readNATs(Paths.get(workingPath, "nat.txt").toString());
+		ArrayList<String> topo = readFile(Paths.get(network_path, "topo.txt").toString());
+		ArrayList<String> devices = readFile(Paths.get(network_path, "devices.txt").toString());
+		Map<String, Set<String>> device_acls = readACLs(Paths.get(network_path, "acls").toString(), network_name);
+		Map<String, Map<String, Set<String>>> vlan_ports = readVlans(Paths.get(network_path, "vlan.txt").toString());
 		
-		net.initializeNetwork(topo, devices, device_acls, vlan_ports, device_nats);
+		network.initializeNetwork(topo, devices, device_acls, vlan_ports);
+		return network;
+	}
+	
+	/**
+	 * create a network from the snapshot in the path, 
+	 * the network shares no state with other networks, so that several networks 
+	 * can be created and updated in parallel
+	 */
+	public static Network createNetwork(String network_path, String network_name, Parameters network_parameters) throws IOException {
+		Network network = new Network(network_name, network_parameters);
+		
+		ArrayList<String> topo = readFile(Paths.get(network_path, "topo.txt").toString());
+		ArrayList<String> devices = readFile(Paths.get(network_path, "devices.txt").toString());
+		Map<String, Set<String>> device_acls = readACLs(Paths.get(network_path, "acls").toString(), network_name);
+		Map<String, Map<String, Set<String>>> vlan_ports = readVlans(Paths.get(network_path, "vlan.txt").toString());
+		Map<String, Set<String>> device_nats = readNATs(Paths.get(network_path, "nat.txt").toString());
+		
+		network.initializeNetwork(topo, devices, device_acls, vlan_ports, device_nats);
+		return network;
 	}
 
-	private static void parseParameters(JSONObject paras) {
-		if(paras.containsKey("NAME")) 
-			name = paras.getString("NAME");
+	/**
+	 * initialize the network from the snapshot of the checkpoint, restore the checkpoint,
+	 * and replay the updates logged after it; the recovered network is written back to 
+	 * the checkpoint, which rotates the log
+	 */
+	public static void initFromCheckpoint(String checkpointFile) throws IOException {
+		long t0 = System.nanoTime();
+		CheckpointReader in = new CheckpointReader(checkpointFile);
+		initNetwork(in.getSnapshot());
+		if(sharded_net != null) {
+			throw new IOException("checkpoints are not supported with shards");
+		}
+		net.readCheckpoint(in);
+		long t1 = System.nanoTime();
+		System.out.println("Restored from checkpoint in " + (t1-t0)/1000000 + "ms, APs: " + net.getAPNum());
+		if(!parameters.UPDATE_LOG) return;
+		
+		int replayed;
+		try {
+			replayed = net.recoverFromUpdateLog(eva, getUpdateLogPath());
+		} catch (Exception e) {
+			// the network misses some logged updates, and is not kept running without its log
+			net = null;
+			throw new IOException("failed to replay the update log " + getUpdateLogPath(), e);
+		}
+		long t2 = System.nanoTime();
+		System.out.println("Replayed " + replayed + " logged updates in " + (t2-t1)/1000000 + "ms, APs: " + net.getAPNum());
+		if(replayed > 0) checkpoint(checkpointFile);
+	}
+	
+	private static String getUpdateLogPath() {
+		return Paths.get(currentPath, "results", name+"_update.log").toString();
+	}
+	
+	/**
+	 * sync the logged updates before exit
+	 */
+	public static void close() {
+		if(net == null) return;
+		try {
+			net.closeUpdateLog();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	public static void checkpoint(String checkpointFile) {
+		if(sharded_net != null) {
+			System.out.println("checkpoints are not supported with shards");
+			return;
+		}
+		try {
+			long t0 = System.nanoTime();
+			net.writeCheckpoint(Paths.get(checkpointFile).toAbsolutePath().toString(), workingPath);
+			long t1 = System.nanoTime();
+			System.out.println("Checkpoint written in " + (t1-t0)/1000000 + "ms");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static Parameters parseParameters(JSONObject paras) {
+		Parameters parameters = new Parameters();
 		if(paras.containsKey("BDD_TABLE_SIZE")) 
-			Parameters.BDD_TABLE_SIZE = paras.getIntValue("BDD_TABLE_SIZE");
+			parameters.BDD_TABLE_SIZE = paras.getIntValue("BDD_TABLE_SIZE");
 		if(paras.containsKey("GC_INTERVAL")) 
-			Parameters.GC_INTERVAL = paras.getIntValue("GC_INTERVAL");
+			parameters.GC_INTERVAL = paras.getIntValue("GC_INTERVAL");
 		if(paras.containsKey("TOTAL_AP_THRESHOLD")) 
-			Parameters.TOTAL_AP_THRESHOLD = paras.getIntValue("TOTAL_AP_THRESHOLD");
+			parameters.TOTAL_AP_THRESHOLD = paras.getIntValue("TOTAL_AP_THRESHOLD");
 		if(paras.containsKey("LOW_MERGEABLE_AP_THRESHOLD")) 
-			Parameters.LOW_MERGEABLE_AP_THRESHOLD = paras.getIntValue("LOW_MERGEABLE_AP_THRESHOLD");
+			parameters.LOW_MERGEABLE_AP_THRESHOLD = paras.getIntValue("LOW_MERGEABLE_AP_THRESHOLD");
 		if(paras.containsKey("HIGH_MERGEABLE_AP_THRESHOLD")) 
-			Parameters.HIGH_MERGEABLE_AP_THRESHOLD = paras.getIntValue("HIGH_MERGEABLE_AP_THRESHOLD");
+			parameters.HIGH_MERGEABLE_AP_THRESHOLD = paras.getIntValue("HIGH_MERGEABLE_AP_THRESHOLD");
 		if(paras.containsKey("FAST_UPDATE_THRESHOLD")) 
-			Parameters.FAST_UPDATE_THRESHOLD = paras.getDoubleValue("FAST_UPDATE_THRESHOLD");
+			parameters.FAST_UPDATE_THRESHOLD = paras.getDoubleValue("FAST_UPDATE_THRESHOLD");
+		if(paras.containsKey("ADAPTIVE_MERGE")) 
+			parameters.ADAPTIVE_MERGE = paras.getBooleanValue("ADAPTIVE_MERGE");
+		if(paras.containsKey("MERGE_STRATEGY")) 
+			parameters.MERGE_STRATEGY = paras.getString("MERGE_STRATEGY");
+		if(paras.containsKey("MERGE_BUDGET")) 
+			parameters.MERGE_BUDGET = paras.getIntValue("MERGE_BUDGET");
+		if(paras.containsKey("UPDATE_BATCH_SIZE")) 
+			parameters.UPDATE_BATCH_SIZE = paras.getIntValue("UPDATE_BATCH_SIZE");
+		if(paras.containsKey("UPDATE_WINDOW_SIZE")) 
+			parameters.UPDATE_WINDOW_SIZE = paras.getIntValue("UPDATE_WINDOW_SIZE");
+		if(paras.containsKey("UPDATE_WINDOW_TIME")) 
+			parameters.UPDATE_WINDOW_TIME = paras.getIntValue("UPDATE_WINDOW_TIME");
+		if(paras.containsKey("UPDATE_LOG")) 
+			parameters.UPDATE_LOG = paras.getBooleanValue("UPDATE_LOG");
+		if(paras.containsKey("UPDATE_LOG_SYNC_INTERVAL")) 
+			parameters.UPDATE_LOG_SYNC_INTERVAL = paras.getIntValue("UPDATE_LOG_SYNC_INTERVAL");
+		if(paras.containsKey("BULK_LOAD")) 
+			parameters.BULK_LOAD = paras.getBooleanValue("BULK_LOAD");
+		if(paras.containsKey("INTERVAL_HITS")) 
+			parameters.INTERVAL_HITS = paras.getBooleanValue("INTERVAL_HITS");
+		if(paras.containsKey("COMPRESS_FIB")) 
+			parameters.COMPRESS_FIB = paras.getBooleanValue("COMPRESS_FIB");
+		if(paras.containsKey("IPV6")) 
+			parameters.IPV6 = paras.getBooleanValue("IPV6");
+		if(paras.containsKey("SHARD_NUMBER")) 
+			parameters.SHARD_NUMBER = paras.getIntValue("SHARD_NUMBER");
 		if(paras.containsKey("PRINT_RESULT_INTERVAL")) 
-			Parameters.PRINT_RESULT_INTERVAL = paras.getIntValue("PRINT_RESULT_INTERVAL");
+			parameters.PRINT_RESULT_INTERVAL = paras.getIntValue("PRINT_RESULT_INTERVAL");
 		if(paras.containsKey("WRITE_RESULT_INTERVAL")) 
-			Parameters.WRITE_RESULT_INTERVAL = paras.getIntValue("WRITE_RESULT_INTERVAL");
+			parameters.WRITE_RESULT_INTERVAL = paras.getIntValue("WRITE_RESULT_INTERVAL");
+		return parameters;
 	}
 
 	public static void update() {
 		try {
-			net.run(eva, Paths.get(workingPath, "updates").toString());
+			if(sharded_net != null) sharded_net.run(eva, Paths.get(workingPath, "updates").toString());
+			else net.run(eva, Paths.get(workingPath, "updates").toString());
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -118,7 +250,8 @@ public class APKeep {
 
 	public static void update(String inputFile) {
 		try {
-			net.run(eva, Paths.get(inputFile).toRealPath().toString());
+			if(sharded_net != null) sharded_net.run(eva, Paths.get(inputFile).toRealPath().toString());
+			else net.run(eva, Paths.get(inputFile).toRealPath().toString());
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -126,6 +259,10 @@ public class APKeep {
 	}
 	
 	public static void checkLinkFailure() {
+		if(sharded_net != null) {
+			System.out.println("link failures are not checked with shards");
+			return;
+		}
 		try {
 			net.checkLinkFailure(eva);
 		} catch (IOException e) {
@@ -138,6 +275,15 @@ public class APKeep {
 		eva.printLoop(printer);
 	}
 	
+	public static void trace(String device, long[] fields, PrintStream printer) {
+		long t0 = System.nanoTime();
+		List<String> paths = sharded_net != null ? sharded_net.tracePacket(device, fields) : net.tracePacket(device, fields);
+		long t1 = System.nanoTime();
+		if(paths.isEmpty()) printer.println("unknown device " + device);
+		for(String path : paths) printer.println(path);
+		printer.println("Trace time: " + (t1-t0)/1000 + "us");
+	}
+	
 	public static ArrayList<String> readFile(String inputFile) throws IOException{
 		File file = new File(inputFile);
 		if(!file.exists()) return null;
@@ -161,6 +307,10 @@ public class APKeep {
 	}
 	
 	public static Map<String, Set<String>> readACLs(String inputFile) {
+		return readACLs(inputFile, name);
+	}
+	
+	public static Map<String, Set<String>> readACLs(String inputFile, String network_name) {
 		File file = new File(inputFile);
 		if(!file.exists()) return null;
 
@@ -171,7 +321,7 @@ public class APKeep {
 			if (acl_name.endsWith("_usage")) continue;
 			String device = acl_name.split("_")[0];
 			int index = 1;
-			if(name.equals("stanford")) {
+			if(network_name.equals("stanford")) {
 				device = device +"_"+acl_name.split("_")[1];
 				index++;
 			}
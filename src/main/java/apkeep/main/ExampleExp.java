@@ -38,14 +38,25 @@
  */
 package apkeep.main;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.alibaba.fastjson.JSONObject;
 
 import apkeep.core.Network;
 import apkeep.utils.Evaluator;
+import apkeep.utils.Parameters;
 
 public class ExampleExp {
 	
@@ -55,6 +66,7 @@ public class ExampleExp {
 	public static String updateFile;
 	
 	public static String name;
+	public static Parameters parameters;
 	public static Network net;
 	public static Evaluator eva;
 	
@@ -71,8 +83,9 @@ public class ExampleExp {
 		
 		topo = APKeep.readFile(Paths.get(workingPath, "topo.txt").toString());
 		
-		net = new Network(name);
-		eva = new Evaluator(name,outputPath);
+		parameters = new Parameters();
+		net = new Network(name, parameters);
+		eva = new Evaluator(name, outputPath, parameters);
 	}
 	
 	private static void runUpdates() throws Exception {
@@ -176,7 +189,48 @@ public class ExampleExp {
 		runLinkFailure();
 	}
 
+	/*
+	 * each network is created and updated on its own thread, with the parameters in its snapshot
+	 */
+	private static void runParallelExp(List<String> names, int threads) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<?>> results = new ArrayList<>();
+		for(final String network_name : names) {
+			results.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					String network_path = Paths.get(currentPath, "networks", network_name).toString();
+					Parameters network_parameters = new Parameters();
+					File parameter_file = Paths.get(network_path, "parameters.json").toFile();
+					if(parameter_file.exists()) {
+						String paras = new String(Files.readAllBytes(parameter_file.toPath()));
+						network_parameters = APKeep.parseParameters(JSONObject.parseObject(paras));
+					}
+					String network_output = Paths.get(currentPath, "results", network_name+"_result.txt").toString();
+					
+					Network network = APKeep.createNetwork(network_path, network_name, network_parameters);
+					Evaluator evaluator = new Evaluator(network_name, network_output, network_parameters);
+					network.run(evaluator, Paths.get(network_path, "updates").toString());
+					evaluator.printExpResults();
+					return null;
+				}
+			}));
+		}
+		executor.shutdown();
+		for(Future<?> result : results) {
+			result.get();
+		}
+	}
+
+	/**
+	 * run the experiments one after another, 
+	 * or run the networks given in the arguments in parallel, one thread for each
+	 */
 	public static void main(String[] args) throws Exception {
+		if(args.length > 0) {
+			runParallelExp(Arrays.asList(args), args.length);
+			return;
+		}
 		
 		run4SwitchExp();
 		runAirtel1Exp();
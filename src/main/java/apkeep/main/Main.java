@@ -39,6 +39,7 @@
 package apkeep.main;
 
 import java.io.IOException;
+import java.util.List;
 
 import org.jline.builtins.Completers;
 import org.jline.reader.LineReader;
@@ -47,6 +48,8 @@ import org.jline.reader.ParsedLine;
 import org.jline.terminal.Terminal;
 import org.jline.terminal.TerminalBuilder;
 
+import common.Utility;
+
 public class Main {
 
 	public static void main(String[] args) throws IOException {
@@ -61,12 +64,22 @@ public class Main {
 	    	 String line = reader.readLine("APKeep>");
              line = line.trim();
              
-             if (line.equalsIgnoreCase("exit")) break;
+             if (line.equalsIgnoreCase("exit")) {
+                 APKeep.close();
+                 break;
+             }
              ParsedLine pl = reader.getParser().parse(line, 0);
 
              if ("init".equals(pl.word()) && pl.words().size() == 2) {
                  APKeep.init(pl.words().get(1));
              }
+             else if ("init".equals(pl.word()) && pl.words().size() == 3 
+            		 && "--from-checkpoint".equals(pl.words().get(1))) {
+                 APKeep.initFromCheckpoint(pl.words().get(2));
+             }
+             else if ("checkpoint".equals(pl.word()) && pl.words().size() == 2) {
+                 APKeep.checkpoint(pl.words().get(1));
+             }
              else if("update".equals(pl.word())) {
                  if(pl.words().size() == 1)
                      APKeep.update();
@@ -89,6 +102,19 @@ public class Main {
                      default: usage();
                  }
              }
+             else if("trace".equals(pl.word()) && (pl.words().size() == 3 
+            		 || pl.words().size() == 4 || pl.words().size() == 7)) {
+                 List<String> words = pl.words();
+                 long[] fields = new long[5];
+                 fields[1] = Utility.IPStringToLong(words.get(2));
+                 if(words.size() > 3) fields[0] = Utility.IPStringToLong(words.get(3));
+                 if(words.size() > 4) {
+                	 fields[2] = Long.parseLong(words.get(4));
+                	 fields[3] = Long.parseLong(words.get(5));
+                	 fields[4] = Long.parseLong(words.get(6));
+                 }
+                 APKeep.trace(words.get(1), fields, System.out);
+             }
              else {
                  usage();
              }
@@ -101,9 +127,14 @@ public class Main {
                 "  Usage: ",
                 "    help                               show this message",
                 "    init <snapshot>                    initialize with a network snapshot and operation parameters",
+                "    init --from-checkpoint <file>      initialize with a checkpoint and the snapshot it is taken from,",
+                "                                       and replay the updates logged after the checkpoint",
                 "    update [<changes>]                 push rule changes on the init",
+                "    checkpoint <file>                  write a checkpoint of the current PPM",
                 "    check whatif                       answer \"what if\" questions for each possible link failure",
                 "    dump loops                         dump loops",
+                "    trace <device> <dst ip> [<src ip> [<protocol> <src port> <dst port>]]",
+                "                                       trace a concrete packet from the device",
                 "    exit                               exit apkeep"
         };
 
@@ -54,6 +54,7 @@ public class FilterRule extends Rule {
 	public String destinationWildcard;
 	public String destinationPortLower;
 	public String destinationPortUpper;
+	private String key;
 
 	public FilterRule(int match_bdd, int hit_bdd, String port, int priority) {
 		super(match_bdd, hit_bdd, priority, port);
@@ -87,17 +88,36 @@ public class FilterRule extends Rule {
 		this.destinationPortUpper = rule.destinationPortUpper;		
 	}
 	
+	/**
+	 * the fields in one string, built once the rule is complete
+	 */
+	@Override
+	public String getKey() {
+		if (key == null) {
+			key = buildKey();
+		}
+		return key;
+	}
+	
 	@Override
 	public boolean equals(Object o) {
 		if(o instanceof FilterRule) {
 			FilterRule another = (FilterRule) o;
-			if(this.toString().equals(another.toString()))
-				return true;
+			return getKey().equals(another.getKey());
 		}
 		return false;
 	}
 	
+	@Override
+	public int hashCode() {
+		return getKey().hashCode();
+	}
+	
 	public String toString() {
+		return getKey();
+	}
+	
+	private String buildKey() {
 		return accessList
 				+ " "
 				+ accessListNumber
@@ -38,9 +38,15 @@
  */
 package apkeep.rules;
 
+import apkeep.utils.IntervalSet;
+import common.Utility;
+
 public class ForwardingRule extends Rule {
 	long dstIP;
 	int maskLen;
+	// the match and the hit as dst ip intervals, when the hits are not kept as BDDs
+	long[] match_intervals;
+	IntervalSet hit_intervals;
 
 	public ForwardingRule(int match_bdd, long dstip, int len, String port, int priority) {
 		super(match_bdd, priority, port);
@@ -61,4 +67,25 @@ public class ForwardingRule extends Rule {
 	public int getMaskLen() {
 		return maskLen;
 	}
+	
+	public long[] getMatchIntervals() {
+		return match_intervals;
+	}
+	
+	public void setMatchIntervals(long[] match_intervals) {
+		this.match_intervals = match_intervals;
+	}
+	
+	public IntervalSet getHitIntervals() {
+		return hit_intervals;
+	}
+	
+	public void setHitIntervals(IntervalSet hit_intervals) {
+		this.hit_intervals = hit_intervals;
+	}
+	
+	@Override
+	public String toString() {
+		return Utility.IPLongToString(dstIP) + "/" + maskLen + " " + getPort();
+	}
 }
@@ -38,26 +38,29 @@
  */
 package apkeep.rules;
 
-import apkeep.core.APKeeper;
-import common.Fields;
-
 public class RewriteRule extends Rule{
 	
 	private int field_bdd;
 	private int new_pkt_bdd;
+	// the new dst ip prefix, for rewriting concrete packets without the BDDs
+	private long new_prefix;
+	private int new_prefixlen;
 	
-	public RewriteRule(int old_bdd, int new_bdd, String rname, int p)
+	/**
+	 * @param dst_ip_bdd - the BDD of the destination IP field, which is rewritten
+	 */
+	public RewriteRule(int old_bdd, int new_bdd, int dst_ip_bdd, String rname, int p)
 	{
 		super(old_bdd, p, rname);
 		new_pkt_bdd = new_bdd;
-		field_bdd = APKeeper.bddengine.get_field_bdd(Fields.dst_ip);
+		field_bdd = dst_ip_bdd;
 	}
 	
-	public RewriteRule(int old_bdd, int hit_bdd, int new_bdd, String rname, int p)
+	public RewriteRule(int old_bdd, int hit_bdd, int new_bdd, int dst_ip_bdd, String rname, int p)
 	{
 		super(old_bdd, hit_bdd, p, rname);
 		new_pkt_bdd = new_bdd;
-		field_bdd = APKeeper.bddengine.get_field_bdd(Fields.dst_ip);
+		field_bdd = dst_ip_bdd;
 	}
 	
 	public int getField_bdd() {
@@ -67,6 +70,19 @@ public class RewriteRule extends Rule{
 	public int getNew_pkt_bdd() {
 		return new_pkt_bdd;
 	}
+	
+	public void setNewPrefix(long prefix, int prefixlen) {
+		new_prefix = prefix;
+		new_prefixlen = prefixlen;
+	}
+	
+	public long getNewPrefix() {
+		return new_prefix;
+	}
+	
+	public int getNewPrefixLen() {
+		return new_prefixlen;
+	}
 
 	public String toString()
 	{
@@ -47,6 +47,7 @@ public abstract class Rule implements Comparable<Rule>{
 
 	protected int priority;
 	protected String port;
+	protected int port_id; // the id of the port in its element, 0 for the default port
 	
 	public Rule(int match_bdd, int priority, String port) {
 		this.priority = priority;
@@ -62,6 +63,10 @@ public abstract class Rule implements Comparable<Rule>{
 		this.hit_bdd = hit_bdd;
 	}
 
+	public void setMatch_bdd(int match_bdd) {
+		this.match_bdd = match_bdd;
+	}
+
 	public void setHit_bdd(int hit_bdd) {
 		this.hit_bdd = hit_bdd;
 	}
@@ -82,16 +87,31 @@ public abstract class Rule implements Comparable<Rule>{
 		return port;
 	}
 	
+	public int getPort_id() {
+		return port_id;
+	}
+	
+	public void setPort_id(int port_id) {
+		this.port_id = port_id;
+	}
+	
 	@Override
 	public boolean equals(Object o) {
 		if(o instanceof Rule) {
 			Rule another = (Rule) o;
 			return another.priority == priority 
-					&& another.port.equals(port);
+					&& another.port_id == port_id;
 		}
 		return false;
 	}
 	
+	/**
+	 * @return the key of the rule, equal for the rules equal to each other
+	 */
+	public Object getKey() {
+		return (long) priority << 32 | (port_id & 0xffffffffL);
+	}
+	
 	@Override
 	public int compareTo(Rule a) {
 		return a.priority - priority;
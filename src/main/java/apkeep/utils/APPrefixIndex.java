@@ -0,0 +1,159 @@
+/**
+ * APKeep
+ * 
+ * Copyright (c) 2020 ANTS Lab, Xi'an Jiaotong University. All rights reserved.
+ * Developed by: PENG ZHANG and XU LIU.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * with the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimers.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimers in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the Xi'an Jiaotong University nor the names of the
+ * developers may be used to endorse or promote products derived from this
+ * Software without specific prior written permission.
+ * 
+ * 4. Any report or paper describing results derived from using any part of this
+ * Software must cite the following publication of the developers: Peng Zhang,
+ * Xu Liu, Hongkun Yang, Ning Kang, Zhengchang Gu, and Hao Li, APKeep: Realtime 
+ * Verification for Real Networks, In 17th USENIX Symposium on Networked Systems
+ * Design and Implementation (NSDI 20), pp. 241-255. 2020.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH
+ * THE SOFTWARE.
+ */
+package apkeep.utils;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A directory of AP slots keyed by the dst ip prefix covering each AP.
+ * 
+ * An AP can intersect a predicate only if the cover of one contains 
+ * the cover of the other, so the candidates of a predicate are the APs 
+ * on the path to its cover and in the subtree below it.
+ */
+public class APPrefixIndex {
+	
+	private class Node {
+		Node[] children = new Node[2];
+		IntHashSet slots = new IntHashSet();
+		int count = 0; // the number of slots in the subtree
+	}
+	
+	private Node root;
+	private long[] slot_cover; // -1 for no cover, whose prefix length would be 255
+	private int ip_bits; // the bits of the ip in a cover
+	
+	public APPrefixIndex() {
+		this(32);
+	}
+	
+	public APPrefixIndex(int ip_bits) {
+		this.ip_bits = ip_bits;
+		root = new Node();
+		slot_cover = new long[64];
+		Arrays.fill(slot_cover, -1);
+	}
+	
+	private static int getLength(long cover) {
+		return (int) (cover & 0xff);
+	}
+	
+	private int getBit(long cover, int index) {
+		return (int) ((cover >>> (8 + ip_bits - 1 - index)) & 1);
+	}
+	
+	/**
+	 * @param cover - the dst ip cover of the AP, see BDDACLWrapper.getDstIPCover and getDstIP6Cover
+	 */
+	public void add(int slot, long cover) {
+		if (slot >= slot_cover.length) {
+			int old_length = slot_cover.length;
+			int length = old_length;
+			while (slot >= length) length *= 2;
+			slot_cover = Arrays.copyOf(slot_cover, length);
+			Arrays.fill(slot_cover, old_length, length, -1);
+		}
+		slot_cover[slot] = cover;
+		
+		Node node = root;
+		node.count ++;
+		for (int i=0; i<getLength(cover); i++) {
+			int bit = getBit(cover, i);
+			if (node.children[bit] == null) {
+				node.children[bit] = new Node();
+			}
+			node = node.children[bit];
+			node.count ++;
+		}
+		node.slots.add(slot);
+	}
+	
+	public void remove(int slot) {
+		if (slot >= slot_cover.length) return;
+		long cover = slot_cover[slot];
+		if (cover == -1) return;
+		slot_cover[slot] = -1;
+		
+		Node node = root;
+		node.count --;
+		for (int i=0; i<getLength(cover); i++) {
+			int bit = getBit(cover, i);
+			Node child = node.children[bit];
+			child.count --;
+			if (child.count == 0) {
+				// drop the subtree left empty
+				node.children[bit] = null;
+				return;
+			}
+			node = child;
+		}
+		node.slots.remove(slot);
+	}
+	
+	/**
+	 * @return the slots of the APs which may intersect the packet set with the cover
+	 */
+	public BitSet getCandidates(long cover) {
+		BitSet candidates = new BitSet();
+		Node node = root;
+		for (int i=0; i<getLength(cover) && node != null; i++) {
+			addSlots(node.slots, candidates);
+			node = node.children[getBit(cover, i)];
+		}
+		if (node != null) {
+			addSubtree(node, candidates);
+		}
+		return candidates;
+	}
+	
+	private void addSlots(IntHashSet slots, BitSet candidates) {
+		if (slots.isEmpty()) return;
+		for (int slot : slots.toArray()) {
+			candidates.set(slot);
+		}
+	}
+	
+	private void addSubtree(Node node, BitSet candidates) {
+		addSlots(node.slots, candidates);
+		for (Node child : node.children) {
+			if (child != null) addSubtree(child, candidates);
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/**
+ * APKeep
+ * 
+ * Copyright (c) 2020 ANTS Lab, Xi'an Jiaotong University. All rights reserved.
+ * Developed by: PENG ZHANG and XU LIU.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * with the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimers.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimers in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the Xi'an Jiaotong University nor the names of the
+ * developers may be used to endorse or promote products derived from this
+ * Software without specific prior written permission.
+ * 
+ * 4. Any report or paper describing results derived from using any part of this
+ * Software must cite the following publication of the developers: Peng Zhang,
+ * Xu Liu, Hongkun Yang, Ning Kang, Zhengchang Gu, and Hao Li, APKeep: Realtime 
+ * Verification for Real Networks, In 17th USENIX Symposium on Networked Systems
+ * Design and Implementation (NSDI 20), pp. 241-255. 2020.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH
+ * THE SOFTWARE.
+ */
+package apkeep.utils;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+import common.BDDACLWrapper;
+
+/**
+ * Reads a checkpoint written by CheckpointWriter from a memory-mapped file.
+ * 
+ * The snapshot is available once the file is opened, so that the network 
+ * can be initialized before the BDD nodes are rebuilt into its engine.
+ */
+public class CheckpointReader {
+	private MappedByteBuffer buffer;
+	private String snapshot;
+	private long sequence;
+	
+	private BDDACLWrapper bdd;
+	private int[] nodes; // id in the node table -> BDD node
+	
+	public CheckpointReader(String file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			raf.close();
+		}
+		if (buffer.getInt() != CheckpointWriter.MAGIC) {
+			throw new IOException(file + " is not a checkpoint");
+		}
+		int version = buffer.getInt();
+		if (version != CheckpointWriter.VERSION) {
+			throw new IOException("unsupported checkpoint version " + version);
+		}
+		snapshot = readString();
+		sequence = buffer.getLong();
+	}
+	
+	/**
+	 * @return the path of the snapshot the network is initialized from
+	 */
+	public String getSnapshot() {
+		return snapshot;
+	}
+	
+	/**
+	 * @return the sequence number of the last update applied before the checkpoint
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+	
+	/**
+	 * rebuild the node table in the BDD engine, which must be done before reading the data
+	 */
+	public void loadNodes(BDDACLWrapper bdd_engine) {
+		bdd = bdd_engine;
+		int node_number = buffer.getInt();
+		nodes = new int[node_number + 2];
+		nodes[0] = BDDACLWrapper.BDDFalse;
+		nodes[1] = BDDACLWrapper.BDDTrue;
+		for (int i=0; i<node_number; i++) {
+			int var = buffer.getInt();
+			int low = nodes[buffer.getInt()];
+			int high = nodes[buffer.getInt()];
+			nodes[i+2] = bdd.mkNode(var, low, high);
+		}
+	}
+	
+	public int readInt() {
+		return buffer.getInt();
+	}
+	
+	public long readLong() {
+		return buffer.getLong();
+	}
+	
+	public String readString() {
+		int length = buffer.getInt();
+		if (length < 0) return null;
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	public BitSet readBitSet() {
+		long[] words = new long[buffer.getInt()];
+		buffer.asLongBuffer().get(words);
+		buffer.position(buffer.position() + words.length * 8);
+		return BitSet.valueOf(words);
+	}
+	
+	/**
+	 * @return the BDD, referenced
+	 */
+	public int readBDD() {
+		return bdd.ref(nodes[buffer.getInt()]);
+	}
+	
+	/**
+	 * release the node table, the BDDs read are still referenced
+	 */
+	public void close() {
+		if (nodes != null) {
+			for (int i=2; i<nodes.length; i++) {
+				bdd.deref(nodes[i]);
+			}
+		}
+		nodes = null;
+		buffer = null;
+	}
+}
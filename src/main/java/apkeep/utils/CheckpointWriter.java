@@ -0,0 +1,168 @@
+/**
+ * APKeep
+ * 
+ * Copyright (c) 2020 ANTS Lab, Xi'an Jiaotong University. All rights reserved.
+ * Developed by: PENG ZHANG and XU LIU.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * with the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimers.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimers in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the Xi'an Jiaotong University nor the names of the
+ * developers may be used to endorse or promote products derived from this
+ * Software without specific prior written permission.
+ * 
+ * 4. Any report or paper describing results derived from using any part of this
+ * Software must cite the following publication of the developers: Peng Zhang,
+ * Xu Liu, Hongkun Yang, Ning Kang, Zhengchang Gu, and Hao Li, APKeep: Realtime 
+ * Verification for Real Networks, In 17th USENIX Symposium on Networked Systems
+ * Design and Implementation (NSDI 20), pp. 241-255. 2020.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH
+ * THE SOFTWARE.
+ */
+package apkeep.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+
+import common.BDDACLWrapper;
+import jdd.bdd.BDD;
+
+/**
+ * Writes a binary checkpoint of the PPM.
+ * 
+ * The file starts with the snapshot the network is initialized from and 
+ * the sequence number of the last update applied before the checkpoint, 
+ * followed by the BDD nodes reachable from the written BDDs, children 
+ * before parents, and then the data written by the network. BDDs are 
+ * written as ids into the node table, 0 and 1 being false and true.
+ */
+public class CheckpointWriter {
+	static final int MAGIC = 0x41504b43;
+	static final int VERSION = 3;
+	
+	private BDD bdd;
+	private String snapshot;
+	private long sequence;
+	
+	private IntIntHashMap node_ids; // BDD node -> id in the node table
+	private int node_number;
+	private ByteArrayOutputStream node_bytes;
+	private DataOutputStream nodes;
+	
+	private ByteArrayOutputStream body_bytes;
+	private DataOutputStream body;
+	
+	public CheckpointWriter(BDDACLWrapper bdd_engine, String snapshot, long sequence) {
+		bdd = bdd_engine.getBDD();
+		this.snapshot = snapshot;
+		this.sequence = sequence;
+		node_ids = new IntIntHashMap();
+		node_number = 0;
+		node_bytes = new ByteArrayOutputStream();
+		nodes = new DataOutputStream(node_bytes);
+		body_bytes = new ByteArrayOutputStream();
+		body = new DataOutputStream(body_bytes);
+	}
+	
+	public void writeInt(int v) throws IOException {
+		body.writeInt(v);
+	}
+	
+	public void writeLong(long v) throws IOException {
+		body.writeLong(v);
+	}
+	
+	public void writeString(String s) throws IOException {
+		writeString(body, s);
+	}
+	
+	/*
+	 * null is written as length -1
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	public void writeBitSet(BitSet bits) throws IOException {
+		long[] words = bits.toLongArray();
+		body.writeInt(words.length);
+		for (long word : words) {
+			body.writeLong(word);
+		}
+	}
+	
+	public void writeBDD(int node) throws IOException {
+		body.writeInt(getNodeId(node));
+	}
+	
+	private int getNodeId(int node) throws IOException {
+		if (node == BDDACLWrapper.BDDFalse || node == BDDACLWrapper.BDDTrue) return node;
+		int node_id = node_ids.get(node);
+		if (node_id >= 0) return node_id;
+		
+		int low = getNodeId(bdd.getLow(node));
+		int high = getNodeId(bdd.getHigh(node));
+		nodes.writeInt(bdd.getVar(node));
+		nodes.writeInt(low);
+		nodes.writeInt(high);
+		node_id = 2 + node_number++;
+		node_ids.put(node, node_id);
+		return node_id;
+	}
+	
+	/**
+	 * write the checkpoint to the file and sync it to the disk, 
+	 * the file is replaced only when the checkpoint is complete
+	 */
+	public void writeTo(String file) throws IOException {
+		File tmp = new File(file + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeString(out, snapshot);
+			out.writeLong(sequence);
+			out.writeInt(node_number);
+			node_bytes.writeTo(out);
+			body_bytes.writeTo(out);
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		Files.move(tmp.toPath(), Paths.get(file), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -50,8 +50,11 @@ import apkeep.checker.Loop;
 public class Evaluator {
 	
 	String name;
+	Parameters parameters;
 	
 	int update_num;
+	int batch_size;
+	int cancelled_num;
 	int fast_update;
 	
 	Set<Loop> loops;
@@ -59,6 +62,27 @@ public class Evaluator {
 	int ap_insert_num;
 	int ap_end_num;
 	
+	// the forwarding rules at the end, when they are compressed
+	int rule_num;
+	int kept_rule_num;
+	
+	// merges made during the updates
+	int merge_num;
+	long merge_trigger_aps;
+	long merged_aps;
+	long merge_time;
+	double merge_cost;
+	
+	// merges caught up with while no update is waiting
+	int idle_merge_num;
+	long idle_merged_aps;
+	long idle_merge_time;
+	
+	// shards merged into the results
+	int shard_num;
+	int shard_update_num; // a rule routed to several shards is counted by each
+	long wall_time;
+	
 	// nanotime
 	long start_time;
 	long mid_time;
@@ -84,8 +108,9 @@ public class Evaluator {
 	long construction_time;
 	long detection_time;
 	
-	public Evaluator(String net, String outputFile) {
+	public Evaluator(String net, String outputFile, Parameters parameters) {
 		name = net;
+		this.parameters = parameters;
 		output_file = outputFile;
 		loops = new HashSet<>();
 	}
@@ -106,8 +131,103 @@ public class Evaluator {
 		this.loops.addAll(loops);
 	}
 	
+	public void addCancelledUpdates(int num) {
+		cancelled_num += num;
+	}
+	
+	/**
+	 * @param trigger_aps - the number of mergeable APs when the merge is triggered
+	 * @param merged - the number of APs merged away
+	 */
+	public void addMerge(int trigger_aps, int merged, long time) {
+		merge_num++;
+		merge_trigger_aps += trigger_aps;
+		merged_aps += merged;
+		merge_time += time;
+	}
+	
+	/**
+	 * @param merged - the number of APs merged away while the updates are idle
+	 */
+	public void addIdleMerge(int merged, long time) {
+		idle_merge_num++;
+		idle_merged_aps += merged;
+		idle_merge_time += time;
+	}
+	
+	public void setMergeCost(double cost) {
+		merge_cost = cost;
+	}
+	
+	/**
+	 * add the results of a shard, the update times are summed over the shards
+	 */
+	public void addShard(Evaluator shard) {
+		// the APs after insert are kept by the shards across experiments
+		if (shard_num++ == 0) ap_insert_num = 0;
+		shard_update_num += shard.update_num;
+		cancelled_num += shard.cancelled_num;
+		fast_update += shard.fast_update;
+		for (Loop loop : shard.loops) {
+			addShardLoop(loop);
+		}
+		ap_insert_num += shard.ap_insert_num;
+		rule_num += shard.rule_num;
+		kept_rule_num += shard.kept_rule_num;
+		merge_num += shard.merge_num;
+		merge_trigger_aps += shard.merge_trigger_aps;
+		merged_aps += shard.merged_aps;
+		merge_time += shard.merge_time;
+		idle_merge_num += shard.idle_merge_num;
+		idle_merged_aps += shard.idle_merged_aps;
+		idle_merge_time += shard.idle_merge_time;
+		total_time += shard.total_time;
+		ppm_time += shard.ppm_time;
+		veri_time += shard.veri_time;
+		peak_memory = Math.max(peak_memory, shard.peak_memory);
+	}
+	
+	/*
+	 * the loops of different shards are found by different engines, and are the same if their paths are
+	 */
+	private void addShardLoop(Loop loop) {
+		for (Loop found : loops) {
+			if (found.hasSamePath(loop)) {
+				found.merge(loop);
+				return;
+			}
+		}
+		loops.add(loop);
+	}
+	
+	/**
+	 * count the updates of a sharded network once, when they are routed to the shards
+	 */
+	public void addUpdates(int num) {
+		update_num += num;
+	}
+	
+	/**
+	 * @param time - the nanoseconds from the start to the end of the updates on all shards
+	 */
+	public void setWallTime(long time) {
+		wall_time = time;
+	}
+	
+	/**
+	 * @return the nanoseconds since the current update started
+	 */
+	public long getUpdateElapsedTime() {
+		return System.nanoTime() - start_time;
+	}
+	
 	public void startUpdate() {
-		update_num++;
+		startBatch(1);
+	}
+	
+	public void startBatch(int num) {
+		update_num += num;
+		batch_size = num;
 		start_time = System.nanoTime();
 	}
 	
@@ -121,11 +241,11 @@ public class Evaluator {
 		total_time += update_time;
 		ppm_time += mid_time - start_time;
 		veri_time += end_time - mid_time;
-		if (update_time/1000000.0 < Parameters.FAST_UPDATE_THRESHOLD) fast_update ++;
+		if (update_time/1000000.0/batch_size < parameters.FAST_UPDATE_THRESHOLD) fast_update += batch_size;
 		/*
 		 * Periodical garbage collection for BDD and JVM
 		 */
-		if (update_num % Parameters.GC_INTERVAL == 0) {
+		if (reachInterval(parameters.GC_INTERVAL)) {
 			rt.gc();
 			rt.gc();
 			long current_memory = rt.totalMemory() - rt.freeMemory();
@@ -135,6 +255,13 @@ public class Evaluator {
 		}
 	}
 	
+	/**
+	 * @return whether the last update (or batch of updates) crossed a multiple of the interval
+	 */
+	private boolean reachInterval(int interval) {
+		return update_num % interval < batch_size;
+	}
+	
 	public void startExp() {
 		rt = Runtime.getRuntime();
 		rt.gc();
@@ -144,7 +271,19 @@ public class Evaluator {
 		
 		insert_finish = false;
 		update_num = 0;
+		cancelled_num = 0;
+		merge_num = 0;
+		merge_trigger_aps = 0;
+		merged_aps = 0;
+		merge_time = 0;
+		merge_cost = 0;
+		idle_merge_num = 0;
+		idle_merged_aps = 0;
+		idle_merge_time = 0;
 		fast_update = 0;
+		shard_num = 0;
+		shard_update_num = 0;
+		wall_time = 0;
 		
 		loops.clear();
 		
@@ -162,6 +301,11 @@ public class Evaluator {
 		}
 	}
 	
+	public void setRuleNum(int rule_num, int kept_rule_num) {
+		this.rule_num = rule_num;
+		this.kept_rule_num = kept_rule_num;
+	}
+	
 	public void endExp(int apNum) {
 		ap_end_num = apNum;
 		try {
@@ -172,10 +316,10 @@ public class Evaluator {
 	}
 	
 	public void printUpdateResults(int ap_num) {
-		if (update_num % Parameters.PRINT_RESULT_INTERVAL == 0) {
+		if (reachInterval(parameters.PRINT_RESULT_INTERVAL)) {
 			System.out.println(update_num + " " + ap_num + " " + update_time/1000);
 		}
-		if (update_num % Parameters.WRITE_RESULT_INTERVAL == 0) {
+		if (reachInterval(parameters.WRITE_RESULT_INTERVAL)) {
 			try {
 				output_writer.write(update_num + "\t" + ap_num + "\t" + update_time/1000
 						+ "\t" + (mid_time - start_time)/1000
@@ -195,16 +339,30 @@ public class Evaluator {
 	public void printExpResults() {
 		System.out.println("The " + name + " dataset");
 		System.out.println("Number of updates: " + update_num);
+		if (cancelled_num > 0) System.out.println("Number of cancelled updates: " + cancelled_num);
 		System.out.println("Total time: " + total_time/1000000 + "ms");
+		if (shard_num > 0) System.out.println("Number of shards: " + shard_num + ", wall time: " + wall_time/1000000 + "ms");
 		System.out.println("Update PPM time: " + ppm_time/1000000 + "ms");
 		System.out.println("Check property time: " + veri_time/1000000 + "ms");
 		System.out.println("Number of APs after insert: " + ap_insert_num);
 		System.out.println("Number of APs after update: " + ap_end_num);
+		if (rule_num > 0) {
+			System.out.println("Number of rules: " + rule_num + ", " + kept_rule_num + " kept after compression");
+		}
 		
 		System.out.println("Number of loops: " + loops.size());
+		if (merge_num > 0) {
+			System.out.println("Number of merges: " + merge_num + ", " + merged_aps + " APs merged in " 
+					+ merge_time/1000000 + "ms, triggered at " + merge_trigger_aps/merge_num + " mergeable APs on average");
+		}
+		if (idle_merge_num > 0) {
+			System.out.println("Idle merges: " + idle_merged_aps + " APs merged in " + idle_merge_time/1000000 + "ms");
+		}
+		if (merge_cost > 0) System.out.println("Estimated merge time per AP: " + merge_cost/1000.0 + "us");
 
 		System.out.println("Average update time: " + total_time/update_num/1000.0 + "us");
-		System.out.println(fast_update*100.0/update_num + "% < " + Parameters.FAST_UPDATE_THRESHOLD + "ms");	
+		int applied_num = shard_num > 0 ? shard_update_num : update_num;
+		System.out.println(fast_update*100.0/applied_num + "% < " + parameters.FAST_UPDATE_THRESHOLD + "ms");	
 		System.out.println("Memory Usage: " + peak_memory/1000000 + "MB");
 	}
 	
@@ -0,0 +1,318 @@
+/**
+ * APKeep
+ * 
+ * Copyright (c) 2020 ANTS Lab, Xi'an Jiaotong University. All rights reserved.
+ * Developed by: PENG ZHANG and XU LIU.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * with the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimers.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimers in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the Xi'an Jiaotong University nor the names of the
+ * developers may be used to endorse or promote products derived from this
+ * Software without specific prior written permission.
+ * 
+ * 4. Any report or paper describing results derived from using any part of this
+ * Software must cite the following publication of the developers: Peng Zhang,
+ * Xu Liu, Hongkun Yang, Ning Kang, Zhengchang Gu, and Hao Li, APKeep: Realtime 
+ * Verification for Real Networks, In 17th USENIX Symposium on Networked Systems
+ * Design and Implementation (NSDI 20), pp. 241-255. 2020.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH
+ * THE SOFTWARE.
+ */
+package apkeep.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import apkeep.rules.ForwardingRule;
+import apkeep.rules.Rule;
+
+/**
+ * The original forwarding rules of an element, of which only the rules that 
+ * change the forwarding are kept in the compressed rule set.
+ * 
+ * A rule is left out when it is hidden by a rule of higher priority covering it, 
+ * or when the rule taking over its packets without it, i.e., the rule of the 
+ * highest priority among the other rules covering it, forwards to the same port 
+ * and no rule inside it has a priority in between. The rules left out this way 
+ * can be left out together, since the rule taking over is either kept or left 
+ * out for a rule of the same port. With the priority of a rule being its prefix 
+ * length, these are the more-specific prefixes to the port of their aggregate.
+ * The status of the rules is updated as the original rules are inserted and 
+ * removed, which only changes for the rules above the updated rule and for the 
+ * rules below it until a rule of higher priority. The kept rule forwarding each 
+ * original rule is updated along, for the rules under the updated rule and under 
+ * the rules above it changing status, so that the original rules are reported.
+ */
+public class FIBCompressor {
+	private TrieTree trie; // the original rules
+	private Set<Rule> kept_rules; // the original rules in the compressed rule set
+	private Map<Rule, ForwardingRule> compressed_rules; // the kept rule forwarding each original rule
+	private Map<Rule, Set<Rule>> original_rules; // the original rules forwarded as each kept rule
+	
+	public FIBCompressor() {
+		trie = new TrieTree();
+		kept_rules = Collections.newSetFromMap(new IdentityHashMap<Rule, Boolean>());
+		compressed_rules = new IdentityHashMap<>();
+		original_rules = new IdentityHashMap<>();
+	}
+	
+	public TrieTree getTrie() {
+		return trie;
+	}
+	
+	public boolean isKept(Rule rule) {
+		return kept_rules.contains(rule);
+	}
+	
+	/**
+	 * insert an original rule
+	 * @param removed - the rules leaving the compressed rule set
+	 * @param inserted - the rules joining the compressed rule set, the rule itself if it is kept
+	 * @return false for a duplicate rule, which changes nothing
+	 */
+	public boolean insert(ForwardingRule rule, List<ForwardingRule> removed, List<ForwardingRule> inserted) {
+		TrieTreeNode node = trie.insert(rule);
+		if (node.hasRule(rule)) return false;
+		node.addRule(rule);
+		updateStatus(node, rule.getPriority(), removed, inserted);
+		updateCompressedRules(node, removed, inserted);
+		return true;
+	}
+	
+	/**
+	 * remove an original rule
+	 * @param removed - the rules leaving the compressed rule set, the removed rule if it was kept
+	 * @param inserted - the rules joining the compressed rule set
+	 * @return the removed rule, or null if not found
+	 */
+	public ForwardingRule remove(ForwardingRule rule, List<ForwardingRule> removed, List<ForwardingRule> inserted) {
+		TrieTreeNode node = trie.search(rule);
+		if (node == null) return null;
+		ForwardingRule rule_to_remove = (ForwardingRule) node.findRule(rule);
+		if (rule_to_remove == null) return null;
+		
+		node.removeRule(rule_to_remove);
+		if (kept_rules.remove(rule_to_remove)) {
+			removed.add(rule_to_remove);
+		}
+		updateStatus(node, rule_to_remove.getPriority(), removed, inserted);
+		setCompressedRule(rule_to_remove, null);
+		updateCompressedRules(node, removed, inserted);
+		if (node.noRules()) {
+			trie.delete(node);
+		}
+		return rule_to_remove;
+	}
+	
+	/*
+	 * update the status of the rules whose status may depend on a rule of the priority at the node
+	 */
+	private void updateStatus(TrieTreeNode node, int priority, List<ForwardingRule> removed, List<ForwardingRule> inserted) {
+		// the rules above, whose rules inside may have come into or out of their priority range
+		for (TrieTreeNode ancestor = node.parent; ancestor != null; ancestor = ancestor.parent) {
+			for (Rule rule : ancestor.getRules()) {
+				if (rule.getPriority() > priority) {
+					updateStatus(ancestor, rule, removed, inserted);
+				}
+			}
+		}
+		for (Rule rule : node.getRules()) {
+			updateStatus(node, rule, removed, inserted);
+		}
+		// the rules below, whose rule taking over may have changed
+		updateSubtreeStatus(node.zero, priority, removed, inserted);
+		updateSubtreeStatus(node.one, priority, removed, inserted);
+	}
+	
+	private void updateSubtreeStatus(TrieTreeNode node, int priority, List<ForwardingRule> removed, List<ForwardingRule> inserted) {
+		if (node == null) return;
+		int max_priority = Integer.MIN_VALUE;
+		for (Rule rule : node.getRules()) {
+			updateStatus(node, rule, removed, inserted);
+			max_priority = Math.max(max_priority, rule.getPriority());
+		}
+		// a rule of higher priority covers the rules below from the updated rule
+		if (max_priority > priority) return;
+		updateSubtreeStatus(node.zero, priority, removed, inserted);
+		updateSubtreeStatus(node.one, priority, removed, inserted);
+	}
+	
+	private void updateStatus(TrieTreeNode node, Rule rule, List<ForwardingRule> removed, List<ForwardingRule> inserted) {
+		if (rule == trie.getDefaultRule()) return;
+		boolean kept = !isRedundant(node, rule);
+		if (kept == kept_rules.contains(rule)) return;
+		// a rule changing back within the update changes nothing
+		if (kept) {
+			kept_rules.add(rule);
+			if (!removeSame(removed, rule)) inserted.add((ForwardingRule) rule);
+		}
+		else {
+			kept_rules.remove(rule);
+			if (!removeSame(inserted, rule)) removed.add((ForwardingRule) rule);
+		}
+	}
+	
+	/*
+	 * the kept rules of the rules under the updated node, or under the highest rule above it
+	 * changing status, may have changed
+	 */
+	private void updateCompressedRules(TrieTreeNode node, List<ForwardingRule> removed, List<ForwardingRule> inserted) {
+		TrieTreeNode top = node;
+		for (TrieTreeNode ancestor = node.parent; ancestor != null; ancestor = ancestor.parent) {
+			for (Rule rule : ancestor.getRules()) {
+				if (containsSame(removed, rule) || containsSame(inserted, rule)) top = ancestor;
+			}
+		}
+		updateSubtreeCompressedRules(top);
+	}
+	
+	/*
+	 * the rules above are updated first, so the kept rule of the rule taking over is known
+	 */
+	private void updateSubtreeCompressedRules(TrieTreeNode node) {
+		if (node == null) return;
+		List<Rule> rules = new ArrayList<>(node.getRules());
+		// a rule hidden at the same prefix is taken over by a rule of higher priority
+		Collections.sort(rules);
+		for (Rule rule : rules) {
+			if (rule == trie.getDefaultRule()) continue;
+			if (kept_rules.contains(rule)) {
+				setCompressedRule(rule, (ForwardingRule) rule);
+				continue;
+			}
+			Rule over = getTakingOverRule(node, rule);
+			ForwardingRule compressed = compressed_rules.get(over);
+			setCompressedRule(rule, compressed != null ? compressed : (ForwardingRule) over);
+		}
+		updateSubtreeCompressedRules(node.zero);
+		updateSubtreeCompressedRules(node.one);
+	}
+	
+	/*
+	 * @param compressed - the kept rule forwarding the rule, null for a removed rule
+	 */
+	private void setCompressedRule(Rule rule, ForwardingRule compressed) {
+		ForwardingRule old = compressed != null ? compressed_rules.put(rule, compressed) : compressed_rules.remove(rule);
+		if (old == compressed) return;
+		if (old != null) {
+			Set<Rule> originals = original_rules.get(old);
+			originals.remove(rule);
+			if (originals.isEmpty()) original_rules.remove(old);
+		}
+		if (compressed != null) {
+			if (!original_rules.containsKey(compressed)) {
+				original_rules.put(compressed, Collections.newSetFromMap(new IdentityHashMap<Rule, Boolean>()));
+			}
+			original_rules.get(compressed).add(rule);
+		}
+	}
+	
+	private static boolean containsSame(List<ForwardingRule> rules, Rule rule) {
+		for (ForwardingRule r : rules) {
+			if (r == rule) return true;
+		}
+		return false;
+	}
+	
+	/*
+	 * the rules are told apart by identity, since equal rules may be at different prefixes
+	 */
+	private static boolean removeSame(List<ForwardingRule> rules, Rule rule) {
+		for (int i=0; i<rules.size(); i++) {
+			if (rules.get(i) == rule) {
+				rules.remove(i);
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private boolean isRedundant(TrieTreeNode node, Rule rule) {
+		Rule over = getTakingOverRule(node, rule);
+		// hidden
+		if (over.getPriority() > rule.getPriority()) return true;
+		if (over.getPriority() == rule.getPriority() || over.getPort_id() != rule.getPort_id()) return false;
+		// the rules inside of lower priority would take over instead if they are above the rule taking over,
+		// which are conservatively not allowed at all
+		return getSubtreeMinPriority(node) >= rule.getPriority();
+	}
+	
+	/*
+	 * @return the rule of the highest priority among the other rules covering the rule at the node, 
+	 * or the rule itself if there is a tie, which keeps the rule
+	 */
+	private Rule getTakingOverRule(TrieTreeNode node, Rule rule) {
+		Rule over = null;
+		boolean tie = false;
+		for (TrieTreeNode n = node; n != null; n = n.parent) {
+			for (Rule r : n.getRules()) {
+				if (r == rule) continue;
+				if (over == null || r.getPriority() > over.getPriority()) {
+					over = r;
+					tie = false;
+				}
+				else if (r.getPriority() == over.getPriority()) {
+					tie = true;
+				}
+			}
+		}
+		return tie && over.getPriority() <= rule.getPriority() ? rule : over;
+	}
+	
+	private int getSubtreeMinPriority(TrieTreeNode node) {
+		int min = Integer.MAX_VALUE;
+		if (node.zero != null) min = Math.min(min, node.zero.subtree_min_priority);
+		if (node.one != null) min = Math.min(min, node.one.subtree_min_priority);
+		return min;
+	}
+	
+	/**
+	 * @return the kept rule forwarding the packets of an original rule, for reporting
+	 */
+	public ForwardingRule getCompressedRule(ForwardingRule rule) {
+		ForwardingRule compressed = compressed_rules.get(rule);
+		return compressed != null ? compressed : trie.getDefaultRule();
+	}
+	
+	/**
+	 * @return the original rules whose packets are forwarded by a kept rule, including itself
+	 */
+	public List<ForwardingRule> getOriginalRules(ForwardingRule rule) {
+		List<ForwardingRule> rules = new ArrayList<>();
+		rules.add(rule);
+		if (!original_rules.containsKey(rule)) return rules;
+		for (Rule r : original_rules.get(rule)) {
+			if (r != rule) rules.add((ForwardingRule) r);
+		}
+		return rules;
+	}
+	
+	/**
+	 * @return the number of the original rules, without the default rule
+	 */
+	public int getOriginalRuleNum() {
+		return compressed_rules.size();
+	}
+}
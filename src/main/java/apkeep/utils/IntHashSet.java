@@ -0,0 +1,171 @@
+/**
+ * APKeep
+ * 
+ * Copyright (c) 2020 ANTS Lab, Xi'an Jiaotong University. All rights reserved.
+ * Developed by: PENG ZHANG and XU LIU.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * with the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimers.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimers in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the Xi'an Jiaotong University nor the names of the
+ * developers may be used to endorse or promote products derived from this
+ * Software without specific prior written permission.
+ * 
+ * 4. Any report or paper describing results derived from using any part of this
+ * Software must cite the following publication of the developers: Peng Zhang,
+ * Xu Liu, Hongkun Yang, Ning Kang, Zhengchang Gu, and Hao Li, APKeep: Realtime 
+ * Verification for Real Networks, In 17th USENIX Symposium on Networked Systems
+ * Design and Implementation (NSDI 20), pp. 241-255. 2020.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH
+ * THE SOFTWARE.
+ */
+package apkeep.utils;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing set of non-negative ints, used in place of
+ * HashSet<Integer> where the set is small and updated very often.
+ */
+public class IntHashSet {
+	
+	private final static int EMPTY = -1;
+	
+	private int[] keys;
+	private int size;
+	private int mask;
+	
+	public IntHashSet() {
+		this(4);
+	}
+	
+	public IntHashSet(int expected) {
+		int capacity = 8;
+		while (capacity < expected * 2) capacity <<= 1;
+		keys = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+		mask = capacity - 1;
+		size = 0;
+	}
+	
+	private int slot(int key) {
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+	
+	public boolean contains(int key) {
+		int index = slot(key);
+		while (keys[index] != EMPTY) {
+			if (keys[index] == key) return true;
+			index = (index + 1) & mask;
+		}
+		return false;
+	}
+	
+	public boolean add(int key) {
+		int index = slot(key);
+		while (keys[index] != EMPTY) {
+			if (keys[index] == key) return false;
+			index = (index + 1) & mask;
+		}
+		keys[index] = key;
+		size++;
+		if (size * 2 > keys.length) rehash();
+		return true;
+	}
+	
+	public boolean remove(int key) {
+		int index = slot(key);
+		while (keys[index] != EMPTY) {
+			if (keys[index] == key) {
+				shiftBack(index);
+				size--;
+				return true;
+			}
+			index = (index + 1) & mask;
+		}
+		return false;
+	}
+	
+	private void shiftBack(int hole) {
+		int index = hole;
+		while (true) {
+			index = (index + 1) & mask;
+			if (keys[index] == EMPTY) break;
+			int home = slot(keys[index]);
+			if (((index - home) & mask) >= ((index - hole) & mask)) {
+				keys[hole] = keys[index];
+				hole = index;
+			}
+		}
+		keys[hole] = EMPTY;
+	}
+	
+	private void rehash() {
+		int[] old_keys = keys;
+		keys = new int[old_keys.length * 2];
+		Arrays.fill(keys, EMPTY);
+		mask = keys.length - 1;
+		for (int key : old_keys) {
+			if (key == EMPTY) continue;
+			int index = slot(key);
+			while (keys[index] != EMPTY) index = (index + 1) & mask;
+			keys[index] = key;
+		}
+	}
+	
+	/**
+	 * @return any element of the set, or -1 if the set is empty
+	 */
+	public int first() {
+		if (size == 0) return EMPTY;
+		for (int key : keys) {
+			if (key != EMPTY) return key;
+		}
+		return EMPTY;
+	}
+	
+	public int[] toArray() {
+		int[] array = new int[size];
+		int i = 0;
+		for (int key : keys) {
+			if (key != EMPTY) array[i++] = key;
+		}
+		return array;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public void clear() {
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+	}
+	
+	@Override
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+}
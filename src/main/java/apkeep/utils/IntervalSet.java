@@ -0,0 +1,183 @@
+/**
+ * APKeep
+ * 
+ * Copyright (c) 2020 ANTS Lab, Xi'an Jiaotong University. All rights reserved.
+ * Developed by: PENG ZHANG and XU LIU.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * with the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimers.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimers in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the Xi'an Jiaotong University nor the names of the
+ * developers may be used to endorse or promote products derived from this
+ * Software without specific prior written permission.
+ * 
+ * 4. Any report or paper describing results derived from using any part of this
+ * Software must cite the following publication of the developers: Peng Zhang,
+ * Xu Liu, Hongkun Yang, Ning Kang, Zhengchang Gu, and Hao Li, APKeep: Realtime 
+ * Verification for Real Networks, In 17th USENIX Symposium on Networked Systems
+ * Design and Implementation (NSDI 20), pp. 241-255. 2020.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH
+ * THE SOFTWARE.
+ */
+package apkeep.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A set of addresses kept as disjoint, non-adjacent intervals [low, high), 
+ * for the hits of the forwarding rules, whose matches are address intervals
+ */
+public class IntervalSet {
+	
+	private TreeMap<Long, Long> intervals; // low -> high
+	private long size; // the number of addresses
+	
+	public IntervalSet() {
+		intervals = new TreeMap<>();
+		size = 0;
+	}
+	
+	/**
+	 * @param bounds - the low and high bound of each interval, in order
+	 */
+	public IntervalSet(long[] bounds) {
+		this();
+		for (int i=0; i<bounds.length; i+=2) {
+			add(bounds[i], bounds[i+1]);
+		}
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public long size() {
+		return size;
+	}
+	
+	public void add(long low, long high) {
+		if (low >= high) return;
+		// merge with the overlapping or adjacent intervals
+		Map.Entry<Long, Long> before = intervals.floorEntry(low);
+		if (before != null && before.getValue() >= low) {
+			low = before.getKey();
+			high = Math.max(high, before.getValue());
+			remove(before);
+		}
+		Map.Entry<Long, Long> after = intervals.ceilingEntry(low);
+		while (after != null && after.getKey() <= high) {
+			high = Math.max(high, after.getValue());
+			remove(after);
+			after = intervals.ceilingEntry(low);
+		}
+		intervals.put(low, high);
+		size += high - low;
+	}
+	
+	public void remove(long low, long high) {
+		if (low >= high) return;
+		Map.Entry<Long, Long> before = intervals.lowerEntry(low);
+		if (before != null && before.getValue() > low) {
+			long before_high = before.getValue();
+			remove(before);
+			put(before.getKey(), low);
+			if (before_high > high) {
+				put(high, before_high);
+				return;
+			}
+		}
+		Map.Entry<Long, Long> after = intervals.ceilingEntry(low);
+		while (after != null && after.getKey() < high) {
+			remove(after);
+			if (after.getValue() > high) {
+				put(high, after.getValue());
+				return;
+			}
+			after = intervals.ceilingEntry(low);
+		}
+	}
+	
+	private void put(long low, long high) {
+		intervals.put(low, high);
+		size += high - low;
+	}
+	
+	private void remove(Map.Entry<Long, Long> interval) {
+		intervals.remove(interval.getKey());
+		size -= interval.getValue() - interval.getKey();
+	}
+	
+	public void addAll(IntervalSet set) {
+		for (Map.Entry<Long, Long> interval : set.intervals.entrySet()) {
+			add(interval.getKey(), interval.getValue());
+		}
+	}
+	
+	public void removeAll(IntervalSet set) {
+		for (Map.Entry<Long, Long> interval : set.intervals.entrySet()) {
+			remove(interval.getKey(), interval.getValue());
+		}
+	}
+	
+	/**
+	 * @return the addresses of the set in [low, high)
+	 */
+	public IntervalSet intersect(long low, long high) {
+		IntervalSet result = new IntervalSet();
+		intersect(low, high, result);
+		return result;
+	}
+	
+	/**
+	 * @param bounds - the low and high bound of each interval, in order
+	 * @return the addresses of the set in the intervals
+	 */
+	public IntervalSet intersect(long[] bounds) {
+		IntervalSet result = new IntervalSet();
+		for (int i=0; i<bounds.length; i+=2) {
+			intersect(bounds[i], bounds[i+1], result);
+		}
+		return result;
+	}
+	
+	private void intersect(long low, long high, IntervalSet result) {
+		Map.Entry<Long, Long> before = intervals.lowerEntry(low);
+		if (before != null && before.getValue() > low) {
+			result.add(low, Math.min(high, before.getValue()));
+		}
+		for (Map.Entry<Long, Long> interval : intervals.subMap(low, true, high, false).entrySet()) {
+			result.add(interval.getKey(), Math.min(high, interval.getValue()));
+		}
+	}
+	
+	/**
+	 * @return the low and high bound of each interval, in order
+	 */
+	public long[] toArray() {
+		long[] bounds = new long[intervals.size() * 2];
+		int i = 0;
+		for (Map.Entry<Long, Long> interval : intervals.entrySet()) {
+			bounds[i++] = interval.getKey();
+			bounds[i++] = interval.getValue();
+		}
+		return bounds;
+	}
+}
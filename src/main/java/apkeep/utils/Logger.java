@@ -38,14 +38,22 @@
  */
 package apkeep.utils;
 
+/**
+ * The logger of one network, the messages are prefixed with the network name.
+ */
 public class Logger {
-	static boolean listinfo = false;
-	static boolean isdebug = false;
-	public static void logInfo(String msg) {
-		if(listinfo) System.out.println(msg);
+	boolean listinfo = false;
+	boolean isdebug = false;
+	private String prefix;
+	
+	public Logger(String network_name) {
+		prefix = "[" + network_name + "] ";
+	}
+	public void logInfo(String msg) {
+		if(listinfo) System.out.println(prefix + msg);
 	}
-	public static void logDebugInfo(String msg) {
-		if(isdebug) System.out.println(msg);
+	public void logDebugInfo(String msg) {
+		if(isdebug) System.out.println(prefix + msg);
 	}
 //	public static void print(String msg) {
 //		System.out.println(msg);
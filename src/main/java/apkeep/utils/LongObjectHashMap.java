@@ -0,0 +1,168 @@
+/**
+ * APKeep
+ * 
+ * Copyright (c) 2020 ANTS Lab, Xi'an Jiaotong University. All rights reserved.
+ * Developed by: PENG ZHANG and XU LIU.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * with the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimers.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimers in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the Xi'an Jiaotong University nor the names of the
+ * developers may be used to endorse or promote products derived from this
+ * Software without specific prior written permission.
+ * 
+ * 4. Any report or paper describing results derived from using any part of this
+ * Software must cite the following publication of the developers: Peng Zhang,
+ * Xu Liu, Hongkun Yang, Ning Kang, Zhengchang Gu, and Hao Li, APKeep: Realtime 
+ * Verification for Real Networks, In 17th USENIX Symposium on Networked Systems
+ * Design and Implementation (NSDI 20), pp. 241-255. 2020.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH
+ * THE SOFTWARE.
+ */
+package apkeep.utils;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing map from non-negative long keys to objects,
+ * used in place of HashMap<Long, V> on the update path.
+ * A missing key is reported as null.
+ */
+public class LongObjectHashMap<V> {
+	
+	private final static long EMPTY = -1;
+	
+	private long[] keys;
+	private Object[] values;
+	private int size;
+	private int mask;
+	
+	public LongObjectHashMap() {
+		this(64);
+	}
+	
+	public LongObjectHashMap(int expected) {
+		int capacity = 16;
+		while (capacity < expected * 2) capacity <<= 1;
+		keys = new long[capacity];
+		values = new Object[capacity];
+		Arrays.fill(keys, EMPTY);
+		mask = capacity - 1;
+		size = 0;
+	}
+	
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int index = slot(key);
+		while (keys[index] != EMPTY) {
+			if (keys[index] == key) return (V) values[index];
+			index = (index + 1) & mask;
+		}
+		return null;
+	}
+	
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+	
+	public void put(long key, V value) {
+		int index = slot(key);
+		while (keys[index] != EMPTY) {
+			if (keys[index] == key) {
+				values[index] = value;
+				return;
+			}
+			index = (index + 1) & mask;
+		}
+		keys[index] = key;
+		values[index] = value;
+		size++;
+		if (size * 2 > keys.length) rehash();
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int index = slot(key);
+		while (keys[index] != EMPTY) {
+			if (keys[index] == key) {
+				V value = (V) values[index];
+				shiftBack(index);
+				size--;
+				return value;
+			}
+			index = (index + 1) & mask;
+		}
+		return null;
+	}
+	
+	/*
+	 * backward-shift deletion keeps probe chains intact without tombstones
+	 */
+	private void shiftBack(int hole) {
+		int index = hole;
+		while (true) {
+			index = (index + 1) & mask;
+			if (keys[index] == EMPTY) break;
+			int home = slot(keys[index]);
+			if (((index - home) & mask) >= ((index - hole) & mask)) {
+				keys[hole] = keys[index];
+				values[hole] = values[index];
+				hole = index;
+			}
+		}
+		keys[hole] = EMPTY;
+		values[hole] = null;
+	}
+	
+	private void rehash() {
+		long[] old_keys = keys;
+		Object[] old_values = values;
+		keys = new long[old_keys.length * 2];
+		values = new Object[old_keys.length * 2];
+		Arrays.fill(keys, EMPTY);
+		mask = keys.length - 1;
+		for (int i=0; i<old_keys.length; i++) {
+			if (old_keys[i] == EMPTY) continue;
+			int index = slot(old_keys[i]);
+			while (keys[index] != EMPTY) index = (index + 1) & mask;
+			keys[index] = old_keys[i];
+			values[index] = old_values[i];
+		}
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public void clear() {
+		Arrays.fill(keys, EMPTY);
+		Arrays.fill(values, null);
+		size = 0;
+	}
+}
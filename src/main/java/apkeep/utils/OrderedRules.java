@@ -0,0 +1,189 @@
+/**
+ * APKeep
+ * 
+ * Copyright (c) 2020 ANTS Lab, Xi'an Jiaotong University. All rights reserved.
+ * Developed by: PENG ZHANG and XU LIU.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * with the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimers.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimers in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the Xi'an Jiaotong University nor the names of the
+ * developers may be used to endorse or promote products derived from this
+ * Software without specific prior written permission.
+ * 
+ * 4. Any report or paper describing results derived from using any part of this
+ * Software must cite the following publication of the developers: Peng Zhang,
+ * Xu Liu, Hongkun Yang, Ning Kang, Zhengchang Gu, and Hao Li, APKeep: Realtime 
+ * Verification for Real Networks, In 17th USENIX Symposium on Networked Systems
+ * Design and Implementation (NSDI 20), pp. 241-255. 2020.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH
+ * THE SOFTWARE.
+ */
+package apkeep.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import apkeep.rules.Rule;
+
+/**
+ * The rules of an element in the order of decreasing priority, 
+ * kept in buckets of a priority tree for the inserts at their position, 
+ * and indexed by their keys (see Rule.getKey) for the lookups of removed rules
+ */
+public class OrderedRules implements Iterable<Rule> {
+	
+	private TreeMap<Integer, ArrayList<Rule>> buckets; // by decreasing priority
+	private HashMap<Object, Rule> index; // the first rule of each key
+	private int size;
+	
+	public OrderedRules() {
+		buckets = new TreeMap<>(Collections.<Integer>reverseOrder());
+		index = new HashMap<>();
+		size = 0;
+	}
+	
+	/**
+	 * put the rule before the rules of its priority, as a newly inserted rule
+	 */
+	public void insert(Rule rule) {
+		getBucket(rule.getPriority()).add(0, rule);
+		index.put(rule.getKey(), rule);
+		size ++;
+	}
+	
+	/**
+	 * put the rule after the rules of its priority, as when the rules are read in order
+	 */
+	public void add(Rule rule) {
+		getBucket(rule.getPriority()).add(rule);
+		if (!index.containsKey(rule.getKey())) {
+			index.put(rule.getKey(), rule);
+		}
+		size ++;
+	}
+	
+	private ArrayList<Rule> getBucket(int priority) {
+		ArrayList<Rule> bucket = buckets.get(priority);
+		if (bucket == null) {
+			bucket = new ArrayList<>(1);
+			buckets.put(priority, bucket);
+		}
+		return bucket;
+	}
+	
+	/**
+	 * @return the first rule equal to the given one, or null if not found
+	 */
+	public Rule find(Rule rule) {
+		return index.get(rule.getKey());
+	}
+	
+	/**
+	 * remove the rule itself, not the rules equal to it
+	 */
+	public void remove(Rule rule) {
+		ArrayList<Rule> bucket = buckets.get(rule.getPriority());
+		if (bucket == null) return;
+		for (int i=0; i<bucket.size(); i++) {
+			if (bucket.get(i) != rule) continue;
+			bucket.remove(i);
+			if (bucket.isEmpty()) {
+				buckets.remove(rule.getPriority());
+			}
+			size --;
+			
+			Object key = rule.getKey();
+			if (index.get(key) == rule) {
+				index.remove(key);
+				// an equal rule is of the same priority
+				for (Rule r : bucket) {
+					if (r.getKey().equals(key)) {
+						index.put(key, r);
+						break;
+					}
+				}
+			}
+			return;
+		}
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * @return the rule of the lowest priority, which is the default rule
+	 */
+	public Rule getLast() {
+		ArrayList<Rule> bucket = buckets.lastEntry().getValue();
+		return bucket.get(bucket.size() - 1);
+	}
+	
+	public void clear() {
+		buckets.clear();
+		index.clear();
+		size = 0;
+	}
+	
+	@Override
+	public Iterator<Rule> iterator() {
+		return new RuleIterator(buckets.values().iterator());
+	}
+	
+	/**
+	 * @return the rules of lower priority than the given one, in order
+	 */
+	public Iterator<Rule> iteratorBelow(int priority) {
+		return new RuleIterator(buckets.tailMap(priority, false).values().iterator());
+	}
+	
+	private static class RuleIterator implements Iterator<Rule> {
+		private Iterator<ArrayList<Rule>> bucket_it;
+		private ArrayList<Rule> bucket;
+		private int position;
+		
+		RuleIterator(Iterator<ArrayList<Rule>> bucket_it) {
+			this.bucket_it = bucket_it;
+			bucket = null;
+			position = 0;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			while (bucket == null || position == bucket.size()) {
+				if (!bucket_it.hasNext()) return false;
+				bucket = bucket_it.next();
+				position = 0;
+			}
+			return true;
+		}
+		
+		@Override
+		public Rule next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			return bucket.get(position ++);
+		}
+	}
+}
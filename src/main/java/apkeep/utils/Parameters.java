@@ -38,23 +38,41 @@
  */
 package apkeep.utils;
 
+/**
+ * The operation parameters of one network, loaded from the parameters.json 
+ * of its snapshot. Each network keeps its own copy, so that networks with 
+ * different parameters can run in one JVM.
+ */
 public class Parameters {
 
-	public static boolean MergeAP = true;
+	public boolean MergeAP = true;
 
-	public static int BDD_TABLE_SIZE = 100000000;
-//	public static int BDD_TABLE_SIZE = 100000000; // works well for airtel
-//	public static int BDD_TABLE_SIZE = 10000000; // works well for 4Switch, 27us
-//	public static int BDD_TABLE_SIZE = 1000000; // works well for stanford-noacl, 142us
-//	public static int BDD_TABLE_SIZE = 1000; // works well for internet2, 22us
-	public static int GC_INTERVAL = 100000;
-	public static int TOTAL_AP_THRESHOLD = 500;
-	public static int LOW_MERGEABLE_AP_THRESHOLD = 10;
-	public static int HIGH_MERGEABLE_AP_THRESHOLD = 50;
-	public static double FAST_UPDATE_THRESHOLD = 0.25;
+	public int BDD_TABLE_SIZE = 100000000;
+//	public int BDD_TABLE_SIZE = 100000000; // works well for airtel
+//	public int BDD_TABLE_SIZE = 10000000; // works well for 4Switch, 27us
+//	public int BDD_TABLE_SIZE = 1000000; // works well for stanford-noacl, 142us
+//	public int BDD_TABLE_SIZE = 1000; // works well for internet2, 22us
+	public int GC_INTERVAL = 100000;
+	public int TOTAL_AP_THRESHOLD = 500;
+	public int LOW_MERGEABLE_AP_THRESHOLD = 10;
+	public int HIGH_MERGEABLE_AP_THRESHOLD = 50;
+	public double FAST_UPDATE_THRESHOLD = 0.25;
+	public boolean ADAPTIVE_MERGE = false; // merge when the update time spent on mergeable APs covers the merge time, instead of the thresholds above
+	public String MERGE_STRATEGY = "batch"; // "batch" merges all mergeable APs at once, "incremental" in time slices
+	public int MERGE_BUDGET = 200; // microseconds of merging per update in the incremental strategy
+	public int UPDATE_BATCH_SIZE = 1; // number of rules updated at once, 1 for no batching
+	public int UPDATE_WINDOW_SIZE = 1; // number of updates held to keep the last update of each rule, 1 for no window
+	public int UPDATE_WINDOW_TIME = 0; // milliseconds an update is held at most, 0 for no limit
+	public boolean UPDATE_LOG = false; // log the applied updates for recovery from a checkpoint
+	public int UPDATE_LOG_SYNC_INTERVAL = 10; // milliseconds the logged updates wait for more before they are synced together
+	public boolean BULK_LOAD = false; // load the forwarding rules at the head of the first updates at once
+	public boolean INTERVAL_HITS = false; // keep the hits of forwarding rules as dst ip intervals instead of BDDs
+	public boolean COMPRESS_FIB = false; // leave out the forwarding rules that do not change the forwarding
+	public boolean IPV6 = false; // carry v6 packets as well, whose forwarding rules are given by fwd6 updates
+	public int SHARD_NUMBER = 1; // number of destination IP shards updated in parallel, 1 for no sharding
 
-	public static int PRINT_RESULT_INTERVAL = 100000;
-//	public static int PRINT_RESULT_INTERVAL = 10000;
-//	public static int PRINT_RESULT_INTERVAL = 1;
-	public static int WRITE_RESULT_INTERVAL = 1;
+	public int PRINT_RESULT_INTERVAL = 100000;
+//	public int PRINT_RESULT_INTERVAL = 10000;
+//	public int PRINT_RESULT_INTERVAL = 1;
+	public int WRITE_RESULT_INTERVAL = 1;
 }
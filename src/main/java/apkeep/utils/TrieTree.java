@@ -38,49 +38,147 @@
  */
 package apkeep.utils;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import apkeep.rules.ForwardingRule;
+import apkeep.rules.Rule;
 import common.BDDACLWrapper;
 
+/**
+ * A path-compressed binary trie of destination prefixes, 
+ * where a node exists only for a prefix with rules or where two prefixes branch; 
+ * the nodes are also indexed by their prefixes for the lookups of exact prefixes
+ */
 public class TrieTree {
 	TrieTreeNode root;
+	LongObjectHashMap<TrieTreeNode> node_index;
+	ForwardingRule default_rule;
 	
 	public TrieTree() {
-		root = new TrieTreeNode(0, -1);
-		TrieTreeNode child = new TrieTreeNode(1, 2);
-		child.addRule(new ForwardingRule(BDDACLWrapper.BDDTrue,BDDACLWrapper.BDDTrue,0,0,"default",-1));
-		
-		child.setParent(root);
-		root.setChild(2, child);
+		root = new TrieTreeNode(0, 0);
+		node_index = new LongObjectHashMap<>();
+		node_index.put(key(0, 0), root);
+		default_rule = new ForwardingRule(BDDACLWrapper.BDDTrue,BDDACLWrapper.BDDTrue,0,0,"default",-1);
+		default_rule.setMatchIntervals(new long[] {0, 1L << 32});
+		default_rule.setHitIntervals(new IntervalSet(default_rule.getMatchIntervals()));
+		root.addRule(default_rule);
 	}
 
+	public ForwardingRule getDefaultRule() {
+		return default_rule;
+	}
+
+	/**
+	 * @return the rules of all nodes, parents before children
+	 */
+	public List<Rule> getRules() {
+		List<Rule> rules = new ArrayList<>();
+		root.collectRules(rules);
+		return rules;
+	}
+	
+	private static long key(int prefix, int prefix_len) {
+		return (prefix & 0xffffffffL) << 6 | prefix_len;
+	}
+	
+	/**
+	 * @return the node of the prefix of the rule, created if not found
+	 */
 	public TrieTreeNode insert(ForwardingRule rule) {
-		long prefix = rule.getDstIP();
-		int prefixlen = rule.getMaskLen();
-		int[] prefixbin = PrefixLongToBin(prefix, prefixlen);
-		return root.insert(prefixbin);
+		int prefix_len = rule.getMaskLen();
+		int prefix = (int) rule.getDstIP() & TrieTreeNode.mask(prefix_len);
+		TrieTreeNode node = node_index.get(key(prefix, prefix_len));
+		if (node != null) return node;
+		
+		node = root;
+		while (node.prefix_len < prefix_len) {
+			int bit = TrieTreeNode.bitAt(prefix, node.prefix_len);
+			TrieTreeNode child = node.getChild(bit);
+			if (child == null) {
+				child = new TrieTreeNode(prefix, prefix_len);
+				node.setChild(bit, child);
+				node_index.put(key(prefix, prefix_len), child);
+				return child;
+			}
+			if (child.covers(prefix, prefix_len)) {
+				node = child;
+				continue;
+			}
+			
+			// the length of the prefix shared with the child, which is shorter than the child
+			int common_len = Math.min(Integer.numberOfLeadingZeros(prefix ^ child.prefix), prefix_len);
+			TrieTreeNode inserted;
+			TrieTreeNode branch;
+			if (common_len == prefix_len) {
+				// the prefix holds the child
+				inserted = new TrieTreeNode(prefix, prefix_len);
+				branch = inserted;
+			}
+			else {
+				// the prefix and the child branch after the shared prefix
+				inserted = new TrieTreeNode(prefix, prefix_len);
+				branch = new TrieTreeNode(prefix & TrieTreeNode.mask(common_len), common_len);
+				branch.setChild(TrieTreeNode.bitAt(prefix, common_len), inserted);
+				node_index.put(key(branch.prefix, common_len), branch);
+			}
+			node_index.put(key(prefix, prefix_len), inserted);
+			branch.setChild(TrieTreeNode.bitAt(child.prefix, common_len), child);
+			node.setChild(bit, branch);
+			branch.updateSummary();
+			return inserted;
+		}
+		return node;
 	}
 
-	public TrieTreeNode search(ForwardingRule rule) throws Exception {
-		long prefix = rule.getDstIP();
-		int prefixlen = rule.getMaskLen();
-		int[] prefixbin = PrefixLongToBin(prefix, prefixlen);
-		return root.search(prefixbin);
+	/**
+	 * @return the node of the prefix of the rule, or null if not found
+	 */
+	public TrieTreeNode search(ForwardingRule rule) {
+		return search(rule.getDstIP(), rule.getMaskLen());
 	}
 	
-	public int[] PrefixLongToBin(long prefix, int prefixlen) 
-	{
-    	int[] bin = new int[32];
-    	for (int i=0; i<32; i++) {
-    		if (i >= prefixlen) {
-    			bin[i] = 2;
-    		}
-    		else if((prefix & (1 << (32-i-1))) == 0) {
-    			bin[i] = 0;
-    		}
-    		else {
-    			bin[i] = 1;
-    		}
-    	}    
-    	return bin;
+	public TrieTreeNode search(long prefix, int prefix_len) {
+		return node_index.get(key((int) prefix & TrieTreeNode.mask(prefix_len), prefix_len));
+	}
+	
+	/**
+	 * @return the rule of the highest priority among the rules covering an address
+	 */
+	public ForwardingRule lookup(long address) {
+		int key = (int) address;
+		Rule matched = default_rule;
+		for (TrieTreeNode node = root; node != null && node.covers(key, 32); ) {
+			for (Rule rule : node.getRules()) {
+				if (rule.getPriority() > matched.getPriority()) matched = rule;
+			}
+			if (node.prefix_len == 32) break;
+			node = node.getChild(TrieTreeNode.bitAt(key, node.prefix_len));
+		}
+		return (ForwardingRule) matched;
+	}
+
+	/**
+	 * remove the node without rules from the trie, 
+	 * together with the branching nodes left with a single child
+	 */
+	public void delete(TrieTreeNode node) {
+		// the root is kept for the default rule
+		while (node.parent != null && node.noRules()) {
+			TrieTreeNode up = node.parent;
+			int bit = up.zero == node ? 0 : 1;
+			if (node.zero != null && node.one != null) {
+				return;
+			}
+			node_index.remove(key(node.prefix, node.prefix_len));
+			if (node.zero != null || node.one != null) {
+				// splice out the node with a single child
+				up.setChild(bit, node.zero != null ? node.zero : node.one);
+				return;
+			}
+			up.setChild(bit, null);
+			node.parent = null;
+			node = up;
+		}
 	}
 }
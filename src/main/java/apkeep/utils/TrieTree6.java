@@ -0,0 +1,162 @@
+/**
+ * APKeep
+ * 
+ * Copyright (c) 2020 ANTS Lab, Xi'an Jiaotong University. All rights reserved.
+ * Developed by: PENG ZHANG and XU LIU.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * with the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimers.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimers in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the Xi'an Jiaotong University nor the names of the
+ * developers may be used to endorse or promote products derived from this
+ * Software without specific prior written permission.
+ * 
+ * 4. Any report or paper describing results derived from using any part of this
+ * Software must cite the following publication of the developers: Peng Zhang,
+ * Xu Liu, Hongkun Yang, Ning Kang, Zhengchang Gu, and Hao Li, APKeep: Realtime 
+ * Verification for Real Networks, In 17th USENIX Symposium on Networked Systems
+ * Design and Implementation (NSDI 20), pp. 241-255. 2020.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH
+ * THE SOFTWARE.
+ */
+package apkeep.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import apkeep.rules.ForwardingRule6;
+import apkeep.rules.Rule;
+
+/**
+ * The v6 version of TrieTree, the nodes are found by walking down the trie 
+ * since the 128-bit prefixes do not fit in the keys of the index
+ */
+public class TrieTree6 {
+	TrieTreeNode6 root;
+	ForwardingRule6 default_rule;
+	
+	/**
+	 * @param default_match - the v6 packets, matched by the default rule
+	 */
+	public TrieTree6(int default_match) {
+		root = new TrieTreeNode6(0, 0, 0);
+		default_rule = new ForwardingRule6(default_match,default_match,0,0,0,"default",-1);
+		root.addRule(default_rule);
+	}
+
+	public ForwardingRule6 getDefaultRule() {
+		return default_rule;
+	}
+
+	/**
+	 * @return the rules of all nodes, parents before children
+	 */
+	public List<Rule> getRules() {
+		List<Rule> rules = new ArrayList<>();
+		root.collectRules(rules);
+		return rules;
+	}
+	
+	/**
+	 * @return the node of the prefix of the rule, created if not found
+	 */
+	public TrieTreeNode6 insert(ForwardingRule6 rule) {
+		int prefix_len = rule.getMaskLen();
+		long prefix_high = rule.getDstIPHigh() & TrieTreeNode6.maskHigh(prefix_len);
+		long prefix_low = rule.getDstIPLow() & TrieTreeNode6.maskLow(prefix_len);
+		
+		TrieTreeNode6 node = root;
+		while (node.prefix_len < prefix_len) {
+			int bit = TrieTreeNode6.bitAt(prefix_high, prefix_low, node.prefix_len);
+			TrieTreeNode6 child = (TrieTreeNode6) node.getChild(bit);
+			if (child == null) {
+				child = new TrieTreeNode6(prefix_high, prefix_low, prefix_len);
+				node.setChild(bit, child);
+				return child;
+			}
+			if (child.covers(prefix_high, prefix_low, prefix_len)) {
+				node = child;
+				continue;
+			}
+			
+			// the length of the prefix shared with the child, which is shorter than the child
+			int common_len = Math.min(TrieTreeNode6.commonLength(prefix_high, prefix_low, 
+					child.prefix_high, child.prefix_low), prefix_len);
+			TrieTreeNode6 inserted = new TrieTreeNode6(prefix_high, prefix_low, prefix_len);
+			TrieTreeNode6 branch;
+			if (common_len == prefix_len) {
+				// the prefix holds the child
+				branch = inserted;
+			}
+			else {
+				// the prefix and the child branch after the shared prefix
+				branch = new TrieTreeNode6(prefix_high & TrieTreeNode6.maskHigh(common_len), 
+						prefix_low & TrieTreeNode6.maskLow(common_len), common_len);
+				branch.setChild(TrieTreeNode6.bitAt(prefix_high, prefix_low, common_len), inserted);
+			}
+			branch.setChild(TrieTreeNode6.bitAt(child.prefix_high, child.prefix_low, common_len), child);
+			node.setChild(bit, branch);
+			branch.updateSummary();
+			return inserted;
+		}
+		return node;
+	}
+
+	/**
+	 * @return the node of the prefix of the rule, or null if not found
+	 */
+	public TrieTreeNode6 search(ForwardingRule6 rule) {
+		return search(rule.getDstIPHigh(), rule.getDstIPLow(), rule.getMaskLen());
+	}
+	
+	public TrieTreeNode6 search(long prefix_high, long prefix_low, int prefix_len) {
+		prefix_high &= TrieTreeNode6.maskHigh(prefix_len);
+		prefix_low &= TrieTreeNode6.maskLow(prefix_len);
+		TrieTreeNode6 node = root;
+		while (node != null && node.prefix_len < prefix_len) {
+			node = (TrieTreeNode6) node.getChild(TrieTreeNode6.bitAt(prefix_high, prefix_low, node.prefix_len));
+			if (node != null && !node.covers(prefix_high, prefix_low, prefix_len)) return null;
+		}
+		return node != null && node.prefix_len == prefix_len ? node : null;
+	}
+	
+	/**
+	 * remove the node without rules from the trie, 
+	 * together with the branching nodes left with a single child
+	 */
+	public void delete(TrieTreeNode node) {
+		// the root is kept for the default rule
+		while (node.parent != null && node.noRules()) {
+			TrieTreeNode up = node.parent;
+			int bit = up.zero == node ? 0 : 1;
+			if (node.zero != null && node.one != null) {
+				return;
+			}
+			if (node.zero != null || node.one != null) {
+				// splice out the node with a single child
+				up.setChild(bit, node.zero != null ? node.zero : node.one);
+				return;
+			}
+			up.setChild(bit, null);
+			node.parent = null;
+			node = up;
+		}
+	}
+}
@@ -39,136 +39,89 @@
 package apkeep.utils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
-import apkeep.exception.LimitExceededException;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 import apkeep.rules.Rule;
 
+/**
+ * A node of the path-compressed trie of destination prefixes, 
+ * which holds the rules of its prefix, or no rule if it only branches
+ */
 public class TrieTreeNode {
 	
-	final static int ipBits = 32;
+	private static final Rule[] NO_RULES = new Rule[0];
 	
-	private List<Rule> matched_rules;
+	int prefix; // the leading prefix_len bits, the others are 0
+	int prefix_len;
 	
-	int node_level;
-	int node_value;
+	private Rule[] matched_rules;
+	// the priority range of the rules in the subtree, for skipping the subtrees out of range
+	int subtree_max_priority = Integer.MIN_VALUE;
+	int subtree_min_priority = Integer.MAX_VALUE;
 	
-	// children [0]: bit 0; children[1]: bit 1; children[2]: bit *
 	TrieTreeNode parent;
-	TrieTreeNode[] children;
-    
-    public TrieTreeNode(int level, int value)
-	{
-		children = new TrieTreeNode[3];
-		matched_rules = new ArrayList<>();
-		node_level = level;
-		node_value = value;
-	}
-    
-	public TrieTreeNode insert(int[] prefixbin) {
-		int index = prefixbin[node_level];	
-		
-		if (children[index] == null) {
-			children[index] = new TrieTreeNode(node_level+1, index);
-		}
-		children[index].parent = this;
-		
-		// stop recursion when reaching wildcard or the bottom level
-		if (index == 2 || node_level == 31) {
-			return children[index];
-		}
-		
-		return children[index].insert(prefixbin);
+	TrieTreeNode zero; // the subtree of the prefixes with bit 0 after this prefix
+	TrieTreeNode one; // the subtree of the prefixes with bit 1 after this prefix
+	
+	TrieTreeNode(int prefix, int prefix_len) {
+		this.prefix = prefix;
+		this.prefix_len = prefix_len;
+		matched_rules = NO_RULES;
 	}
 	
-	public TrieTreeNode search(int[] prefixbin) throws Exception {
-		// should not reach here
-		if (node_level > 31) {
-			throw new LimitExceededException(node_level, 31);
-		}
-		
-		int index = prefixbin[node_level];
-		if (children[index] !=  null) {
-			// stop recursion when reaching wildcard or the bottom level
-			if (index == 2 || node_level == 31)
-				return children[index];
-			return children[index].search(prefixbin);
-		}
-		
-		return null;
+	TrieTreeNode getChild(int bit) {
+		return bit == 0 ? zero : one;
 	}
 	
-    private List<TrieTreeNode> getDescendant() {
-    	ArrayList<TrieTreeNode> descendants = new ArrayList<TrieTreeNode>();
-		
-		if (node_level == 32 && node_value != 2) {
-			return descendants;
-		}
-		
-		if (parent == null) {
-			throw new NullPointerException();
-		}
-		
-		if (parent.children[0] != null) {
-			parent.children[0].getDescendantRecur(descendants);
-		}
-		
-		if (parent.children[1] != null) {
-			parent.children[1].getDescendantRecur(descendants);
-		}
-		
-		return descendants;
+	void setChild(int bit, TrieTreeNode child) {
+		if (bit == 0) zero = child;
+		else one = child;
+		if (child != null) child.parent = this;
 	}
 	
-	private void getDescendantRecur(ArrayList<TrieTreeNode> descendants) {
-		if (node_level == 32) {
-			descendants.add(this);
-			return;
-		}
-		
-		if (children[2] != null) {
-			descendants.add(children[2]);
-			//return;
-		}
-		
-		if (children[0] != null) {
-			children[0].getDescendantRecur(descendants);
-		}
-		
-		if (children[1] != null) {
-			children[1].getDescendantRecur(descendants);
-		}
-		
-		return;
+	/**
+	 * @return whether the prefix of the node holds the prefix of the given length
+	 */
+	boolean covers(int key, int key_len) {
+		return prefix_len <= key_len && (key & mask(prefix_len)) == prefix;
+	}
+	
+	static int mask(int len) {
+		return len == 0 ? 0 : -1 << (32 - len);
+	}
+	
+	static int bitAt(int key, int index) {
+		return (key >>> (31 - index)) & 1;
+	}
+	
+	private List<TrieTreeNode> getDescendant() {
+		List<TrieTreeNode> descendants = new ArrayList<>();
+		if (zero != null) zero.collectNodes(descendants);
+		if (one != null) one.collectNodes(descendants);
+		return descendants;
 	}
 	
 	private List<TrieTreeNode> getAncestor() {
-		ArrayList<TrieTreeNode> ancestors = new ArrayList<TrieTreeNode>();
-		
-		// should not reach here
-		if (parent == null) {
-			throw new NullPointerException();
+		List<TrieTreeNode> ancestors = new ArrayList<>();
+		for (TrieTreeNode node = parent; node != null; node = node.parent) {
+			ancestors.add(node);
 		}
-		
-		// search for all ancestors recursively
-		getAncestorRecur(ancestors);
-		if(ancestors.contains(this)) ancestors.remove(this);
-		
 		return ancestors;
 	}
-
-	private void getAncestorRecur(ArrayList<TrieTreeNode> ancestors) {
-		if (parent != null) {
-			if (parent.children[2] != null)
-				ancestors.add(parent.children[2]);
-			parent.getAncestorRecur(ancestors);
-		}
+	
+	private void collectNodes(List<TrieTreeNode> nodes) {
+		nodes.add(this);
+		if (zero != null) zero.collectNodes(nodes);
+		if (one != null) one.collectNodes(nodes);
 	}
 
 	public List<Rule> getDescendantRules() {
 		List<Rule> rules = new ArrayList<>();
-		List<TrieTreeNode> descendant = getDescendant();
-		if(descendant == null) return rules;
-		for(TrieTreeNode node : descendant) {
+		for(TrieTreeNode node : getDescendant()) {
 			rules.addAll(node.getRules());
 		}
 		return rules;
@@ -176,63 +129,151 @@ public class TrieTreeNode {
 	
 	public List<Rule> getAncestorRules() {
 		List<Rule> rules = new ArrayList<>();
-		List<TrieTreeNode> ancestor = getAncestor();
-		if(ancestor == null) return rules;
-		for(TrieTreeNode node : ancestor) {
+		for(TrieTreeNode node : getAncestor()) {
 			rules.addAll(node.getRules());
 		}
 		return rules;
 	}
-
-	public void setParent(TrieTreeNode parent) {
-		this.parent = parent;
+	
+	/**
+	 * @return the rules of the descendants, the ancestors and the node itself 
+	 * with no higher priority than max_priority, in the order of decreasing priority; 
+	 * the descendants are visited only when their subtree may hold the next rule, 
+	 * so the subtrees above max_priority and the rules after a stop are never visited
+	 */
+	public Iterator<Rule> getAffectedRules(int max_priority) {
+		PriorityIterator it = new PriorityIterator(max_priority);
+		for (TrieTreeNode ancestor = parent; ancestor != null; ancestor = ancestor.parent) {
+			it.addRules(ancestor);
+		}
+		it.addRules(this);
+		it.addSubtree(zero);
+		it.addSubtree(one);
+		return it;
+	}
+	
+	private static class PriorityIterator implements Iterator<Rule> {
+		private int max_priority;
+		private PriorityQueue<Rule> rules; // Rule is ordered by decreasing priority
+		private PriorityQueue<TrieTreeNode> subtrees;
+		
+		PriorityIterator(int max_priority) {
+			this.max_priority = max_priority;
+			rules = new PriorityQueue<>();
+			subtrees = new PriorityQueue<>(11, new Comparator<TrieTreeNode>() {
+				@Override
+				public int compare(TrieTreeNode a, TrieTreeNode b) {
+					return Integer.compare(b.subtree_max_priority, a.subtree_max_priority);
+				}
+			});
+		}
+		
+		void addRules(TrieTreeNode node) {
+			for (Rule rule : node.matched_rules) {
+				if (rule.getPriority() <= max_priority) rules.add(rule);
+			}
+		}
+		
+		void addSubtree(TrieTreeNode node) {
+			// skip the subtrees without rules or with rules of higher priority only
+			if (node != null && node.subtree_min_priority <= max_priority) subtrees.add(node);
+		}
+		
+		@Override
+		public boolean hasNext() {
+			// expand the subtrees until none may hold a rule before the next one
+			while (!subtrees.isEmpty() 
+					&& (rules.isEmpty() || subtrees.peek().subtree_max_priority > rules.peek().getPriority())) {
+				TrieTreeNode node = subtrees.poll();
+				addRules(node);
+				addSubtree(node.zero);
+				addSubtree(node.one);
+			}
+			return !rules.isEmpty();
+		}
+		
+		@Override
+		public Rule next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			return rules.poll();
+		}
+	}
+	
+	/*
+	 * recompute the priority range of the subtrees from this node up to the root
+	 */
+	void updateSummary() {
+		TrieTreeNode node = this;
+		while (node != null) {
+			int max = Integer.MIN_VALUE;
+			int min = Integer.MAX_VALUE;
+			for (Rule rule : node.matched_rules) {
+				max = Math.max(max, rule.getPriority());
+				min = Math.min(min, rule.getPriority());
+			}
+			if (node.zero != null) {
+				max = Math.max(max, node.zero.subtree_max_priority);
+				min = Math.min(min, node.zero.subtree_min_priority);
+			}
+			if (node.one != null) {
+				max = Math.max(max, node.one.subtree_max_priority);
+				min = Math.min(min, node.one.subtree_min_priority);
+			}
+			if (max == node.subtree_max_priority && min == node.subtree_min_priority) return;
+			node.subtree_max_priority = max;
+			node.subtree_min_priority = min;
+			node = node.parent;
+		}
 	}
-    public void setChild(int bit, TrieTreeNode child) {
-    	children[bit] = child;
-    }
 
 	public void addRule(Rule rule) {
-		if(!matched_rules.contains(rule)) matched_rules.add(rule);
+		if(hasRule(rule)) return;
+		matched_rules = Arrays.copyOf(matched_rules, matched_rules.length + 1);
+		matched_rules[matched_rules.length - 1] = rule;
+		updateSummary();
 	}
 	
 	public void removeRule(Rule rule) {
-		matched_rules.remove(rule);
-	}
-	
-	public void delete() {
-		if (parent != null){
-			parent.children[node_value] = null;
-			if (!parent.hasChild()) {
-				parent.delete();
+		for (int i=0; i<matched_rules.length; i++) {
+			if (matched_rules[i].equals(rule)) {
+				Rule[] rules = new Rule[matched_rules.length - 1];
+				System.arraycopy(matched_rules, 0, rules, 0, i);
+				System.arraycopy(matched_rules, i + 1, rules, i, rules.length - i);
+				matched_rules = rules.length == 0 ? NO_RULES : rules;
+				updateSummary();
+				return;
 			}
 		}
 	}
 	
 	public boolean noRules() {
-		return matched_rules.isEmpty();
+		return matched_rules.length == 0;
 	}
 	
-	private boolean hasChild() {
-		for (int i=0; i<3; i++) {
-			if (children[i] != null) {
-				return true;
-			}
-		}
-		return false;
+	public Rule findRule(Rule rule) {
+		return findRule(rule.getPriority(), rule.getPort_id());
 	}
 	
-	public Rule findRule(Rule rule) {
+	public Rule findRule(int priority, int port_id) {
 		for(Rule r : matched_rules) {
-			if(r.equals(rule)) return r;
+			if(r.getPriority() == priority && r.getPort_id() == port_id) return r;
 		}
 		return null;
 	}
 	
 	public boolean hasRule(Rule rule) {
-		return matched_rules.contains(rule);
+		return findRule(rule) != null;
+	}
+	
+	void collectRules(List<Rule> rules) {
+		for (Rule rule : matched_rules) {
+			rules.add(rule);
+		}
+		if (zero != null) zero.collectRules(rules);
+		if (one != null) one.collectRules(rules);
 	}
 	
 	public List<Rule> getRules(){
-		return matched_rules;
+		return Arrays.asList(matched_rules);
 	}
 }
@@ -0,0 +1,85 @@
+/**
+ * APKeep
+ * 
+ * Copyright (c) 2020 ANTS Lab, Xi'an Jiaotong University. All rights reserved.
+ * Developed by: PENG ZHANG and XU LIU.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * with the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimers.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimers in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the Xi'an Jiaotong University nor the names of the
+ * developers may be used to endorse or promote products derived from this
+ * Software without specific prior written permission.
+ * 
+ * 4. Any report or paper describing results derived from using any part of this
+ * Software must cite the following publication of the developers: Peng Zhang,
+ * Xu Liu, Hongkun Yang, Ning Kang, Zhengchang Gu, and Hao Li, APKeep: Realtime 
+ * Verification for Real Networks, In 17th USENIX Symposium on Networked Systems
+ * Design and Implementation (NSDI 20), pp. 241-255. 2020.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH
+ * THE SOFTWARE.
+ */
+package apkeep.utils;
+
+/**
+ * A node of the path-compressed trie of v6 destination prefixes, 
+ * the rules and the subtrees are kept by TrieTreeNode as for the v4 prefixes
+ */
+public class TrieTreeNode6 extends TrieTreeNode {
+	
+	// the leading prefix_len bits of the 128 bits, the others are 0
+	long prefix_high;
+	long prefix_low;
+	
+	TrieTreeNode6(long prefix_high, long prefix_low, int prefix_len) {
+		super(0, prefix_len);
+		this.prefix_high = prefix_high;
+		this.prefix_low = prefix_low;
+	}
+	
+	/**
+	 * @return whether the prefix of the node holds the prefix of the given length
+	 */
+	boolean covers(long key_high, long key_low, int key_len) {
+		return prefix_len <= key_len 
+				&& (key_high & maskHigh(prefix_len)) == prefix_high 
+				&& (key_low & maskLow(prefix_len)) == prefix_low;
+	}
+	
+	static long maskHigh(int len) {
+		return len == 0 ? 0 : len >= 64 ? -1L : -1L << (64 - len);
+	}
+	
+	static long maskLow(int len) {
+		return len <= 64 ? 0 : -1L << (128 - len);
+	}
+	
+	static int bitAt(long key_high, long key_low, int index) {
+		return index < 64 ? (int) (key_high >>> (63 - index)) & 1 : (int) (key_low >>> (127 - index)) & 1;
+	}
+	
+	/**
+	 * @return the length of the prefix shared by the two keys, 128 if they are the same
+	 */
+	static int commonLength(long high1, long low1, long high2, long low2) {
+		if (high1 != high2) return Long.numberOfLeadingZeros(high1 ^ high2);
+		return 64 + Long.numberOfLeadingZeros(low1 ^ low2);
+	}
+}
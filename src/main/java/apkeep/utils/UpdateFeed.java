@@ -0,0 +1,117 @@
+/**
+ * APKeep
+ * 
+ * Copyright (c) 2020 ANTS Lab, Xi'an Jiaotong University. All rights reserved.
+ * Developed by: PENG ZHANG and XU LIU.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * with the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimers.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimers in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the Xi'an Jiaotong University nor the names of the
+ * developers may be used to endorse or promote products derived from this
+ * Software without specific prior written permission.
+ * 
+ * 4. Any report or paper describing results derived from using any part of this
+ * Software must cite the following publication of the developers: Peng Zhang,
+ * Xu Liu, Hongkun Yang, Ning Kang, Zhengchang Gu, and Hao Li, APKeep: Realtime 
+ * Verification for Real Networks, In 17th USENIX Symposium on Networked Systems
+ * Design and Implementation (NSDI 20), pp. 241-255. 2020.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH
+ * THE SOFTWARE.
+ */
+package apkeep.utils;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The rule updates waiting to be applied, in their order.
+ * 
+ * The updates of a file are read by a reader thread as they arrive, so an 
+ * empty feed means the network has caught up with its input and is idle 
+ * until the next update comes.
+ */
+public class UpdateFeed {
+	private static final String END = new String("end of the updates"); // compared by reference
+	
+	private BlockingQueue<String> updates;
+	private boolean ended;
+	private IOException failure;
+	
+	public UpdateFeed(List<String> rules) {
+		updates = new LinkedBlockingQueue<>(rules);
+		updates.add(END);
+	}
+	
+	public UpdateFeed(String file) throws IOException {
+		updates = new LinkedBlockingQueue<>();
+		final BufferedReader br = new BufferedReader(new FileReader(file));
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readLoop(br);
+			}
+		}, "update-feed-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+	
+	private void readLoop(BufferedReader br) {
+		try {
+			String OneLine;
+			while((OneLine = br.readLine()) != null) {
+				updates.add(OneLine.trim());
+			}
+		} catch (IOException e) {
+			failure = e;
+		} finally {
+			try {
+				br.close();
+			} catch (IOException e) {
+				if (failure == null) failure = e;
+			}
+			updates.add(END);
+		}
+	}
+	
+	/**
+	 * @param timeout - the nanoseconds to wait for an update, 0 for not waiting
+	 * @return the next update, null if none arrives in time or the updates have ended
+	 */
+	public String poll(long timeout) throws IOException, InterruptedException {
+		if (ended) return null;
+		String update = updates.poll(timeout, TimeUnit.NANOSECONDS);
+		if (update == END) {
+			ended = true;
+			if (failure != null) throw failure;
+			return null;
+		}
+		return update;
+	}
+	
+	public boolean hasEnded() {
+		return ended;
+	}
+}
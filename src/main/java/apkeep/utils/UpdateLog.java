@@ -0,0 +1,249 @@
+/**
+ * APKeep
+ * 
+ * Copyright (c) 2020 ANTS Lab, Xi'an Jiaotong University. All rights reserved.
+ * Developed by: PENG ZHANG and XU LIU.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * with the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimers.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimers in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the Xi'an Jiaotong University nor the names of the
+ * developers may be used to endorse or promote products derived from this
+ * Software without specific prior written permission.
+ * 
+ * 4. Any report or paper describing results derived from using any part of this
+ * Software must cite the following publication of the developers: Peng Zhang,
+ * Xu Liu, Hongkun Yang, Ning Kang, Zhengchang Gu, and Hao Li, APKeep: Realtime 
+ * Verification for Real Networks, In 17th USENIX Symposium on Networked Systems
+ * Design and Implementation (NSDI 20), pp. 241-255. 2020.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH
+ * THE SOFTWARE.
+ */
+package apkeep.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An append-only log of the applied rule updates.
+ * 
+ * Each line is the sequence number of an update followed by the update. 
+ * Appending only queues the line, a writer thread writes all the queued 
+ * lines at once and syncs them to the disk, at most once per sync interval, 
+ * so the updates do not wait for the disk. The log is rotated when a 
+ * checkpoint is written, and the updates logged after the sequence number 
+ * of the checkpoint are replayed to recover the network.
+ */
+public class UpdateLog {
+	private String file;
+	private FileChannel channel;
+	private long sync_interval;
+	
+	private List<String> pending; // lines not written yet
+	private long appended; // sequence number of the last appended update
+	private long synced; // sequence number of the last update synced to the disk
+	private boolean sync_requested;
+	private boolean closed;
+	private IOException failure;
+	
+	private Thread writer;
+	
+	/**
+	 * open the log for appending, a partial line left by a crash is cut off
+	 * @param sync_interval - the time in milliseconds to wait for more updates before a sync
+	 */
+	public UpdateLog(String file, int sync_interval) throws IOException {
+		this.file = file;
+		this.sync_interval = sync_interval;
+		File parent = new File(file).getAbsoluteFile().getParentFile();
+		if (!parent.exists()) parent.mkdirs();
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		channel.truncate(getValidLength(readBytes(file)));
+		channel.position(channel.size());
+		
+		pending = new ArrayList<>();
+		appended = -1;
+		synced = -1;
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "update-log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	public String getFile() {
+		return file;
+	}
+	
+	public synchronized void append(long sequence, String update) throws IOException {
+		if (failure != null) throw failure;
+		pending.add(sequence + " " + update + "\n");
+		appended = sequence;
+		if (pending.size() == 1) notifyAll();
+	}
+	
+	/**
+	 * wait until all appended updates are synced to the disk
+	 */
+	public synchronized void sync() throws IOException {
+		sync_requested = true;
+		notifyAll();
+		try {
+			while (synced != appended && failure == null) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while syncing the update log");
+		} finally {
+			sync_requested = false;
+		}
+		if (failure != null) throw failure;
+	}
+	
+	/**
+	 * drop the logged updates once they are covered by a checkpoint
+	 */
+	public synchronized void rotate() throws IOException {
+		sync();
+		channel.truncate(0);
+		channel.force(true);
+	}
+	
+	public void close() throws IOException {
+		sync();
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		channel.close();
+	}
+	
+	/*
+	 * group commit: the lines queued during the sync interval are written and synced together
+	 */
+	private void writeLoop() {
+		try {
+			while (true) {
+				List<String> lines;
+				long last;
+				synchronized (this) {
+					while (pending.isEmpty() && !closed) {
+						wait();
+					}
+					if (pending.isEmpty()) return;
+					long deadline = System.currentTimeMillis() + sync_interval;
+					long now;
+					while (!closed && !sync_requested && (now = System.currentTimeMillis()) < deadline) {
+						wait(deadline - now);
+					}
+					lines = pending;
+					pending = new ArrayList<>();
+					last = appended;
+				}
+				StringBuilder sb = new StringBuilder();
+				for (String line : lines) {
+					sb.append(line);
+				}
+				ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(false);
+				synchronized (this) {
+					synced = last;
+					notifyAll();
+				}
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				failure = e;
+				notifyAll();
+			}
+		} catch (InterruptedException e) {
+			synchronized (this) {
+				failure = new IOException("the update log writer is interrupted");
+				notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * read the updates logged after a sequence number, in their order
+	 * @throws IOException if the log does not continue from the sequence number
+	 */
+	public static List<String> read(String file, long sequence) throws IOException {
+		List<String> updates = new ArrayList<>();
+		if (!new File(file).exists()) return updates;
+		
+		byte[] bytes = readBytes(file);
+		String content = new String(bytes, 0, getValidLength(bytes), StandardCharsets.UTF_8);
+		long expected = sequence + 1;
+		for (String line : content.split("\n")) {
+			if (line.isEmpty()) continue;
+			int space = line.indexOf(' ');
+			long line_sequence;
+			try {
+				line_sequence = Long.parseLong(line.substring(0, space));
+			} catch (RuntimeException e) {
+				throw new IOException("malformed update log line: " + line);
+			}
+			if (line_sequence <= sequence) continue;
+			if (line_sequence != expected) {
+				throw new IOException("the update log misses the updates " + expected + " to " + (line_sequence-1));
+			}
+			updates.add(line.substring(space + 1));
+			expected++;
+		}
+		return updates;
+	}
+	
+	private static byte[] readBytes(String file) throws IOException {
+		if (!new File(file).exists()) return new byte[0];
+		return Files.readAllBytes(Paths.get(file));
+	}
+	
+	/*
+	 * the length up to the last complete line
+	 */
+	private static int getValidLength(byte[] bytes) {
+		int length = bytes.length;
+		while (length > 0 && bytes[length-1] != '\n') {
+			length--;
+		}
+		return length;
+	}
+}
@@ -44,7 +44,6 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
 
-import apkeep.utils.Parameters;
 import jdd.bdd.*;
 
 /**
@@ -79,6 +78,8 @@ public class BDDACLWrapper implements Serializable{
       // mplsLabel[0] - least significant bit
       int[] mplsLabel;
       public final static int ip6Bits = 128;
+      // the leading bits of the v6 covers, so that a cover fits in a long
+      public final static int ip6CoverBits = 56;
       int[] dstIP6;
 
       public int mplsLabelField;
@@ -96,6 +97,9 @@ public class BDDACLWrapper implements Serializable{
       int dstIP6Bit;
       int protocolBit;
       int dstIPInnerBit;
+      
+      // the node of each variable, indexed by variable
+      transient int[] varNodes;
 
       Permutation push_perm;
       Permutation pop_perm;
@@ -109,13 +113,21 @@ public class BDDACLWrapper implements Serializable{
       public final static int BDDTrue = 1;
 
       public BDDACLWrapper()
+      {
+            this(100000000);
+      }
+      
+      /**
+       * @param table_size - the initial number of nodes in the BDD table
+       */
+      public BDDACLWrapper(int table_size)
       {
             // for debugging 
             //aclBDD = new DebugBDD(100000, 10000);
             
             // normal
             //aclBDD = new BDD(100000000, 1000000);
-    	    aclBDD = new BDD(Parameters.BDD_TABLE_SIZE, 1000000);
+    	    aclBDD = new BDD(table_size, 1000000);
             //aclBDD = new BDD(10000000, 1000000);
             
             protocol = new int[protocolBits];
@@ -127,6 +139,8 @@ public class BDDACLWrapper implements Serializable{
             mplsLabel = new int[mplsBits];
             dstIP6 = new int[ip6Bits];
 
+            // the ip version is on top, so that the v4 and v6 packets are told apart first
+            dstIP6Bit = aclBDD.createVar();
             /**
              * will try more orders of variables
              */
@@ -513,10 +527,10 @@ public class BDDACLWrapper implements Serializable{
             {
                   if(i == 0)
                   {
-                        tempnode = EncodingVar(dstIP6[i], prefix.charAt(i));
+                        tempnode = EncodingVar(dstIP6[ip6Bits - 1 - i], prefix.charAt(i));
                   }else
                   {
-                        int tempnode2 = EncodingVar(dstIP6[i], prefix.charAt(i));
+                        int tempnode2 = EncodingVar(dstIP6[ip6Bits - 1 - i], prefix.charAt(i));
                         int tempnode3 = aclBDD.and(tempnode, tempnode2);
                         aclBDD.ref(tempnode3);
                         aclBDD.deref(tempnode);
@@ -736,6 +750,270 @@ public class BDDACLWrapper implements Serializable{
             return entrybdd;
       }
 
+      /**
+       * walk down the bdd along the dst ip bits, from the most significant one, 
+       * as long as the bit is fixed; no bdd operation is involved
+       * @return the longest dst ip prefix found to cover the v4 packets of the set, 
+       *         encoded as (ip address << 8 | prefix length)
+       */
+      public long getDstIPCover(int pkt)
+      {
+            long ipaddr = 0;
+            int prefixlen = 0;
+            int node = pkt;
+            // only the v4 packets have the dst ip
+            if(node != BDDFalse && node != BDDTrue && aclBDD.getVar(node) == aclBDD.getVar(dstIP6Bit))
+            {
+                  node = aclBDD.getLow(node);
+            }
+            while(prefixlen < ipBits && node != BDDFalse && node != BDDTrue)
+            {
+                  if(aclBDD.getVar(node) != aclBDD.getVar(dstIP[ipBits - 1 - prefixlen]))
+                  {
+                        break;
+                  }
+                  if(aclBDD.getLow(node) == BDDFalse)
+                  {
+                        ipaddr |= 1L << (ipBits - 1 - prefixlen);
+                        node = aclBDD.getHigh(node);
+                  }else if(aclBDD.getHigh(node) == BDDFalse)
+                  {
+                        node = aclBDD.getLow(node);
+                  }else
+                  {
+                        break;
+                  }
+                  prefixlen ++;
+            }
+            return ipaddr << 8 | prefixlen;
+      }
+
+      /**
+       * @return the bdd variable of the dst ip bit, the variables of the higher bits come first
+       */
+      public int getDstIPVar(int bit)
+      {
+            return aclBDD.getVar(dstIP[bit]);
+      }
+
+      /**
+       * @return the bdd variable of the v6 dst ip bit, the variables of the higher bits come first
+       */
+      public int getDstIP6Var(int bit)
+      {
+            return aclBDD.getVar(dstIP6[bit]);
+      }
+
+      /**
+       * the v6 version of getDstIPCover, which only walks down the leading ip6CoverBits bits
+       * @return the cover of the v6 packets of the set, 
+       *         encoded as (leading ip6CoverBits bits << 8 | prefix length)
+       */
+      public long getDstIP6Cover(int pkt)
+      {
+            long ipaddr = 0;
+            int prefixlen = 0;
+            int node = pkt;
+            // only the v6 packets have the v6 dst ip
+            if(node != BDDFalse && node != BDDTrue && aclBDD.getVar(node) == aclBDD.getVar(dstIP6Bit))
+            {
+                  node = aclBDD.getHigh(node);
+            }
+            while(prefixlen < ip6CoverBits && node != BDDFalse && node != BDDTrue)
+            {
+                  if(aclBDD.getVar(node) != aclBDD.getVar(dstIP6[ip6Bits - 1 - prefixlen]))
+                  {
+                        break;
+                  }
+                  if(aclBDD.getLow(node) == BDDFalse)
+                  {
+                        ipaddr |= 1L << (ip6CoverBits - 1 - prefixlen);
+                        node = aclBDD.getHigh(node);
+                  }else if(aclBDD.getHigh(node) == BDDFalse)
+                  {
+                        node = aclBDD.getLow(node);
+                  }else
+                  {
+                        break;
+                  }
+                  prefixlen ++;
+            }
+            return ipaddr << 8 | prefixlen;
+      }
+
+      /**
+       * @return the v6 packets, the others are v4 packets
+       */
+      public int getIPv6Packets()
+      {
+            return dstIP6Bit;
+      }
+
+      /**
+       * the ip version is the top variable, so only the root of the bdd is read
+       * @return 4 or 6 if the packet set only has packets of that ip version, 0 if it has both
+       */
+      public int getIPVersion(int pkt)
+      {
+            if(pkt == BDDFalse || pkt == BDDTrue || aclBDD.getVar(pkt) != aclBDD.getVar(dstIP6Bit))
+            {
+                  return 0;
+            }
+            if(aclBDD.getHigh(pkt) == BDDFalse)
+            {
+                  return 4;
+            }
+            if(aclBDD.getLow(pkt) == BDDFalse)
+            {
+                  return 6;
+            }
+            return 0;
+      }
+
+      /**
+       * @param high - the high 64 bits of the v6 address
+       * @param low - the low 64 bits of the v6 address
+       * @return the v6 packets with the dst ip prefix, built bottom-up without bdd operations
+       */
+      public int encodeDstIP6Prefix(long high, long low, int prefixlen)
+      {
+            int node = BDDTrue;
+            for(int i = ip6Bits - prefixlen; i < ip6Bits; i ++)
+            {
+                  long bit = i < 64 ? (low >>> i) & 1 : (high >>> (i - 64)) & 1;
+                  int var = aclBDD.getVar(dstIP6[i]);
+                  int next = bit == 1 ? mkNode(var, BDDFalse, node) : mkNode(var, node, BDDFalse);
+                  aclBDD.deref(node);
+                  node = next;
+            }
+            int prefix = mkNode(aclBDD.getVar(dstIP6Bit), BDDFalse, node);
+            aclBDD.deref(node);
+            return prefix;
+      }
+
+      /**
+       * @param pkt - a packet set on the dst ip only
+       * @return the low and high bound of each dst ip interval [low, high) of the 
+       *         packet set, in order, with adjacent intervals joined
+       */
+      public long[] getDstIPIntervals(int pkt)
+      {
+            ArrayList<Long> bounds = new ArrayList<Long>();
+            collectDstIPIntervals(pkt, 0, 0, bounds);
+            long[] intervals = new long[bounds.size()];
+            for(int i = 0; i < intervals.length; i ++)
+            {
+                  intervals[i] = bounds.get(i);
+            }
+            return intervals;
+      }
+
+      private void collectDstIPIntervals(int node, int bit, long base, ArrayList<Long> bounds)
+      {
+            if(node == BDDFalse)
+            {
+                  return;
+            }
+            if(node == BDDTrue)
+            {
+                  long high = base + (1L << (ipBits - bit));
+                  int last = bounds.size() - 1;
+                  if(last > 0 && bounds.get(last) == base)
+                  {
+                        bounds.set(last, high);
+                  }else
+                  {
+                        bounds.add(base);
+                        bounds.add(high);
+                  }
+                  return;
+            }
+            if(bit == ipBits || aclBDD.getVar(node) < aclBDD.getVar(dstIP[ipBits - 1 - bit])
+                        || aclBDD.getVar(node) > aclBDD.getVar(dstIP[0]))
+            {
+                  throw new IllegalArgumentException("the packet set is not on the dst ip only");
+            }
+            int var = aclBDD.getVar(dstIP[ipBits - 1 - bit]);
+            long half = 1L << (ipBits - 1 - bit);
+            if(aclBDD.getVar(node) == var)
+            {
+                  collectDstIPIntervals(aclBDD.getLow(node), bit + 1, base, bounds);
+                  collectDstIPIntervals(aclBDD.getHigh(node), bit + 1, base + half, bounds);
+            }else
+            {
+                  // the bit is free
+                  collectDstIPIntervals(node, bit + 1, base, bounds);
+                  collectDstIPIntervals(node, bit + 1, base + half, bounds);
+            }
+      }
+
+      /**
+       * build the packet set of dst ip intervals directly, without bdd operations
+       * @param intervals - the low and high bound of each interval [low, high), in order
+       * @return a referenced bdd node
+       */
+      public int encodeDstIPIntervals(long[] intervals)
+      {
+            return encodeDstIPIntervals(intervals, 0, intervals.length / 2, 0, 0);
+      }
+
+      /*
+       * encode the intervals from index from (inclusive) to index to (exclusive), 
+       * clipped to the dst ip block of the bit with the base address
+       */
+      private int encodeDstIPIntervals(long[] intervals, int from, int to, int bit, long base)
+      {
+            if(from == to)
+            {
+                  return BDDFalse;
+            }
+            long high = base + (1L << (ipBits - bit));
+            if(intervals[from * 2] <= base && intervals[from * 2 + 1] >= high)
+            {
+                  return BDDTrue;
+            }
+            long middle = base + (1L << (ipBits - 1 - bit));
+            // the intervals starting below the middle, and those ending above it
+            int low_to = from;
+            while(low_to < to && intervals[low_to * 2] < middle)
+            {
+                  low_to ++;
+            }
+            int high_from = low_to;
+            if(high_from > from && intervals[high_from * 2 - 1] > middle)
+            {
+                  high_from --;
+            }
+            int low = encodeDstIPIntervals(intervals, from, low_to, bit + 1, base);
+            int high_node = encodeDstIPIntervals(intervals, high_from, to, bit + 1, middle);
+            int res = mkNode(aclBDD.getVar(dstIP[ipBits - 1 - bit]), low, high_node);
+            DerefInBatch(new int[]{low, high_node});
+            return res;
+      }
+
+      /**
+       * @return the value of each bdd variable for a concrete header, 
+       *         indexed by variable; the other fields are all zero
+       */
+      public int[] encodeHeader(long srcip, long dstip, int proto, int srcport, int dstport)
+      {
+            int[] header = new int[aclBDD.numberOfVariables()];
+            EncodeHeaderField(header, srcIP, ipBits, srcip);
+            EncodeHeaderField(header, dstIP, ipBits, dstip);
+            EncodeHeaderField(header, protocol, protocolBits, proto);
+            EncodeHeaderField(header, srcPort, portBits, srcport);
+            EncodeHeaderField(header, dstPort, portBits, dstport);
+            return header;
+      }
+
+      private void EncodeHeaderField(int[] header, int[] vars, int bits, long value)
+      {
+            for(int i = 0; i < bits; i ++)
+            {
+                  header[aclBDD.getVar(vars[i])] = (int) ((value >>> i) & 1);
+            }
+      }
+
       public int encodeMPLSLabel(int label_int)
       {
             int [] label_bin = Utility.CalBinRep(label_int, mplsBits);
@@ -954,8 +1232,7 @@ public class BDDACLWrapper implements Serializable{
 
       private void DeclareDstIP6()
       {
-            DeclareVars(dstIP6, ipBits);
-            dstIP6Bit = aclBDD.createVar();
+            DeclareVars(dstIP6, ip6Bits);
       }
 
       private void DeclareMPLSLabel()
@@ -964,6 +1241,28 @@ public class BDDACLWrapper implements Serializable{
             mplsLabelBit = aclBDD.createVar();
       }
 
+      /**
+       * @return a referenced node testing the variable, with the given low and high children;
+       * the variable must be above all variables of the children
+       */
+      public int mkNode(int var, int low, int high)
+      {
+            if(varNodes == null)
+            {
+                  varNodes = new int[aclBDD.numberOfVariables()];
+                  int[][] fields = {protocol, srcPort, dstPort, srcIP, dstIP, dstIPInner, mplsLabel, dstIP6,
+                              {protocolBit, srcPortBit, dstPortBit, srcIPBit, dstIPBit, dstIPInnerBit, dstIP6Bit, mplsLabelBit}};
+                  for(int[] field : fields)
+                  {
+                        for(int node : field)
+                        {
+                              varNodes[aclBDD.getVar(node)] = node;
+                        }
+                  }
+            }
+            return aclBDD.ref(aclBDD.ite(varNodes[var], high, low));
+      }
+
       /**
        * @param vars - a list of bdd nodes that we do not need anymore
        */
@@ -1324,37 +1623,46 @@ public class BDDACLWrapper implements Serializable{
        */
       public int OrInBatch(int [] bddnodes)
       {
-            int tempnode = BDDFalse;
+            // reduce in pairs like a balanced tree, so that the operands of each OR 
+            // have similar sizes, instead of OR-ing every node into a growing result
+            int[] level = new int[bddnodes.length];
+            int size = 0;
             for(int i = 0; i < bddnodes.length; i ++)
             {
-                  if(i == 0)
+                  if(bddnodes[i] == BDDFalse)
                   {
-                        tempnode = bddnodes[i];
-                        aclBDD.ref(tempnode);
-                  }else
+                        // short cut, FALSE does not affect anything
+                        continue;
+                  }
+                  if(bddnodes[i] == BDDTrue)
                   {
-                        if(bddnodes[i] == BDDFalse)
-                        {
-                              // short cut, FALSE does not affect anything
-                              continue;
-                        }
-                        if(bddnodes[i] == BDDTrue)
-                        {
-                              // short cut, once TRUE, the result is true
-                              // the current tempnode is useless now
-                              aclBDD.deref(tempnode);
-                              tempnode = BDDTrue; 
-                              break;
-                        }
-                        int tempnode2 = aclBDD.or(tempnode, bddnodes[i]);
-                        aclBDD.ref(tempnode2);
-                        // do not need current tempnode 
-                        aclBDD.deref(tempnode);
-                        //refresh
-                        tempnode = tempnode2;
+                        // short cut, once TRUE, the result is true
+                        DerefInBatch(Arrays.copyOf(level, size));
+                        return BDDTrue;
                   }
+                  level[size ++] = aclBDD.ref(bddnodes[i]);
             }
-            return tempnode;
+            if(size == 0)
+            {
+                  return BDDFalse;
+            }
+            
+            while(size > 1)
+            {
+                  int next = 0;
+                  for(int i = 0; i + 1 < size; i += 2)
+                  {
+                        level[next ++] = aclBDD.ref(aclBDD.or(level[i], level[i+1]));
+                        aclBDD.deref(level[i]);
+                        aclBDD.deref(level[i+1]);
+                  }
+                  if(size % 2 == 1)
+                  {
+                        level[next ++] = level[size-1];
+                  }
+                  size = next;
+            }
+            return level[0];
       }
 
 
@@ -355,7 +355,66 @@ public class Utility {
 		}
 		return ipstr;
 	}
-	
+
+	/**
+	 * e.g. 2001:db8::1, return {0x20010db800000000, 0x1}
+	 * @return the high and low 64 bits of the IPv6 address
+	 */
+	public static long[] IPv6StringToLongs(String IP)
+	{
+		String[] halves = IP.split("::", -1);
+		String[] head = halves[0].isEmpty() ? new String[0] : halves[0].split(":");
+		String[] tail = halves.length < 2 || halves[1].isEmpty() ? new String[0] : halves[1].split(":");
+		long[] groups = new long[8];
+		for(int i = 0; i < head.length; i ++) {
+			groups[i] = Long.parseLong(head[i], 16);
+		}
+		for(int i = 0; i < tail.length; i ++) {
+			groups[8 - tail.length + i] = Long.parseLong(tail[i], 16);
+		}
+
+		long[] ip = new long[2];
+		for(int i = 0; i < 8; i ++) {
+			ip[i / 4] = ip[i / 4] << 16 | groups[i];
+		}
+		return ip;
+	}
+
+	/**
+	 * e.g. {0x20010db800000000, 0x1}, return 2001:db8::1
+	 * @return the IPv6 address of the high and low 64 bits, with the longest run of zero groups compressed
+	 */
+	public static String IPv6LongsToString(long high, long low)
+	{
+		long[] groups = new long[8];
+		for(int i = 0; i < 8; i ++) {
+			long half = i < 4 ? high : low;
+			groups[i] = (half >>> (48 - (i % 4) * 16)) & 0xffff;
+		}
+		int zero_start = -1, zero_len = 0;
+		for(int i = 0; i < 8; ) {
+			int j = i;
+			while(j < 8 && groups[j] == 0) j ++;
+			if(j - i > zero_len && j - i > 1) {
+				zero_start = i;
+				zero_len = j - i;
+			}
+			i = j == i ? i + 1 : j;
+		}
+		
+		StringBuilder ip = new StringBuilder();
+		for(int i = 0; i < 8; i ++) {
+			if(i == zero_start) {
+				ip.append("::");
+				i += zero_len - 1;
+				continue;
+			}
+			if(ip.length() > 0 && ip.charAt(ip.length() - 1) != ':') ip.append(":");
+			ip.append(Long.toHexString(groups[i]));
+		}
+		return ip.toString();
+	}
+
 	public static void main(String[] args)
 	{
 		/**